@@ -20,6 +20,8 @@
 package org.commonwl.view;
 
 import java.util.Collections;
+import org.commonwl.view.graphviz.GraphVizBusyException;
+import org.commonwl.view.graphviz.InvalidExpandException;
 import org.commonwl.view.workflow.MultipleWorkflowsException;
 import org.commonwl.view.workflow.RepresentationNotFoundException;
 import org.commonwl.view.workflow.WorkflowNotFoundException;
@@ -81,4 +83,29 @@ public class GlobalControllerErrorHandling {
         headers,
         HttpStatus.NOT_ACCEPTABLE);
   }
+
+  /**
+   * Too many graphs are being rendered to render another
+   *
+   * @return A plain text error message, with a Retry-After header
+   */
+  @ExceptionHandler(GraphVizBusyException.class)
+  public ResponseEntity<?> handleGraphVizBusy(GraphVizBusyException ex) {
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.TEXT_PLAIN);
+    headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(ex.getRetryAfterSeconds()));
+    return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+  }
+
+  /**
+   * Nested workflows to expand in a graph are not nested workflows of it, or are too many
+   *
+   * @return A plain text error message
+   */
+  @ExceptionHandler(InvalidExpandException.class)
+  public ResponseEntity<?> handleInvalidExpand(InvalidExpandException ex) {
+    final HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(MediaType.TEXT_PLAIN);
+    return new ResponseEntity<>(ex.getMessage(), headers, HttpStatus.BAD_REQUEST);
+  }
 }
@@ -2,14 +2,23 @@ package org.commonwl.view;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.AgeFileFilter;
+import org.commonwl.view.git.GitLeaseManager;
+import org.commonwl.view.git.GitService;
+import org.commonwl.view.graphviz.GraphVizService;
+import org.commonwl.view.researchobject.ROBundleCache;
 import org.commonwl.view.workflow.QueuedWorkflowRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,8 +31,13 @@ import org.springframework.stereotype.Component;
 @Component
 public class Scheduler {
 
+  // Number of repositories waited for the longest whose statistics are logged
+  private static final int SLOWEST_REPOSITORIES_LOGGED = 5;
+
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
   private final QueuedWorkflowRepository queuedWorkflowRepository;
+  private final GitLeaseManager gitLeaseManager;
+  private final GraphVizService graphVizService;
 
   @Value("${queuedWorkflowAgeLimitHours}")
   private Integer QUEUED_WORKFLOW_AGE_LIMIT_HOURS;
@@ -40,9 +54,17 @@ public class Scheduler {
   @Value("${gitStorage}")
   private String gitStorage;
 
+  @Value("${bundleStorage}")
+  private String bundleStorage;
+
   @Autowired
-  public Scheduler(QueuedWorkflowRepository queuedWorkflowRepository) {
+  public Scheduler(
+      QueuedWorkflowRepository queuedWorkflowRepository,
+      GitLeaseManager gitLeaseManager,
+      GraphVizService graphVizService) {
     this.queuedWorkflowRepository = queuedWorkflowRepository;
+    this.gitLeaseManager = gitLeaseManager;
+    this.graphVizService = graphVizService;
   }
 
   /**
@@ -81,7 +103,10 @@ public class Scheduler {
    *
    * <p>It scans the first level directories, i.e. it does not recursively scans directories. So it
    * will delete any RO or Git repository directories that exceed the threshold. Similarly, it will
-   * delete any graph (svg, png, etc) that also exceed it.
+   * delete any graph (svg, png, etc) that also exceed it. The Git mirrors and worktrees directories
+   * are not deleted themselves, but are scanned the same way, skipping repositories which are
+   * currently leased. The render cache of graphs and the cache of RO bundles are left alone, as
+   * they limit their own size, even when they share a directory with the others.
    *
    * <p>Errors logged through Logger. Settings in Spring application properties file.
    *
@@ -92,7 +117,43 @@ public class Scheduler {
     // Temporary files used for graphviz, RO, and git may be stored in different
     // locations, so we will collect all of them here.
     List<String> temporaryDirectories = Stream.of(graphvizStorage, gitStorage).distinct().toList();
-    temporaryDirectories.forEach(this::clearDirectory);
+    Set<String> gitDirectories = Set.of(GitService.WORKTREES_DIR, GitService.MIRRORS_DIR);
+
+    // Worktrees first, as they borrow their objects from the mirrors
+    clearDirectory(Paths.get(gitStorage, GitService.WORKTREES_DIR).toString(), Set.of(), true);
+    clearDirectory(Paths.get(gitStorage, GitService.MIRRORS_DIR).toString(), Set.of(), true);
+    temporaryDirectories.forEach(
+        directory -> {
+          Set<String> skip = new HashSet<>();
+          if (directory.equals(gitStorage)) {
+            skip.addAll(gitDirectories);
+          }
+          if (directory.equals(graphvizStorage)) {
+            skip.add(GraphVizService.CACHE_DIRECTORY);
+          }
+          if (directory.equals(bundleStorage)) {
+            skip.add(ROBundleCache.CACHE_DIRECTORY);
+          }
+          clearDirectory(directory, skip, false);
+        });
+  }
+
+  /**
+   * Scheduled function to log statistics operators may want to follow, such as the time spent
+   * waiting for Git repositories and the hit rate of the render cache of graphs.
+   */
+  @Scheduled(cron = "${cron.logStatistics}")
+  public void logStatistics() {
+    logger.info("Render cache of graphs: " + graphVizService.getCacheStatistics());
+    logger.info("Waits for Git repositories: " + gitLeaseManager.getTotalWaitStatistics());
+    gitLeaseManager.getWaitStatistics().entrySet().stream()
+        .sorted(
+            Comparator.comparingLong(
+                    (Map.Entry<String, GitLeaseManager.WaitStatistics> entry) ->
+                        entry.getValue().getTotalWaitMillis())
+                .reversed())
+        .limit(SLOWEST_REPOSITORIES_LOGGED)
+        .forEach(entry -> logger.info("Waits for " + entry.getKey() + ": " + entry.getValue()));
   }
 
   /**
@@ -103,8 +164,12 @@ public class Scheduler {
    * @see <a
    *     href="https://commons.apache.org/proper/commons-io/apidocs/org/apache/commons/io/filefilter/AgeFileFilter.html">https://commons.apache.org/proper/commons-io/apidocs/org/apache/commons/io/filefilter/AgeFileFilter.html</a>
    * @param temporaryDirectory temporary directory
+   * @param skip names of entries which must not be deleted
+   * @param gitRepositories whether the entries are Git mirrors or worktrees, which are only deleted
+   *     if no lease is held on their repository
    */
-  private void clearDirectory(String temporaryDirectory) {
+  private void clearDirectory(
+      String temporaryDirectory, Set<String> skip, boolean gitRepositories) {
     final Instant cutoff = Instant.now().minus(Duration.ofDays(TMP_DIR_AGE_LIMIT_DAYS));
 
     File temporaryDirectoryFile = new File(temporaryDirectory);
@@ -112,6 +177,17 @@ public class Scheduler {
 
     if (files != null && files.length > 0) {
       for (String fileName : files) {
+        if (skip.contains(fileName)) {
+          continue;
+        }
+        GitLeaseManager.Lease lease = null;
+        if (gitRepositories) {
+          lease = gitLeaseManager.tryAcquireExclusive(GitService.getRepositoryKey(fileName));
+          if (lease == null) {
+            logger.info("Not deleting Git directory in use: " + fileName);
+            continue;
+          }
+        }
         File fileToDelete = new File(temporaryDirectoryFile, fileName);
         try {
           FileUtils.forceDelete(fileToDelete);
@@ -126,6 +202,10 @@ public class Scheduler {
                   "Failed to delete old temporary file or directory [%s]: %s",
                   fileToDelete.getAbsolutePath(), e.getMessage()),
               e);
+        } finally {
+          if (lease != null) {
+            lease.close();
+          }
         }
       }
     }
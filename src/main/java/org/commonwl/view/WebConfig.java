@@ -51,6 +51,7 @@ public class WebConfig implements WebMvcConfigurer {
     svg("image/svg+xml"),
     png(MediaType.IMAGE_PNG),
     dot("text/vnd+graphviz"),
+    layout("application/vnd.graphviz+json"),
     // Archives
     zip("application/zip"),
     ro("application/vnd.wf4ever.robundle+zip"),
@@ -19,24 +19,29 @@
 
 package org.commonwl.view.cwl;
 
-import static org.apache.commons.io.FileUtils.readFileToString;
-
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jena.iri.IRI;
 import org.apache.jena.iri.IRIFactory;
@@ -49,8 +54,12 @@ import org.apache.jena.riot.RiotException;
 import org.commonwl.view.docker.DockerService;
 import org.commonwl.view.git.GitDetails;
 import org.commonwl.view.git.GitLicenseException;
+import org.commonwl.view.graphviz.DotWriter;
+import org.commonwl.view.graphviz.InvalidExpandException;
 import org.commonwl.view.graphviz.ModelDotWriter;
 import org.commonwl.view.graphviz.RDFDotWriter;
+import org.commonwl.view.graphviz.SubworkflowCluster;
+import org.commonwl.view.util.ReplacingInputStream;
 import org.commonwl.view.workflow.Workflow;
 import org.commonwl.view.workflow.WorkflowNotFoundException;
 import org.commonwl.view.workflow.WorkflowOverview;
@@ -74,6 +83,32 @@ public class CWLService {
   private final CWLTool cwlTool;
   private final Map<String, String> licenseVocab;
   private final int singleFileSizeLimit;
+  private final int simplifyAboveNodes;
+
+  /** Most nested workflows which can be expanded in one graph */
+  public static final int MAX_EXPANDED = 32;
+
+  // Contents of nested workflows drawn as clusters, by graph and nested workflow
+  private static final int MAX_CACHED_CLUSTERS = 1000;
+  private final Map<String, SubworkflowCluster> clusterCache =
+      Collections.synchronizedMap(
+          new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SubworkflowCluster> eldest) {
+              return size() > MAX_CACHED_CLUSTERS;
+            }
+          });
+
+  // Graphs with nested workflows drawn as clusters, by workflow and expanded node IDs
+  private static final int MAX_CACHED_CLUSTERED_GRAPHS = 200;
+  private final Map<String, String> clusteredGraphCache =
+      Collections.synchronizedMap(
+          new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+              return size() > MAX_CACHED_CLUSTERED_GRAPHS;
+            }
+          });
 
   // CWL specific strings
   private final String DOC_GRAPH = "$graph";
@@ -106,16 +141,34 @@ public class CWLService {
    * @param cwlTool Handles cwltool integration
    * @param singleFileSizeLimit The file size limit for single files
    */
+  public CWLService(
+      RDFService rdfService,
+      CWLTool cwlTool,
+      Map<String, String> licenseVocab,
+      int singleFileSizeLimit) {
+    this(rdfService, cwlTool, licenseVocab, singleFileSizeLimit, RDFDotWriter.NEVER_SIMPLIFY);
+  }
+
+  /**
+   * Constructor for the Common Workflow Language service
+   *
+   * @param rdfService A service for handling RDF queries
+   * @param cwlTool Handles cwltool integration
+   * @param singleFileSizeLimit The file size limit for single files
+   * @param simplifyAboveNodes The number of nodes above which workflow graphs are simplified
+   */
   @Autowired
   public CWLService(
       RDFService rdfService,
       CWLTool cwlTool,
       Map<String, String> licenseVocab,
-      @Value("${singleFileSizeLimit}") int singleFileSizeLimit) {
+      @Value("${singleFileSizeLimit}") int singleFileSizeLimit,
+      @Value("${graphviz.simplifyAboveNodes}") int simplifyAboveNodes) {
     this.rdfService = rdfService;
     this.cwlTool = cwlTool;
     this.licenseVocab = licenseVocab;
     this.singleFileSizeLimit = singleFileSizeLimit;
+    this.simplifyAboveNodes = simplifyAboveNodes;
   }
 
   /**
@@ -125,10 +178,23 @@ public class CWLService {
    * @return Whether the file is packed
    */
   public boolean isPacked(File workflowFile) throws IOException {
-    if (workflowFile.length() > singleFileSizeLimit) {
+    try (InputStream in = Files.newInputStream(workflowFile.toPath())) {
+      return isPacked(in, workflowFile.length());
+    }
+  }
+
+  /**
+   * Gets whether a file is packed using schema salad
+   *
+   * @param workflowStream The content of the file to be parsed
+   * @param size The size of the file in bytes
+   * @return Whether the file is packed
+   */
+  public boolean isPacked(InputStream workflowStream, long size) throws IOException {
+    if (size > singleFileSizeLimit) {
       return false;
     }
-    String fileContent = readFileToString(workflowFile);
+    String fileContent = IOUtils.toString(workflowStream, StandardCharsets.UTF_8);
     return fileContent.contains("$graph");
   }
 
@@ -139,34 +205,39 @@ public class CWLService {
    * @return The list of workflow overviews
    */
   public List<WorkflowOverview> getWorkflowOverviewsFromPacked(File packedFile) throws IOException {
-    if (packedFile.length() <= singleFileSizeLimit) {
-      List<WorkflowOverview> overviews = new ArrayList<>();
-
-      Map<String, Object> packedJson = yamlPathToJson(packedFile.toPath());
+    try (InputStream in = Files.newInputStream(packedFile.toPath())) {
+      return getWorkflowOverviewsFromPacked(in, packedFile.length(), packedFile.getName());
+    }
+  }
 
-      if (packedJson.containsKey(DOC_GRAPH)) {
-        for (Map<String, Object> node : (Iterable<Map<String, Object>>) packedJson.get(DOC_GRAPH)) {
-          if (extractProcess(node) == CWLProcess.WORKFLOW) {
-            WorkflowOverview overview =
-                new WorkflowOverview((String) node.get(ID), extractLabel(node), extractDoc(node));
-            overviews.add(overview);
-          }
+  /**
+   * Gets a list of workflows from a packed CWL file
+   *
+   * @param packedStream The content of the packed CWL file
+   * @param size The size of the file in bytes
+   * @param fileName The name of the file, used in error messages
+   * @return The list of workflow overviews
+   */
+  public List<WorkflowOverview> getWorkflowOverviewsFromPacked(
+      InputStream packedStream, long size, String fileName) throws IOException {
+    checkFileSize(fileName, size);
+    List<WorkflowOverview> overviews = new ArrayList<>();
+
+    Map<String, Object> packedJson = yamlStreamToJson(packedStream);
+
+    if (packedJson.containsKey(DOC_GRAPH)) {
+      for (Map<String, Object> node : (Iterable<Map<String, Object>>) packedJson.get(DOC_GRAPH)) {
+        if (extractProcess(node) == CWLProcess.WORKFLOW) {
+          WorkflowOverview overview =
+              new WorkflowOverview((String) node.get(ID), extractLabel(node), extractDoc(node));
+          overviews.add(overview);
         }
-      } else {
-        throw new IOException("The file given was not recognised as a packed CWL file");
       }
-
-      return overviews;
-
     } else {
-      throw new IOException(
-          "File '"
-              + packedFile.getName()
-              + "' is over singleFileSizeLimit - "
-              + FileUtils.byteCountToDisplaySize(packedFile.length())
-              + "/"
-              + FileUtils.byteCountToDisplaySize(singleFileSizeLimit));
+      throw new IOException("The file given was not recognised as a packed CWL file");
     }
+
+    return overviews;
   }
 
   /**
@@ -226,7 +297,12 @@ public class CWLService {
     workflowModel.setCwltoolVersion(cwlTool.getVersion());
 
     // Generate DOT graph
-    StringWriter graphWriter = new StringWriter();
+    StringBuilderWriter graphWriter =
+        new StringBuilderWriter(
+            DotWriter.sizeHint(
+                workflowModel.getInputs().size()
+                    + workflowModel.getOutputs().size()
+                    + workflowModel.getSteps().size()));
     ModelDotWriter dotWriter = new ModelDotWriter(graphWriter);
     try {
       dotWriter.writeGraph(workflowModel);
@@ -248,23 +324,31 @@ public class CWLService {
    */
   public Workflow parseWorkflowNative(Path workflowFile, String packedWorkflowId)
       throws IOException {
+    try (InputStream in = Files.newInputStream(workflowFile)) {
+      return parseWorkflowNative(
+          in,
+          Files.size(workflowFile),
+          workflowFile.getName(workflowFile.getNameCount() - 1).toString(),
+          packedWorkflowId);
+    }
+  }
 
+  /**
+   * Gets the Workflow object from internal parsing. The size of the workflow file must be below the
+   * configured singleFileSizeLimit in the constructor/spring config.
+   *
+   * @param workflowStream The content of the workflow file to be parsed
+   * @param size The size of the workflow file in bytes
+   * @param fileName The name of the workflow file, used as the label if there is no defined one
+   * @param packedWorkflowId The ID of the workflow object if the file is packed
+   * @return The constructed workflow object
+   */
+  public Workflow parseWorkflowNative(
+      InputStream workflowStream, long size, String fileName, String packedWorkflowId)
+      throws IOException {
     // Check file size limit before parsing
-    long fileSizeBytes = Files.size(workflowFile);
-    if (fileSizeBytes <= singleFileSizeLimit) {
-      try (InputStream in = Files.newInputStream(workflowFile)) {
-        return parseWorkflowNative(
-            in, packedWorkflowId, workflowFile.getName(workflowFile.getNameCount() - 1).toString());
-      }
-    } else {
-      throw new IOException(
-          "File '"
-              + workflowFile.getFileName()
-              + "' is over singleFileSizeLimit - "
-              + FileUtils.byteCountToDisplaySize(fileSizeBytes)
-              + "/"
-              + FileUtils.byteCountToDisplaySize(singleFileSizeLimit));
-    }
+    checkFileSize(fileName, size);
+    return parseWorkflowNative(workflowStream, packedWorkflowId, fileName);
   }
 
   /**
@@ -276,6 +360,24 @@ public class CWLService {
    */
   public Workflow parseWorkflowWithCwltool(Workflow basicModel, Path workflowFile, Path workTree)
       throws CWLValidationException, GitLicenseException {
+    return parseWorkflowWithCwltool(basicModel, workflowFile, workTree, null);
+  }
+
+  /**
+   * Create a workflow model using cwltool rdf output, also getting the packed version of the
+   * workflow from the same run of cwltool so it does not need to be run again for its research
+   * object bundle
+   *
+   * @param basicModel The basic workflow object created thus far
+   * @param workflowFile The workflow file to run cwltool on
+   * @param workTree The checkout of the repository containing the workflow
+   * @param packedReader Given the packed version of the workflow, with paths within the checkout
+   *     replaced by permalinks, if cwltool is run. Null if it is not needed.
+   * @return The constructed workflow object
+   */
+  public Workflow parseWorkflowWithCwltool(
+      Workflow basicModel, Path workflowFile, Path workTree, Consumer<String> packedReader)
+      throws CWLValidationException, GitLicenseException {
     GitDetails gitDetails = basicModel.getRetrievedFrom();
     String latestCommit = basicModel.getLastCommit();
     String packedWorkflowID = gitDetails.getPackedId();
@@ -285,40 +387,48 @@ public class CWLService {
     String workflowFileURI = workflowFile.toAbsolutePath().toUri().toString();
     URI workTreeUri = workTree.toAbsolutePath().toUri();
     String localPath = workflowFileURI;
-    String gitPath = gitDetails.getPath();
+    String gitPath = rdfGitPath(gitDetails);
     if (packedWorkflowID != null) {
       if (packedWorkflowID.charAt(0) != '#') {
         localPath += "#";
-        gitPath += "#";
       }
       localPath += packedWorkflowID;
-      gitPath += packedWorkflowID;
     }
 
     // Get RDF representation from cwltool
     if (!rdfService.graphExists(url)) {
-      String rdf = cwlTool.getRDF(localPath);
-      // Replace /tmp/123123 with permalink base
+      // Replace /tmp/123123 with permalink base while the output is streamed
       // NOTE: We do not just replace workflowFileURI, all referenced files will also
       // get rewritten
-      rdf =
-          rdf.replace(
-              workTreeUri.toString(), "https://w3id.org/cwl/view/git/" + latestCommit + "/");
-      // Workaround for common-workflow-language/cwltool#427
-      rdf = rdf.replace("<rdfs:>", "<http://www.w3.org/2000/01/rdf-schema#>");
-
-      // Create a workflow model from RDF representation
-      Model model = ModelFactory.createDefaultModel();
-      model.read(new ByteArrayInputStream(rdf.getBytes()), null, "TURTLE");
-
-      // Store the model
-      rdfService.storeModel(url, model);
+      // "<rdfs:>" is a workaround for common-workflow-language/cwltool#427
+      String permalinkBase = "https://w3id.org/cwl/view/git/" + latestCommit + "/";
+      Map<String, String> replacements =
+          Map.of(
+              workTreeUri.toString(),
+              permalinkBase,
+              "<rdfs:>",
+              "<http://www.w3.org/2000/01/rdf-schema#>");
+
+      // Stream the RDF representation into the triple store, which parses it
+      CWLTool.OutputReader rdfReader =
+          rdf -> rdfService.storeTurtle(url, new ReplacingInputStream(rdf, replacements));
+      if (packedReader == null) {
+        cwlTool.readRDF(localPath, rdfReader);
+      } else {
+        String packed = cwlTool.readRDFAndPackedVersion(localPath, rdfReader);
+        if (packed != null) {
+          packedReader.accept(packed.replace(workTreeUri.toString(), permalinkBase));
+        }
+      }
     }
 
+    // Fetch the graph once, and answer the queries below locally
+    RDFService workflowRdf = rdfService.getLocalView(url);
+
     // Base workflow details
     String label = FilenameUtils.getName(url);
     String doc = null;
-    ResultSet labelAndDoc = rdfService.getLabelAndDoc(url);
+    ResultSet labelAndDoc = workflowRdf.getLabelAndDoc(url);
     if (labelAndDoc.hasNext()) {
       QuerySolution labelAndDocSoln = labelAndDoc.nextSolution();
       if (labelAndDocSoln.contains("label")) {
@@ -331,7 +441,7 @@ public class CWLService {
 
     // Inputs
     Map<String, CWLElement> wfInputs = new HashMap<>();
-    ResultSet inputs = rdfService.getInputs(url);
+    ResultSet inputs = workflowRdf.getInputs(url);
     while (inputs.hasNext()) {
       QuerySolution input = inputs.nextSolution();
       String inputName = rdfService.stepNameFromURI(gitPath, input.get("name").toString());
@@ -364,7 +474,7 @@ public class CWLService {
 
     // Outputs
     Map<String, CWLElement> wfOutputs = new HashMap<>();
-    ResultSet outputs = rdfService.getOutputs(url);
+    ResultSet outputs = workflowRdf.getOutputs(url);
     while (outputs.hasNext()) {
       QuerySolution output = outputs.nextSolution();
       CWLElement wfOutput = new CWLElement();
@@ -401,7 +511,7 @@ public class CWLService {
 
     // Steps
     Map<String, CWLStep> wfSteps = new HashMap<>();
-    ResultSet steps = rdfService.getSteps(url);
+    ResultSet steps = workflowRdf.getSteps(url);
     while (steps.hasNext()) {
       QuerySolution step = steps.nextSolution();
       String uri = rdfService.stepNameFromURI(gitPath, step.get("step").toString());
@@ -451,7 +561,7 @@ public class CWLService {
       }
     }
     // Try to determine license
-    ResultSet licenseResult = rdfService.getLicense(url);
+    ResultSet licenseResult = workflowRdf.getLicense(url);
     String licenseLink;
     if (licenseResult.hasNext()) {
       licenseLink = normaliseLicenseLink(licenseResult.next().get("license").toString());
@@ -461,7 +571,7 @@ public class CWLService {
     }
 
     // Docker link
-    ResultSet dockerResult = rdfService.getDockerLink(url);
+    ResultSet dockerResult = workflowRdf.getDockerLink(url);
     String dockerLink = null;
     if (dockerResult.hasNext()) {
       QuerySolution docker = dockerResult.nextSolution();
@@ -477,8 +587,11 @@ public class CWLService {
         new Workflow(label, doc, wfInputs, wfOutputs, wfSteps, dockerLink, licenseLink);
 
     // Generate DOT graph
-    StringWriter graphWriter = new StringWriter();
-    RDFDotWriter RDFDotWriter = new RDFDotWriter(graphWriter, rdfService, gitPath);
+    StringBuilderWriter graphWriter =
+        new StringBuilderWriter(
+            DotWriter.sizeHint(wfInputs.size() + wfOutputs.size() + wfSteps.size()));
+    RDFDotWriter RDFDotWriter =
+        new RDFDotWriter(graphWriter, workflowRdf, gitPath, Set.of(), null, simplifyAboveNodes);
     try {
       RDFDotWriter.writeGraph(url);
       workflowModel.setVisualisationDot(graphWriter.toString());
@@ -489,6 +602,153 @@ public class CWLService {
     return workflowModel;
   }
 
+  /**
+   * Get the DOT source for a workflow with some of its nested workflows drawn as clusters of their
+   * steps. The contents of each nested workflow are queried when it is first expanded and cached
+   * for later graphs, as are the graphs themselves. Without RDF for the workflow the stored graph
+   * is returned unexpanded.
+   *
+   * <p>The node IDs are checked before the graph is queried: there may be at most {@link
+   * #MAX_EXPANDED} of them, and each must be a step of the workflow running a nested workflow, or a
+   * step of an expanded nested workflow which itself runs one. Node IDs within nested workflows
+   * which are not expanded are ignored, and when nothing is left to expand the stored graph is
+   * returned so it shares its renders with the unexpanded graph.
+   *
+   * @param workflow The workflow to be graphed
+   * @param expanded The node IDs of nested workflows to expand, or {@link RDFDotWriter#EXPAND_ALL}
+   * @return The DOT source for the graph
+   * @throws InvalidExpandException If a node ID is not a nested workflow, or there are too many
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  public String getClusteredGraph(Workflow workflow, Set<String> expanded) throws IOException {
+    if (expanded.size() > MAX_EXPANDED) {
+      throw new InvalidExpandException(
+          "At most " + MAX_EXPANDED + " nested workflows can be expanded at once");
+    }
+    SortedSet<String> nodeIDs = new TreeSet<>(expanded);
+    if (nodeIDs.contains(RDFDotWriter.EXPAND_ALL)) {
+      nodeIDs = new TreeSet<>();
+      for (CWLStep step : workflow.getSteps().values()) {
+        if (step.getRunType() == CWLProcess.WORKFLOW) {
+          nodeIDs.add(RDFDotWriter.EXPAND_ALL);
+        }
+      }
+    } else {
+      for (String nodeID : nodeIDs) {
+        // Steps of the workflow itself are known without querying its graph
+        CWLStep step = workflow.getSteps().get(nodeID.split("/", 2)[0]);
+        if (step == null || step.getRunType() != CWLProcess.WORKFLOW) {
+          throw new InvalidExpandException(nodeID + " is not a nested workflow");
+        }
+      }
+      // Steps within a nested workflow which is not expanded are never drawn
+      nodeIDs.removeIf(nodeID -> !isEnclosingExpanded(nodeID, expanded));
+    }
+    String url = workflow.getIdentifier();
+    if (nodeIDs.isEmpty()) {
+      return workflow.getVisualisationDot();
+    }
+    String cacheKey = url + "\n" + String.join(",", nodeIDs);
+    String cached = clusteredGraphCache.get(cacheKey);
+    if (cached != null) {
+      return cached;
+    }
+    if (!rdfService.graphExists(url)) {
+      return workflow.getVisualisationDot();
+    }
+
+    RDFService workflowRdf = rdfService.getLocalView(url);
+    Function<String, SubworkflowCluster> clusters =
+        run ->
+            clusterCache.computeIfAbsent(
+                url + " " + run,
+                key -> SubworkflowCluster.fromRDF(workflowRdf.getNestedView(run), run));
+    for (String nodeID : nodeIDs) {
+      if (!nodeID.equals(RDFDotWriter.EXPAND_ALL)) {
+        checkNestedWorkflow(url, nodeID, clusters);
+      }
+    }
+
+    // Expanded graphs are at least as large as the stored one
+    String flatGraph = workflow.getVisualisationDot();
+    StringBuilderWriter graphWriter =
+        new StringBuilderWriter(
+            Math.max(DotWriter.sizeHint(0), flatGraph == null ? 0 : 2 * flatGraph.length()));
+    RDFDotWriter dotWriter =
+        new RDFDotWriter(
+            graphWriter,
+            workflowRdf,
+            rdfGitPath(workflow.getRetrievedFrom()),
+            nodeIDs,
+            clusters,
+            simplifyAboveNodes);
+    dotWriter.writeGraph(url);
+    String graph = graphWriter.toString();
+    clusteredGraphCache.put(cacheKey, graph);
+    return graph;
+  }
+
+  /**
+   * Whether every nested workflow enclosing a node is expanded, so expanding the node changes the
+   * graph
+   *
+   * @param nodeID The node ID, such as step or step/innerstep
+   * @param expanded The node IDs of nested workflows to expand
+   * @return Whether the enclosing nested workflows are all expanded
+   */
+  private static boolean isEnclosingExpanded(String nodeID, Set<String> expanded) {
+    for (int i = nodeID.indexOf('/'); i >= 0; i = nodeID.indexOf('/', i + 1)) {
+      if (!expanded.contains(nodeID.substring(0, i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check a node ID to expand is a step running a nested workflow, following the steps of each
+   * nested workflow it is within
+   *
+   * @param url The URI of the workflow
+   * @param nodeID The node ID, such as step or step/innerstep
+   * @param clusters Gets the contents of a workflow from its URI
+   * @throws InvalidExpandException If the node ID is not a nested workflow
+   */
+  private static void checkNestedWorkflow(
+      String url, String nodeID, Function<String, SubworkflowCluster> clusters) {
+    String run = url;
+    for (String name : nodeID.split("/")) {
+      SubworkflowCluster.Step nested = null;
+      for (SubworkflowCluster.Step step : clusters.apply(run).getSteps()) {
+        if (step.getName().equals(name) && step.isWorkflow()) {
+          nested = step;
+        }
+      }
+      if (nested == null) {
+        throw new InvalidExpandException(nodeID + " is not a nested workflow");
+      }
+      run = nested.getRun();
+    }
+  }
+
+  /**
+   * Get the path of a workflow as it appears in the URIs of its RDF
+   *
+   * @param gitDetails The Git repository details of the workflow
+   * @return The path, including any packed workflow ID
+   */
+  private static String rdfGitPath(GitDetails gitDetails) {
+    String gitPath = gitDetails.getPath();
+    String packedWorkflowID = gitDetails.getPackedId();
+    if (packedWorkflowID != null) {
+      if (packedWorkflowID.charAt(0) != '#') {
+        gitPath += "#";
+      }
+      gitPath += packedWorkflowID;
+    }
+    return gitPath;
+  }
+
   /**
    * Get an overview of a workflow
    *
@@ -497,52 +757,75 @@ public class CWLService {
    * @throws IOException Any API errors which may have occurred
    */
   public WorkflowOverview getWorkflowOverview(File file) throws IOException {
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      return getWorkflowOverview(in, file.length(), file.getName());
+    }
+  }
 
-    // Get the content of this file from Github
-    long fileSizeBytes = file.length();
+  /**
+   * Get an overview of a workflow
+   *
+   * @param fileStream The content of a file, potentially a workflow
+   * @param size The size of the file in bytes
+   * @param fileName The name of the file
+   * @return A constructed WorkflowOverview of the workflow
+   * @throws IOException Any API errors which may have occurred
+   */
+  public WorkflowOverview getWorkflowOverview(InputStream fileStream, long size, String fileName)
+      throws IOException {
 
     // Check file size limit before parsing
-    if (fileSizeBytes <= singleFileSizeLimit) {
+    checkFileSize(fileName, size);
 
-      // Parse file as yaml
-      Map<String, Object> cwlFile = yamlPathToJson(file.toPath());
-
-      // If the CWL file is packed there can be multiple workflows in a file
-      int packedCount = 0;
-      if (cwlFile.containsKey(DOC_GRAPH)) {
-        // Packed CWL, find the first subelement which is a workflow and take it
-        for (Map<String, Object> node : (Iterable<Map<String, Object>>) cwlFile.get(DOC_GRAPH)) {
-          if (extractProcess(node) == CWLProcess.WORKFLOW) {
-            cwlFile = node;
-            packedCount++;
-          }
-        }
-        if (packedCount > 1) {
-          return new WorkflowOverview(
-              "/" + file.getName(), "Packed file", "contains " + packedCount + " workflows");
+    // Parse file as yaml
+    Map<String, Object> cwlFile = yamlStreamToJson(fileStream);
+
+    // If the CWL file is packed there can be multiple workflows in a file
+    int packedCount = 0;
+    if (cwlFile.containsKey(DOC_GRAPH)) {
+      // Packed CWL, find the first subelement which is a workflow and take it
+      for (Map<String, Object> node : (Iterable<Map<String, Object>>) cwlFile.get(DOC_GRAPH)) {
+        if (extractProcess(node) == CWLProcess.WORKFLOW) {
+          cwlFile = node;
+          packedCount++;
         }
       }
+      if (packedCount > 1) {
+        return new WorkflowOverview(
+            "/" + fileName, "Packed file", "contains " + packedCount + " workflows");
+      }
+    }
 
-      // Can only make an overview if this is a workflow
-      if (extractProcess(cwlFile) == CWLProcess.WORKFLOW) {
-        // Use filename for label if there is no defined one
-        String label = extractLabel(cwlFile);
-        if (label == null) {
-          label = file.getName();
-        }
-
-        // Return the constructed overview
-        return new WorkflowOverview("/" + file.getName(), label, extractDoc(cwlFile));
-      } else {
-        // Return null if not a workflow file
-        return null;
+    // Can only make an overview if this is a workflow
+    if (extractProcess(cwlFile) == CWLProcess.WORKFLOW) {
+      // Use filename for label if there is no defined one
+      String label = extractLabel(cwlFile);
+      if (label == null) {
+        label = fileName;
       }
+
+      // Return the constructed overview
+      return new WorkflowOverview("/" + fileName, label, extractDoc(cwlFile));
     } else {
+      // Return null if not a workflow file
+      return null;
+    }
+  }
+
+  /**
+   * Checks a file is within the configured singleFileSizeLimit
+   *
+   * @param fileName The name of the file, used in the error message
+   * @param size The size of the file in bytes
+   * @throws IOException If the file is over the limit
+   */
+  private void checkFileSize(String fileName, long size) throws IOException {
+    if (size > singleFileSizeLimit) {
       throw new IOException(
           "File '"
-              + file.getName()
+              + fileName
               + "' is over singleFileSizeLimit - "
-              + FileUtils.byteCountToDisplaySize(fileSizeBytes)
+              + FileUtils.byteCountToDisplaySize(size)
               + "/"
               + FileUtils.byteCountToDisplaySize(singleFileSizeLimit));
     }
@@ -598,21 +881,6 @@ public class CWLService {
     }
   }
 
-  /**
-   * Converts a yaml String to JsonNode
-   *
-   * @param path A Path to a file containing the yaml content
-   * @return A JsonNode with the content of the document
-   * @throws IOException
-   */
-  private Map<String, Object> yamlPathToJson(Path path) throws IOException {
-    LoadSettings settings = LoadSettings.builder().build();
-    Load load = new Load(settings);
-    try (InputStream in = Files.newInputStream(path)) {
-      return (Map<String, Object>) load.loadFromInputStream(in);
-    }
-  }
-
   /**
    * Converts a yaml String to JsonNode
    *
@@ -19,32 +19,160 @@
 
 package org.commonwl.view.cwl;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
 import org.commonwl.view.util.StreamGobbler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
-/** Interacts with the Python reference implementation of the common workflow language */
+/**
+ * Interacts with the Python reference implementation of the common workflow language.
+ *
+ * <p>cwltool is run by a pool of persistent worker processes, which avoids starting Python and
+ * loading the CWL schemas for every workflow. Workers are replaced after a number of workflows, or
+ * once their memory use exceeds a limit. If no workers are configured, or the Python interpreter of
+ * cwltool cannot be found, a new cwltool process is started for every workflow instead.
+ *
+ * <p>Outputs of cwltool are streamed to the caller rather than collected, and are limited in size.
+ */
 @Service
 public class CWLTool {
 
+  /** Output of cwltool holding the RDF representation of a workflow */
+  public static final String RDF = "rdf";
+
+  /** Output of cwltool holding the packed version of a workflow */
+  public static final String PACKED = "pack";
+
+  // Command line option of cwltool for each output
+  private static final Map<String, String> OPTIONS = Map.of(RDF, "--print-rdf", PACKED, "--pack");
+
+  // Used when no limit is configured
+  private static final long DEFAULT_MAX_OUTPUT_SIZE = 100 * 1024 * 1024;
+  private static final long DEFAULT_WORKER_TIMEOUT_SECONDS = 600;
+
+  // Longest error output of cwltool kept, in characters
+  private static final int MAX_ERROR_LENGTH = 1024 * 1024;
+
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
-  private String cwlToolVersion;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private volatile String cwlToolVersion;
+
+  // Largest output of cwltool accepted, in bytes
+  private final long maxOutputSize;
+
+  // Pool of persistent workers
+  private final int workers;
+  private final int workerMaxJobs;
+  private final long workerMaxMemoryKilobytes;
+  private final String workerPython;
+  private final Semaphore workerPermits;
+  private final long workerTimeoutMillis;
+  private final ScheduledExecutorService workerWatchdog;
+  private final BlockingQueue<CWLToolWorker> idleWorkers = new LinkedBlockingQueue<>();
+  private boolean workerCommandResolved = false;
+  private List<String> workerCommand;
+
+  /** Creates an instance starting a new cwltool process for every workflow */
+  public CWLTool() {
+    this(0, 0, 0, "", DEFAULT_WORKER_TIMEOUT_SECONDS, DEFAULT_MAX_OUTPUT_SIZE);
+  }
+
+  @Autowired
+  public CWLTool(
+      @Value("${cwltool.workers}") int workers,
+      @Value("${cwltool.workerMaxJobs}") int workerMaxJobs,
+      @Value("${cwltool.workerMaxMemoryMB}") int workerMaxMemoryMB,
+      @Value("${cwltool.workerPython}") String workerPython,
+      @Value("${cwltool.workerTimeoutSeconds}") long workerTimeoutSeconds,
+      @Value("${cwltool.maxOutputSize}") long maxOutputSize) {
+    this.workers = workers;
+    this.workerMaxJobs = workerMaxJobs;
+    this.workerMaxMemoryKilobytes = workerMaxMemoryMB * 1024L;
+    this.workerPython = workerPython;
+    this.workerPermits = new Semaphore(Math.max(workers, 0), true);
+    this.workerTimeoutMillis = TimeUnit.SECONDS.toMillis(workerTimeoutSeconds);
+    ScheduledThreadPoolExecutor watchdog =
+        new ScheduledThreadPoolExecutor(1, new CustomizableThreadFactory("cwltool-watchdog-"));
+    watchdog.setRemoveOnCancelPolicy(true);
+    this.workerWatchdog = watchdog;
+    this.maxOutputSize = maxOutputSize;
+  }
+
+  /** Reads an output of cwltool as it is produced */
+  @FunctionalInterface
+  public interface OutputReader {
+    /**
+     * Reads an output of cwltool, which does not need to be read completely or closed
+     *
+     * @param output The output, in Turtle for RDF
+     * @throws IOException Errors reading the output
+     */
+    void read(InputStream output) throws IOException;
+  }
 
   /**
-   * Get the RDF representation of a CWL file
+   * Streams the RDF representation of a CWL file, in Turtle, to a reader
    *
    * @param url The URL of the CWL file
-   * @return The RDF representing the CWL file
-   * @throws CWLValidationException cwltool errors
+   * @param reader The reader for the RDF
+   * @throws CWLValidationException cwltool errors, or errors reading the RDF
+   */
+  public void readRDF(String url, OutputReader reader) throws CWLValidationException {
+    runCwltool(url, List.of(RDF), (output, content) -> reader.read(content));
+  }
+
+  /**
+   * Streams the RDF representation of a CWL file, in Turtle, to a reader, and gets its packed
+   * version from the same round trip to a worker
+   *
+   * @param url The URL of the CWL file
+   * @param reader The reader for the RDF
+   * @return The packed version of the workflow
+   * @throws CWLValidationException cwltool errors, or errors reading the RDF
    */
-  public String getRDF(String url) throws CWLValidationException {
-    return runCwltoolOnWorkflow("--print-rdf", url);
+  public String readRDFAndPackedVersion(String url, OutputReader reader)
+      throws CWLValidationException {
+    String[] packed = new String[1];
+    runCwltool(
+        url,
+        List.of(RDF, PACKED),
+        (output, content) -> {
+          if (output.equals(RDF)) {
+            reader.read(content);
+          } else {
+            packed[0] = new String(content.readAllBytes(), StandardCharsets.UTF_8);
+          }
+        });
+    return packed[0];
   }
 
   /**
@@ -55,7 +183,46 @@ public class CWLTool {
    * @throws CWLValidationException cwltool errors
    */
   public String getPackedVersion(String url) throws CWLValidationException {
-    return runCwltoolOnWorkflow("--pack", url);
+    return getOutputs(url, PACKED).get(PACKED);
+  }
+
+  /**
+   * Get several outputs of cwltool for a CWL file, in a single round trip to a worker
+   *
+   * @param url The URL of the CWL file
+   * @param outputs The outputs, {@link #RDF} or {@link #PACKED}
+   * @return Each output, keyed by its name
+   * @throws CWLValidationException cwltool errors, for the first output which failed
+   */
+  public Map<String, String> getOutputs(String url, String... outputs)
+      throws CWLValidationException {
+    Map<String, String> results = new HashMap<>();
+    runCwltool(
+        url,
+        Arrays.asList(outputs),
+        (output, content) ->
+            results.put(output, new String(content.readAllBytes(), StandardCharsets.UTF_8)));
+    return results;
+  }
+
+  /**
+   * Runs cwltool for each of the given outputs, on a worker if possible
+   *
+   * @param url The URL of the CWL file
+   * @param outputs The outputs wanted
+   * @param handler Reads each output in turn
+   * @throws CWLValidationException cwltool errors, or errors reading the outputs
+   */
+  private void runCwltool(String url, List<String> outputs, CWLToolWorker.OutputHandler handler)
+      throws CWLValidationException {
+    List<String> command = getWorkerCommand();
+    if (command == null) {
+      for (String output : outputs) {
+        runCwltoolOnWorkflow(OPTIONS.get(output), url, content -> handler.handle(output, content));
+      }
+    } else {
+      runOnWorker(command, url, outputs, handler);
+    }
   }
 
   /**
@@ -80,13 +247,13 @@ public class CWLTool {
       BufferedReader br = new BufferedReader(isr);
 
       String line;
-      String cwlToolVersion;
       if ((line = br.readLine()) != null) {
+        // Only cached when known, so it is retried otherwise
         cwlToolVersion = line.substring(line.indexOf(' ') + 1);
+        return cwlToolVersion;
       } else {
-        cwlToolVersion = "<error getting cwltool version>";
+        return "<error getting cwltool version>";
       }
-      return cwlToolVersion;
 
     } catch (IOException ex) {
       return "<error getting cwltool version>";
@@ -98,14 +265,128 @@ public class CWLTool {
   }
 
   /**
-   * Runs cwltool on a workflow with a given argument
+   * Runs cwltool on a workflow on one of the persistent workers, starting one if none is idle
    *
-   * @param argument The argument for cwltool
+   * @param command The command starting a worker
    * @param workflowUrl The url of the workflow
-   * @return The standard output of cwltool
+   * @param outputs The outputs wanted
+   * @param handler Reads each output in turn
    * @throws CWLValidationException Errors from cwltool
    */
-  private String runCwltoolOnWorkflow(String argument, String workflowUrl)
+  private void runOnWorker(
+      List<String> command,
+      String workflowUrl,
+      List<String> outputs,
+      CWLToolWorker.OutputHandler handler)
+      throws CWLValidationException {
+    try {
+      workerPermits.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new CWLValidationException("Error running cwltool process");
+    }
+    CWLToolWorker worker = idleWorkers.poll();
+    try {
+      if (worker == null) {
+        worker =
+            new CWLToolWorker(
+                command, objectMapper, maxOutputSize, workerWatchdog, workerTimeoutMillis);
+      }
+      worker.run(workflowUrl, outputs, handler);
+    } catch (IOException ex) {
+      logger.error("Error running cwltool worker", ex);
+      throw new CWLValidationException("Error running cwltool process");
+    } finally {
+      if (worker != null) {
+        // Recycle workers which have done enough work or grown too large
+        if (worker.isUsable()
+            && worker.getJobs() < workerMaxJobs
+            && worker.getMaxRssKilobytes() < workerMaxMemoryKilobytes) {
+          idleWorkers.add(worker);
+        } else {
+          worker.close();
+        }
+      }
+      workerPermits.release();
+    }
+  }
+
+  /**
+   * Gets the command starting a persistent worker, resolving it the first time
+   *
+   * @return The command, or null if workers are disabled or cannot be started
+   */
+  private synchronized List<String> getWorkerCommand() {
+    if (!workerCommandResolved) {
+      workerCommandResolved = true;
+      if (workers > 0) {
+        try {
+          String python = workerPython.isBlank() ? findCwltoolPython() : workerPython;
+          if (python == null) {
+            logger.warn("Could not find the Python interpreter of cwltool, not using workers");
+          } else {
+            Path script = Files.createTempFile("cwltool-worker", ".py");
+            script.toFile().deleteOnExit();
+            try (InputStream in = getClass().getResourceAsStream("/cwltool/worker.py")) {
+              Files.copy(in, script, StandardCopyOption.REPLACE_EXISTING);
+            }
+            List<String> command = new ArrayList<>(Arrays.asList(python.trim().split("\\s+")));
+            command.add(script.toString());
+            workerCommand = command;
+          }
+        } catch (IOException | RuntimeException ex) {
+          logger.warn("Could not set up cwltool workers, starting a process per workflow", ex);
+        }
+      }
+    }
+    return workerCommand;
+  }
+
+  /**
+   * Finds the Python interpreter cwltool is installed for, from the first line of the cwltool
+   * script on the PATH
+   *
+   * @return The interpreter, possibly with arguments, or null if it was not found
+   */
+  private String findCwltoolPython() throws IOException {
+    String path = System.getenv("PATH");
+    if (path == null) {
+      return null;
+    }
+    for (String directory : path.split(File.pathSeparator)) {
+      Path cwltool = Path.of(directory, "cwltool");
+      if (Files.isRegularFile(cwltool)) {
+        try (BufferedReader reader = Files.newBufferedReader(cwltool, StandardCharsets.UTF_8)) {
+          String firstLine = reader.readLine();
+          if (firstLine != null && firstLine.startsWith("#!")) {
+            return firstLine.substring(2).trim();
+          }
+        }
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /** Stops the idle workers */
+  @PreDestroy
+  public void stopWorkers() {
+    CWLToolWorker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      worker.close();
+    }
+    workerWatchdog.shutdownNow();
+  }
+
+  /**
+   * Runs cwltool on a workflow with a given argument in a new process
+   *
+   * @param argument The argument for cwltool
+   * @param workflowUrl The url of the workflow
+   * @param reader Reads the standard output of cwltool
+   * @throws CWLValidationException Errors from cwltool, or errors reading its output
+   */
+  private void runCwltoolOnWorkflow(String argument, String workflowUrl, OutputReader reader)
       throws CWLValidationException {
     Process process = null;
 
@@ -125,22 +406,27 @@ public class CWLTool {
       ProcessBuilder cwlToolProcess = new ProcessBuilder(command);
       process = cwlToolProcess.start();
 
-      // Read output from the process using threads
-      StreamGobbler inputGobbler = new StreamGobbler(process.getInputStream());
-      StreamGobbler errorGobbler = new StreamGobbler(process.getErrorStream());
+      // Read errors from the process on another thread, and the output on this one
+      StreamGobbler errorGobbler = new StreamGobbler(process.getErrorStream(), MAX_ERROR_LENGTH);
       errorGobbler.start();
-      inputGobbler.start();
+      Exception readFailure = null;
+      try {
+        reader.read(new LimitedInputStream(process.getInputStream(), maxOutputSize));
+      } catch (IOException | RuntimeException ex) {
+        readFailure = ex;
+      }
+      // Let cwltool finish even if its output was not read
+      process.getInputStream().transferTo(OutputStream.nullOutputStream());
 
       // Wait for process to complete
       int exitCode = process.waitFor();
-      if (exitCode == 0) {
-        inputGobbler.join();
-        process.destroyForcibly();
-        return inputGobbler.getContent();
-      } else {
-        errorGobbler.join();
-        process.destroyForcibly();
+      errorGobbler.join();
+      if (exitCode != 0) {
         throw new CWLValidationException(errorGobbler.getContent());
+      } else if (readFailure instanceof RuntimeException) {
+        throw (RuntimeException) readFailure;
+      } else if (readFailure != null) {
+        throw new CWLValidationException(readFailure.getMessage(), readFailure);
       }
     } catch (IOException | InterruptedException e) {
       logger.error("Error running cwltool process", e);
@@ -151,4 +437,48 @@ public class CWLTool {
       }
     }
   }
+
+  /** Fails once more than a given number of bytes have been read */
+  private static final class LimitedInputStream extends FilterInputStream {
+
+    private final long limit;
+    private long count = 0;
+
+    private LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int next = super.read();
+      if (next != -1) {
+        counted(1);
+      }
+      return next;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        counted(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      counted(skipped);
+      return skipped;
+    }
+
+    private void counted(long bytes) throws IOException {
+      count += bytes;
+      if (count > limit) {
+        throw new IOException("The output of cwltool is larger than " + limit + " bytes");
+      }
+    }
+  }
 }
@@ -22,13 +22,16 @@ package org.commonwl.view.cwl;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Date;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.jena.query.QueryException;
 import org.commonwl.view.git.GitDetails;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitLicenseException;
-import org.commonwl.view.git.GitSemaphore;
 import org.commonwl.view.git.GitService;
+import org.commonwl.view.graphviz.GraphVizBusyException;
+import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.researchobject.ROBundleFactory;
-import org.commonwl.view.util.FileUtils;
 import org.commonwl.view.workflow.QueuedWorkflow;
 import org.commonwl.view.workflow.QueuedWorkflowRepository;
 import org.commonwl.view.workflow.Workflow;
@@ -39,13 +42,13 @@ import org.eclipse.jgit.errors.MissingObjectException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
-import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.stereotype.Component;
 
-/** Replace existing workflow with the one given by cwltool */
+/**
+ * Replace existing workflow with the one given by cwltool. Runs are queued on the {@link
+ * CWLToolScheduler}.
+ */
 @Component
-@EnableAsync
 public class CWLToolRunner {
 
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -55,8 +58,10 @@ public class CWLToolRunner {
   private final CWLService cwlService;
   private final ROBundleFactory roBundleFactory;
   private final String cwlToolVersion;
-  private final GitSemaphore gitSemaphore;
+  private final GitLeaseManager gitLeaseManager;
   private final GitService gitService;
+  private final CWLToolScheduler cwlToolScheduler;
+  private final GraphVizService graphVizService;
 
   @Autowired
   public CWLToolRunner(
@@ -65,33 +70,88 @@ public class CWLToolRunner {
       CWLService cwlService,
       CWLTool cwlTool,
       ROBundleFactory roBundleFactory,
-      GitSemaphore gitSemaphore,
-      GitService gitService) {
+      GitLeaseManager gitLeaseManager,
+      GitService gitService,
+      CWLToolScheduler cwlToolScheduler,
+      GraphVizService graphVizService) {
     this.workflowRepository = workflowRepository;
     this.queuedWorkflowRepository = queuedWorkflowRepository;
     this.cwlService = cwlService;
     this.cwlToolVersion = cwlTool.getVersion();
     this.roBundleFactory = roBundleFactory;
-    this.gitSemaphore = gitSemaphore;
+    this.gitLeaseManager = gitLeaseManager;
     this.gitService = gitService;
+    this.cwlToolScheduler = cwlToolScheduler;
+    this.graphVizService = graphVizService;
   }
 
-  @Async
-  public void createWorkflowFromQueued(QueuedWorkflow queuedWorkflow)
-      throws IOException, InterruptedException {
+  /**
+   * Queues cwltool to run on a queued workflow. If the queue is full, the queued workflow is marked
+   * as failed so it can be retried later.
+   *
+   * @param queuedWorkflow The queued workflow, already saved
+   * @param priority The priority of the run
+   */
+  public void createWorkflowFromQueued(
+      QueuedWorkflow queuedWorkflow, CWLToolScheduler.Priority priority) {
+    try {
+      cwlToolScheduler.submit(queuedWorkflow.getId(), priority, () -> runCwltool(queuedWorkflow));
+    } catch (RejectedExecutionException ex) {
+      logger.warn("Not queueing workflow " + queuedWorkflow.getId() + ": " + ex.getMessage());
+      queuedWorkflow.setCwltoolStatus(CWLToolStatus.ERROR);
+      queuedWorkflow.setMessage(
+          "Too many workflows are currently waiting for cwltool, please try again later");
+      queuedWorkflowRepository.save(queuedWorkflow);
+    }
+  }
 
+  /**
+   * Gets the position of a queued workflow among those waiting for cwltool
+   *
+   * @param queuedWorkflowId The ID of the queued workflow
+   * @return The position, starting from 1, or null if cwltool is not waiting to run on it
+   */
+  public Integer getQueuePosition(String queuedWorkflowId) {
+    return cwlToolScheduler.getQueuePosition(queuedWorkflowId);
+  }
+
+  /**
+   * Renders the graph of a workflow into the render cache, so it is served without waiting for
+   * Graphviz. Failures are left for the graph to be rendered when it is requested.
+   *
+   * @param workflow The workflow with its final DOT source
+   */
+  private void preRenderGraph(Workflow workflow) {
+    if (workflow.getVisualisationDot() == null) {
+      return;
+    }
+    try {
+      graphVizService.preRender(workflow.getVisualisationDot());
+    } catch (IOException | GraphVizBusyException ex) {
+      logger.warn(
+          "Could not render the graph of workflow " + workflow.getID() + " ahead of time", ex);
+    }
+  }
+
+  private void runCwltool(QueuedWorkflow queuedWorkflow) {
     Workflow tempWorkflow = queuedWorkflow.getTempRepresentation();
     GitDetails gitInfo = tempWorkflow.getRetrievedFrom();
     final String repoUrl = gitInfo.getRepoUrl();
     // Parse using cwltool and replace in database
     Git repo = null;
+    GitLeaseManager.Lease lease = gitLeaseManager.acquire(repoUrl);
     try {
-      boolean safeToAccess = gitSemaphore.acquire(repoUrl);
-      repo = gitService.getRepository(gitInfo, safeToAccess);
+      repo = gitService.getRepository(gitInfo);
       Path localPath = repo.getRepository().getWorkTree().toPath();
       Path workflowFile = localPath.resolve(gitInfo.getPath()).normalize().toAbsolutePath();
+      // Keep the packed workflow from the same cwltool run for the RO bundle
+      AtomicReference<String> packed = new AtomicReference<>();
       Workflow newWorkflow =
-          cwlService.parseWorkflowWithCwltool(tempWorkflow, workflowFile, localPath);
+          cwlService.parseWorkflowWithCwltool(
+              tempWorkflow,
+              workflowFile,
+              localPath,
+              roBundleFactory.isOnDemand() ? null : packed::set);
 
       // Success
       newWorkflow.setRetrievedFrom(tempWorkflow.getRetrievedFrom());
@@ -101,8 +161,11 @@ public class CWLToolRunner {
 
       workflowRepository.save(newWorkflow);
 
+      // Render the graph now rather than on the first view of the workflow
+      preRenderGraph(newWorkflow);
+
       // Generate RO bundle
-      roBundleFactory.createWorkflowRO(newWorkflow);
+      roBundleFactory.createWorkflowRO(newWorkflow, packed.get());
 
       // Mark success on queue
       queuedWorkflow.setCwltoolStatus(CWLToolStatus.SUCCESS);
@@ -111,7 +174,6 @@ public class CWLToolRunner {
       logger.error("Jena query exception for workflow " + queuedWorkflow.getId(), ex);
       queuedWorkflow.setCwltoolStatus(CWLToolStatus.ERROR);
       queuedWorkflow.setMessage("An error occurred when executing a query on the SPARQL store");
-      FileUtils.deleteGitRepository(repo);
     } catch (CWLValidationException | GitLicenseException ex) {
       String message = ex.getMessage();
       logger.error(
@@ -119,7 +181,6 @@ public class CWLToolRunner {
           ex);
       queuedWorkflow.setCwltoolStatus(CWLToolStatus.ERROR);
       queuedWorkflow.setMessage(message);
-      FileUtils.deleteGitRepository(repo);
     } catch (TransportException ex) {
       String message = ex.getMessage();
       logger.error(
@@ -139,7 +200,6 @@ public class CWLToolRunner {
       } else {
         queuedWorkflow.setMessage(message);
       }
-      FileUtils.deleteGitRepository(repo);
     } catch (MissingObjectException ex) {
       String message = ex.getMessage();
       logger.error(
@@ -152,7 +212,6 @@ public class CWLToolRunner {
           ex);
       queuedWorkflow.setCwltoolStatus(CWLToolStatus.ERROR);
       queuedWorkflow.setMessage("Unable to retrieve a needed Git object: " + message);
-      FileUtils.deleteGitRepository(repo);
     } catch (Exception ex) {
       logger.error(
           "Unexpected error processing workflow "
@@ -168,10 +227,8 @@ public class CWLToolRunner {
               + "error occurred in CWLViewer!\n"
               + ex.getMessage()
               + "\nHelp us by reporting it at https://github.com/common-workflow-language/cwlviewer/issues/new/choose\n");
-      FileUtils.deleteGitRepository(repo);
     } finally {
-      gitSemaphore.release(repoUrl);
-      FileUtils.deleteTemporaryGitRepository(repo);
+      lease.close();
       queuedWorkflowRepository.save(queuedWorkflow);
     }
   }
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.cwl;
+
+import java.util.Arrays;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs cwltool for queued workflows on a fixed number of threads, so only a limited number of
+ * cwltool processes run at once.
+ *
+ * <p>Waiting runs are ordered by priority, then in order of submission. The number of waiting runs
+ * is bounded, and further submissions are rejected until the queue drains.
+ */
+@Component
+public class CWLToolScheduler {
+
+  /** Priority of a cwltool run, in the order they are started */
+  public enum Priority {
+    /** Submitted by a user waiting for the result */
+    INTERACTIVE,
+    /** Refreshing a workflow whose cache has expired */
+    REFRESH
+  }
+
+  private final PriorityBlockingQueue<Runnable> waiting = new PriorityBlockingQueue<>();
+  private final ThreadPoolExecutor executor;
+  private final int queueCapacity;
+  private final AtomicLong submissions = new AtomicLong();
+
+  @Autowired
+  public CWLToolScheduler(
+      @Value("${cwltool.maxConcurrent}") int maxConcurrent,
+      @Value("${cwltool.queueCapacity}") int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+    this.executor =
+        new ThreadPoolExecutor(
+            maxConcurrent,
+            maxConcurrent,
+            0L,
+            TimeUnit.MILLISECONDS,
+            waiting,
+            new CustomizableThreadFactory("cwltool-"));
+  }
+
+  /**
+   * Queues a cwltool run
+   *
+   * @param queuedWorkflowId The ID of the queued workflow the run is for
+   * @param priority The priority of the run
+   * @param run The run
+   * @throws RejectedExecutionException If the queue is full
+   */
+  public synchronized void submit(String queuedWorkflowId, Priority priority, Runnable run) {
+    if (waiting.size() >= queueCapacity) {
+      throw new RejectedExecutionException(
+          "The cwltool queue is full with " + waiting.size() + " workflows waiting");
+    }
+    executor.execute(new Task(queuedWorkflowId, priority, submissions.incrementAndGet(), run));
+  }
+
+  /**
+   * Gets the position of a queued workflow among the runs waiting for cwltool
+   *
+   * @param queuedWorkflowId The ID of the queued workflow
+   * @return The position, starting from 1, or null if the workflow is not waiting
+   */
+  public Integer getQueuePosition(String queuedWorkflowId) {
+    Task[] tasks = waiting.toArray(new Task[0]);
+    Arrays.sort(tasks);
+    for (int i = 0; i < tasks.length; i++) {
+      if (tasks[i].queuedWorkflowId.equals(queuedWorkflowId)) {
+        return i + 1;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the number of runs waiting for cwltool
+   *
+   * @return The number of waiting runs
+   */
+  public int getQueueLength() {
+    return waiting.size();
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /** A cwltool run, ordered by priority then submission */
+  private static final class Task implements Runnable, Comparable<Task> {
+
+    private final String queuedWorkflowId;
+    private final Priority priority;
+    private final long sequence;
+    private final Runnable run;
+
+    private Task(String queuedWorkflowId, Priority priority, long sequence, Runnable run) {
+      this.queuedWorkflowId = queuedWorkflowId;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.run = run;
+    }
+
+    @Override
+    public void run() {
+      run.run();
+    }
+
+    @Override
+    public int compareTo(Task other) {
+      int byPriority = priority.compareTo(other.priority);
+      return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+    }
+  }
+}
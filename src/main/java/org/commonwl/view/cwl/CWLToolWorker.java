@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.cwl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A persistent cwltool process running <code>cwltool/worker.py</code>, which runs cwltool on one
+ * workflow at a time for requests written to its standard input.
+ *
+ * <p>Each response is a line of JSON, giving the size of each output or the error of cwltool,
+ * followed by the outputs themselves so they can be streamed. A worker which has not answered
+ * within its deadline is killed, and cannot be used again.
+ */
+class CWLToolWorker implements AutoCloseable {
+
+  /** Reads the outputs of a worker in turn */
+  @FunctionalInterface
+  interface OutputHandler {
+    /**
+     * Reads an output, which does not need to be read completely or closed
+     *
+     * @param output The name of the output
+     * @param content The content of the output
+     * @throws IOException Errors reading the output
+     */
+    void handle(String output, InputStream content) throws IOException;
+  }
+
+  private final ObjectMapper objectMapper;
+  private final long maxOutputSize;
+  private final Process process;
+  private final BufferedWriter requests;
+  private final InputStream responses;
+  private final ScheduledExecutorService watchdog;
+  private final long timeoutMillis;
+  private int jobs = 0;
+  private long maxRssKilobytes = 0;
+  private volatile boolean broken = false;
+  private volatile boolean timedOut = false;
+
+  /**
+   * Starts a worker process
+   *
+   * @param command The command running the worker script
+   * @param objectMapper Used for the JSON requests and responses
+   * @param maxOutputSize The largest output accepted, in bytes
+   * @param watchdog Kills the worker when a workflow takes too long
+   * @param timeoutMillis The longest a workflow may take, including reading its outputs
+   * @throws IOException If the process could not be started
+   */
+  CWLToolWorker(
+      List<String> command,
+      ObjectMapper objectMapper,
+      long maxOutputSize,
+      ScheduledExecutorService watchdog,
+      long timeoutMillis)
+      throws IOException {
+    this.objectMapper = objectMapper;
+    this.maxOutputSize = maxOutputSize;
+    this.watchdog = watchdog;
+    this.timeoutMillis = timeoutMillis;
+    this.process =
+        new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    this.requests =
+        new BufferedWriter(
+            new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    this.responses = new BufferedInputStream(process.getInputStream());
+  }
+
+  /**
+   * Runs cwltool on a workflow for each of the given outputs
+   *
+   * @param workflowUrl The url of the workflow
+   * @param outputs The outputs, see {@link CWLTool#RDF} and {@link CWLTool#PACKED}
+   * @param handler Reads each output in turn
+   * @throws CWLValidationException Errors from cwltool, errors reading the outputs, or the worker
+   *     taking too long
+   * @throws IOException If the worker could not be communicated with
+   */
+  void run(String workflowUrl, List<String> outputs, OutputHandler handler)
+      throws CWLValidationException, IOException {
+    // Killing the process ends any read from it, which then fails
+    ScheduledFuture<?> deadline =
+        watchdog.schedule(this::timeOut, timeoutMillis, TimeUnit.MILLISECONDS);
+    try {
+      runWithinDeadline(workflowUrl, outputs, handler);
+    } catch (CWLValidationException | IOException ex) {
+      if (timedOut) {
+        throw new CWLValidationException(
+            "cwltool took longer than "
+                + TimeUnit.MILLISECONDS.toSeconds(timeoutMillis)
+                + " seconds");
+      }
+      throw ex;
+    } finally {
+      deadline.cancel(false);
+    }
+  }
+
+  private void runWithinDeadline(String workflowUrl, List<String> outputs, OutputHandler handler)
+      throws CWLValidationException, IOException {
+    JsonNode response;
+    try {
+      response = exchange(workflowUrl, outputs);
+    } catch (IOException ex) {
+      broken = true;
+      throw ex;
+    }
+    jobs++;
+    maxRssKilobytes = response.path("maxRss").asLong();
+    if (response.has("error")) {
+      throw new CWLValidationException(response.get("error").asText());
+    }
+
+    long[] sizes = new long[outputs.size()];
+    boolean tooLarge = false;
+    for (int i = 0; i < sizes.length; i++) {
+      sizes[i] = response.path("sizes").path(outputs.get(i)).asLong();
+      tooLarge |= sizes[i] > maxOutputSize;
+    }
+    if (tooLarge) {
+      for (long size : sizes) {
+        skip(size);
+      }
+      throw new CWLValidationException(
+          "The output of cwltool is larger than " + maxOutputSize + " bytes");
+    }
+
+    // Whatever the handler does, the outputs are consumed so the next response can be read
+    int current = 0;
+    try {
+      for (; current < sizes.length; current++) {
+        OutputContent content = new OutputContent(responses, sizes[current]);
+        try {
+          handler.handle(outputs.get(current), content);
+        } catch (IOException ex) {
+          // The worker is still usable, as what is left of the output is skipped
+          throw new CWLValidationException(ex.getMessage(), ex);
+        } finally {
+          skip(content.remaining);
+        }
+      }
+    } finally {
+      for (int i = current + 1; i < sizes.length; i++) {
+        skip(sizes[i]);
+      }
+    }
+  }
+
+  /**
+   * Writes a request to the worker and reads the first line of its response
+   *
+   * @param workflowUrl The url of the workflow
+   * @param outputs The outputs wanted
+   * @return The response
+   */
+  private JsonNode exchange(String workflowUrl, List<String> outputs) throws IOException {
+    ObjectNode request = objectMapper.createObjectNode();
+    request.put("url", workflowUrl);
+    ArrayNode requestedOutputs = request.putArray("outputs");
+    outputs.forEach(requestedOutputs::add);
+    // The worker fails outputs larger than this rather than holding on to them
+    request.put("maxSize", maxOutputSize);
+    requests.write(objectMapper.writeValueAsString(request));
+    requests.newLine();
+    requests.flush();
+
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int next;
+    while ((next = responses.read()) != '\n') {
+      if (next == -1) {
+        throw new IOException("cwltool worker exited unexpectedly");
+      }
+      line.write(next);
+    }
+    return objectMapper.readTree(line.toByteArray());
+  }
+
+  private void timeOut() {
+    timedOut = true;
+    broken = true;
+    process.destroyForcibly();
+  }
+
+  private void skip(long bytes) throws IOException {
+    try {
+      IOUtils.skipFully(responses, bytes);
+    } catch (IOException ex) {
+      broken = true;
+      throw ex;
+    }
+  }
+
+  /**
+   * Whether the worker can be given more workflows
+   *
+   * @return Whether the worker is still running and has not failed to respond
+   */
+  boolean isUsable() {
+    return !broken && process.isAlive();
+  }
+
+  /**
+   * Gets the number of workflows run so far
+   *
+   * @return The number of workflows
+   */
+  int getJobs() {
+    return jobs;
+  }
+
+  /**
+   * Gets the peak memory use of the worker reported after its last job
+   *
+   * @return The peak resident set size in kilobytes
+   */
+  long getMaxRssKilobytes() {
+    return maxRssKilobytes;
+  }
+
+  /** Stops the worker, which exits once its standard input is closed */
+  @Override
+  public void close() {
+    try {
+      requests.close();
+      if (!process.waitFor(5, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+      }
+    } catch (IOException ex) {
+      process.destroyForcibly();
+    } catch (InterruptedException ex) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** One output within a response, which cannot be read past and is not closed */
+  private static final class OutputContent extends InputStream {
+
+    private final InputStream in;
+    private long remaining;
+
+    private OutputContent(InputStream in, long size) {
+      this.in = in;
+      this.remaining = size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int next = in.read();
+      if (next == -1) {
+        throw new IOException("cwltool worker exited unexpectedly");
+      }
+      remaining--;
+      return next;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = in.read(b, off, (int) Math.min(len, remaining));
+      if (read == -1) {
+        throw new IOException("cwltool worker exited unexpectedly");
+      }
+      remaining -= read;
+      return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public void close() {
+      // The worker's output stays open for the next response
+    }
+  }
+}
@@ -19,11 +19,23 @@
 
 package org.commonwl.view.cwl;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.jena.graph.Node;
 import org.apache.jena.graph.NodeFactory;
+import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetAccessor;
 import org.apache.jena.query.DatasetAccessorFactory;
+import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.ParameterizedSparqlString;
 import org.apache.jena.query.Query;
 import org.apache.jena.query.QueryExecution;
@@ -54,8 +66,17 @@ public class RDFService {
           + "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>\n"
           + "PREFIX s: <http://schema.org/>";
 
+  // Longest part of an error response from the triple store included in exceptions
+  private static final int MAX_ERROR_LENGTH = 1000;
+
   private String rdfService;
 
+  // Dataset queries are run on instead of the endpoint, for local views of a graph
+  private final Dataset localDataset;
+
+  private final HttpClient httpClient =
+      HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
   /**
    * Create the RDFService with configuration
    *
@@ -63,7 +84,68 @@ public class RDFService {
    */
   @Autowired
   public RDFService(@Value("${sparql.endpoint}") String rdfService) {
+    this(rdfService, null);
+  }
+
+  /**
+   * Create an RDFService answering queries from a local dataset
+   *
+   * @param rdfService The SPARQL endpoint
+   * @param localDataset The dataset queries are run on, or null to run them on the endpoint
+   */
+  private RDFService(String rdfService, Dataset localDataset) {
     this.rdfService = rdfService;
+    this.localDataset = localDataset;
+  }
+
+  /**
+   * Get a view of a graph which answers the queries about it locally. The graph is fetched from the
+   * triple store with a single query, rather than one query for each of the inputs, outputs, steps
+   * and links of a workflow.
+   *
+   * <p>Queries about other graphs, such as the ontologies, find nothing in the view.
+   *
+   * @param graphName The name of the graph
+   * @return An RDFService running queries on a copy of the graph
+   */
+  public RDFService getLocalView(String graphName) {
+    ParameterizedSparqlString graphQuery = new ParameterizedSparqlString();
+    graphQuery.setCommandText("CONSTRUCT { ?s ?p ?o } WHERE { GRAPH ?graphName { ?s ?p ?o } }");
+    graphQuery.setIri("graphName", graphName);
+    Query query = QueryFactory.create(graphQuery.toString());
+    try (QueryExecution qexec = QueryExecutionFactory.createServiceRequest(rdfService, query)) {
+      return getLocalView(graphName, qexec.execConstruct());
+    }
+  }
+
+  /**
+   * Get a view of a graph which answers the queries about it from a model already in memory
+   *
+   * @param graphName The name of the graph
+   * @param model The triples of the graph
+   * @return An RDFService running queries on the model
+   */
+  public RDFService getLocalView(String graphName, Model model) {
+    Dataset dataset = DatasetFactory.create();
+    dataset.addNamedModel(graphName, model);
+    return new RDFService(rdfService, dataset);
+  }
+
+  /**
+   * Get a view of a workflow nested in the graph of a local view, such as the run of a step which
+   * is itself a workflow. The queries look for a workflow in the graph of the same name, so the
+   * graph is also named after the nested workflow in the view.
+   *
+   * @param workflowURI The URI of the nested workflow
+   * @return An RDFService running queries about the nested workflow on the same copy of the graph
+   */
+  public RDFService getNestedView(String workflowURI) {
+    if (localDataset == null) {
+      throw new IllegalStateException("Nested workflows can only be viewed from a local view");
+    }
+    Dataset dataset = DatasetFactory.create();
+    dataset.addNamedModel(workflowURI, localDataset.getNamedModel(localDataset.listNames().next()));
+    return new RDFService(rdfService, dataset);
   }
 
   /**
@@ -104,6 +186,52 @@ public class RDFService {
     accessor.httpPut(name, model.getGraph());
   }
 
+  /**
+   * Store triples in the triple store as they are read, without parsing them here, replacing any
+   * graph of the same name. The triples are sent to the SPARQL Graph Store Protocol endpoint with
+   * chunked transfer encoding, and are validated by the triple store. Once this returns, the stream
+   * is no longer read, even if the triple store answered before reading all of it.
+   *
+   * @param graphName The name of the graph to store the triples in
+   * @param turtle The triples, in Turtle, which are not closed
+   * @throws CWLValidationException If the triple store rejected the triples as invalid
+   * @throws IOException If the triples could not be sent, or could not be stored
+   */
+  public void storeTurtle(String graphName, InputStream turtle) throws IOException {
+    DetachableInputStream body = new DetachableInputStream(turtle);
+    HttpRequest request =
+        HttpRequest.newBuilder(
+                URI.create(
+                    rdfService + "?graph=" + URLEncoder.encode(graphName, StandardCharsets.UTF_8)))
+            .header("Content-Type", "text/turtle; charset=utf-8")
+            .PUT(HttpRequest.BodyPublishers.ofInputStream(() -> body))
+            .build();
+    HttpResponse<String> response;
+    try {
+      response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while storing graph " + graphName, ex);
+    } finally {
+      // The client may still be sending the body after an early response
+      body.detach();
+    }
+    if (response.statusCode() / 100 == 4) {
+      throw new CWLValidationException(
+          "The RDF of the workflow was rejected by the triple store: "
+              + StringUtils.abbreviate(response.body(), MAX_ERROR_LENGTH));
+    }
+    if (response.statusCode() / 100 != 2) {
+      throw new IOException(
+          "Could not store graph "
+              + graphName
+              + ", the triple store responded "
+              + response.statusCode()
+              + ": "
+              + StringUtils.abbreviate(response.body(), MAX_ERROR_LENGTH));
+    }
+  }
+
   /**
    * Check if a graph exists within the triple store
    *
@@ -191,7 +319,7 @@ public class RDFService {
    * Get the inputs for the workflow in the model
    *
    * @param workflowURI URI of the workflow
-   * @return The result set of inputs
+   * @return The result set of inputs, ordered by name
    */
   public ResultSet getInputs(String workflowURI) {
     ParameterizedSparqlString inputsQuery = new ParameterizedSparqlString();
@@ -221,7 +349,8 @@ public class RDFService {
             + "    OPTIONAL { ?name sld:label|rdfs:label ?label }\n"
             + "    OPTIONAL { ?name sld:doc|rdfs:comment ?doc }"
             + "  }"
-            + "}");
+            + "}\n"
+            + "ORDER BY ?name ?type ?items ?format ?label");
     inputsQuery.setIri("wf", workflowURI);
     return runQuery(inputsQuery);
   }
@@ -230,7 +359,7 @@ public class RDFService {
    * Get the outputs for the workflow in the model
    *
    * @param workflowURI URI of the workflow
-   * @return The result set of outputs
+   * @return The result set of outputs, ordered by name
    */
   public ResultSet getOutputs(String workflowURI) {
     ParameterizedSparqlString outputsQuery = new ParameterizedSparqlString();
@@ -260,7 +389,8 @@ public class RDFService {
             + "    OPTIONAL { ?name sld:label|rdfs:label ?label }\n"
             + "    OPTIONAL { ?name sld:doc|rdfs:comment ?doc }"
             + "  }"
-            + "}");
+            + "}\n"
+            + "ORDER BY ?name ?type ?items ?format ?label");
     outputsQuery.setIri("wf", workflowURI);
     return runQuery(outputsQuery);
   }
@@ -269,7 +399,7 @@ public class RDFService {
    * Get the steps for the workflow in the model
    *
    * @param workflowURI URI of the workflow
-   * @return The result set of steps
+   * @return The result set of steps, ordered by step and input
    */
   public ResultSet getSteps(String workflowURI) {
     ParameterizedSparqlString stepQuery = new ParameterizedSparqlString();
@@ -288,7 +418,8 @@ public class RDFService {
             + "    OPTIONAL { ?run sld:label|rdfs:label ?label }\n"
             + "    OPTIONAL { ?run sld:doc|rdfs:comment ?doc }\n"
             + "  }"
-            + "}");
+            + "}\n"
+            + "ORDER BY ?step ?stepinput ?src ?default");
     stepQuery.setIri("wf", workflowURI);
     return runQuery(stepQuery);
   }
@@ -297,7 +428,7 @@ public class RDFService {
    * Get links between steps for the workflow in the model
    *
    * @param workflowURI URI of the workflow
-   * @return The result set of step links
+   * @return The result set of step links, ordered by destination
    */
   public ResultSet getStepLinks(String workflowURI) {
     ParameterizedSparqlString linkQuery = new ParameterizedSparqlString();
@@ -310,7 +441,8 @@ public class RDFService {
             + "    ?step cwl:in ?dest .\n"
             + "    { ?dest cwl:source ?src } UNION { ?dest cwl:default ?default }\n"
             + "  }"
-            + "}");
+            + "}\n"
+            + "ORDER BY ?dest ?src ?default");
     linkQuery.setIri("wf", workflowURI);
     return runQuery(linkQuery);
   }
@@ -319,7 +451,7 @@ public class RDFService {
    * Get links between steps and outputs for the workflow in the model
    *
    * @param workflowURI URI of the workflow
-   * @return The result set of steps
+   * @return The result set of output links, ordered by destination
    */
   public ResultSet getOutputLinks(String workflowURI) {
     ParameterizedSparqlString linkQuery = new ParameterizedSparqlString();
@@ -332,7 +464,8 @@ public class RDFService {
             + "    ?wf cwl:outputs ?dest .\n"
             + "    ?dest cwl:outputSource ?src\n"
             + "  }"
-            + "}");
+            + "}\n"
+            + "ORDER BY ?dest ?src");
     linkQuery.setIri("wf", workflowURI);
     return runQuery(linkQuery);
   }
@@ -471,7 +604,10 @@ public class RDFService {
    */
   ResultSet runQuery(ParameterizedSparqlString queryString) {
     Query query = QueryFactory.create(queryString.toString());
-    try (QueryExecution qexec = QueryExecutionFactory.createServiceRequest(rdfService, query)) {
+    try (QueryExecution qexec =
+        localDataset == null
+            ? QueryExecutionFactory.createServiceRequest(rdfService, query)
+            : QueryExecutionFactory.create(query, localDataset)) {
       return ResultSetFactory.copyResults(qexec.execSelect());
     }
   }
@@ -492,4 +628,45 @@ public class RDFService {
     licenseQuery.setIri("wf", workflowURI);
     return runQuery(licenseQuery);
   }
+
+  /** Reads a stream until detached, after which it appears to have ended */
+  private static final class DetachableInputStream extends FilterInputStream {
+
+    private boolean detached = false;
+
+    private DetachableInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      return detached ? -1 : in.read();
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+      return detached ? -1 : in.read(b, off, len);
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+      return detached ? 0 : in.skip(n);
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+      return detached ? 0 : in.available();
+    }
+
+    /** Waits for any read in progress, and stops further reads */
+    private synchronized void detach() {
+      detached = true;
+    }
+
+    @Override
+    public void close() {
+      // The stream belongs to the caller
+      detach();
+    }
+  }
 }
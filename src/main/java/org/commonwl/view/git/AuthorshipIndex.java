@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.commonwl.view.researchobject.HashableAgent;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * The authors of every path in a repository, as of one commit. It is built with a single walk of
+ * the history, comparing the tree of each commit with those of its parents, rather than a log of
+ * the whole history for each path. An index can be saved to a file, so it is only built once for
+ * each commit.
+ *
+ * <p>Like <code>git log -- path</code>, a path is authored by the commits changing it. Merge
+ * commits only count where they differ from every parent, so merging a branch does not make the
+ * author of the merge an author of every path the branch changed.
+ */
+public class AuthorshipIndex {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Map<String, Set<HashableAgent>> authorsByPath;
+
+  /**
+   * Create an index from the authors of each path
+   *
+   * @param authorsByPath The authors of each path within the repository, without leading slashes
+   */
+  public AuthorshipIndex(Map<String, Set<HashableAgent>> authorsByPath) {
+    this.authorsByPath = authorsByPath;
+  }
+
+  /**
+   * Gets the authors of a path
+   *
+   * @param path The path within the repository, possibly with a leading slash
+   * @return A new set of the authors of the path, empty if it was never committed
+   */
+  public Set<HashableAgent> getAuthors(String path) {
+    Set<HashableAgent> authors = authorsByPath.get(CommitSnapshot.normalisePath(path));
+    return authors == null ? new HashSet<>() : new HashSet<>(authors);
+  }
+
+  /**
+   * Builds the index for a commit by walking its history once
+   *
+   * @param repository The repository holding the history
+   * @param commitId The commit to index the history of
+   * @return The index of the authors of every path changed in the history
+   * @throws IOException Errors reading the history of the repository
+   */
+  static AuthorshipIndex build(Repository repository, ObjectId commitId) throws IOException {
+    Map<String, Set<HashableAgent>> authorsByPath = new HashMap<>();
+    try (RevWalk revWalk = new RevWalk(repository);
+        TreeWalk treeWalk = new TreeWalk(repository)) {
+      treeWalk.setRecursive(true);
+      revWalk.markStart(revWalk.parseCommit(commitId));
+      for (RevCommit commit : revWalk) {
+        HashableAgent author = getAgent(commit);
+        if (author == null) {
+          continue;
+        }
+        RevCommit[] parents = commit.getParents();
+        treeWalk.reset();
+        for (RevCommit parent : parents) {
+          treeWalk.addTree(revWalk.parseCommit(parent).getTree());
+        }
+        int tree = treeWalk.addTree(commit.getTree());
+        // A root commit adds every path in its tree
+        treeWalk.setFilter(parents.length == 0 ? TreeFilter.ALL : TreeFilter.ANY_DIFF);
+        while (treeWalk.next()) {
+          if (!differsFromAllParents(treeWalk, tree)) {
+            continue;
+          }
+          authorsByPath.computeIfAbsent(treeWalk.getPathString(), p -> new HashSet<>()).add(author);
+        }
+      }
+    }
+    return new AuthorshipIndex(authorsByPath);
+  }
+
+  /**
+   * Reads an index saved with {@link #write(Path)}
+   *
+   * @param file The file the index was saved to
+   * @return The index
+   * @throws IOException Errors reading the file
+   */
+  static AuthorshipIndex read(Path file) throws IOException {
+    JsonNode saved = MAPPER.readTree(file.toFile());
+    List<HashableAgent> authors = new ArrayList<>();
+    for (JsonNode author : saved.path("authors")) {
+      authors.add(toAgent(author.path("name").textValue(), author.path("email").textValue()));
+    }
+    Map<String, Set<HashableAgent>> authorsByPath = new HashMap<>();
+    Iterator<Map.Entry<String, JsonNode>> paths = saved.path("paths").fields();
+    while (paths.hasNext()) {
+      Map.Entry<String, JsonNode> path = paths.next();
+      Set<HashableAgent> pathAuthors = new HashSet<>();
+      for (JsonNode index : path.getValue()) {
+        pathAuthors.add(authors.get(index.intValue()));
+      }
+      authorsByPath.put(path.getKey(), pathAuthors);
+    }
+    return new AuthorshipIndex(authorsByPath);
+  }
+
+  /**
+   * Saves the index to a file, each author being written once and referred to by position. The file
+   * is replaced atomically, so a partly written index is never read.
+   *
+   * @param file The file to save the index to
+   * @throws IOException Errors writing the file
+   */
+  void write(Path file) throws IOException {
+    Map<HashableAgent, Integer> positions = new LinkedHashMap<>();
+    ObjectNode saved = MAPPER.createObjectNode();
+    ArrayNode authors = saved.putArray("authors");
+    ObjectNode paths = saved.putObject("paths");
+    for (Map.Entry<String, Set<HashableAgent>> path : authorsByPath.entrySet()) {
+      ArrayNode pathAuthors = paths.putArray(path.getKey());
+      for (HashableAgent author : path.getValue()) {
+        Integer position = positions.get(author);
+        if (position == null) {
+          position = positions.size();
+          positions.put(author, position);
+          ObjectNode savedAuthor = authors.addObject();
+          savedAuthor.put("name", author.getName());
+          savedAuthor.put(
+              "email", author.getUri() == null ? null : author.getUri().getSchemeSpecificPart());
+        }
+        pathAuthors.add(position);
+      }
+    }
+    Files.createDirectories(file.getParent());
+    Path partial = Files.createTempFile(file.getParent(), "authors", ".part");
+    try {
+      MAPPER.writeValue(partial.toFile(), saved);
+      Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(partial);
+    }
+  }
+
+  /**
+   * Whether the current entry of a walk over the trees of the parents of a commit and the commit
+   * itself was changed by the commit, that is differs from every parent
+   *
+   * @param treeWalk The walk, positioned on an entry
+   * @param tree The position of the tree of the commit, after those of its parents
+   * @return Whether the commit changed the entry
+   */
+  private static boolean differsFromAllParents(TreeWalk treeWalk, int tree) {
+    for (int parent = 0; parent < tree; parent++) {
+      if (treeWalk.idEqual(parent, tree)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Gets the agent for the author of a commit, or the committer if there is no author
+   *
+   * @param commit The commit
+   * @return The agent, or null if the commit names neither
+   */
+  private static HashableAgent getAgent(RevCommit commit) {
+    PersonIdent person = commit.getAuthorIdent();
+    if (person == null) {
+      person = commit.getCommitterIdent();
+    }
+    return person == null ? null : toAgent(person.getName(), person.getEmailAddress());
+  }
+
+  /**
+   * Creates an agent with as much detail as is known
+   *
+   * @param name The name of the agent, possibly empty
+   * @param email The email address of the agent, possibly empty
+   * @return The agent
+   */
+  private static HashableAgent toAgent(String name, String email) {
+    HashableAgent agent = new HashableAgent();
+    if (name != null && name.length() > 0) {
+      agent.setName(name);
+    }
+    if (email != null && email.length() > 0) {
+      try {
+        agent.setUri(new URI("mailto:" + email));
+      } catch (URISyntaxException ex) {
+        // Not a usable address, so the agent is only named
+      }
+    }
+    return agent;
+  }
+}
@@ -19,29 +19,13 @@
 
 package org.commonwl.view.git;
 
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
-
-import org.junit.jupiter.api.Test;
-
-public class GitSemaphoreTest {
-
-  @Test
-  public void basicOperation() throws Exception {
-
-    GitSemaphore sem = new GitSemaphore();
-    boolean first = sem.acquire("1");
-    boolean second = sem.acquire("1");
-    sem.acquire("2");
-    sem.release("1");
-    boolean third = sem.acquire("1");
-    sem.release("1");
-    sem.release("1");
-    boolean fourth = sem.acquire("1");
-
-    assertTrue(first);
-    assertFalse(second);
-    assertFalse(third);
-    assertTrue(fourth);
-  }
+/** How the local mirror of a repository is populated */
+public enum CloneStrategy {
+  /** Clone every branch and tag with their full history */
+  FULL,
+  /**
+   * Only fetch the requested branch, tag or commit, without its history. The history is fetched
+   * later if it is needed, for instance to find the authors of a file.
+   */
+  SHALLOW
 }
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Read-only view of the files of a repository at a single commit.
+ *
+ * <p>Paths are relative to the root of the repository, use <code>/</code> as a separator and are
+ * expected to have been normalised with {@link #normalisePath(String)}. The root directory is the
+ * empty string.
+ */
+public abstract class CommitSnapshot implements AutoCloseable {
+
+  private final String commitId;
+
+  protected CommitSnapshot(String commitId) {
+    this.commitId = commitId;
+  }
+
+  /**
+   * Gets the ID of the commit the files are read from
+   *
+   * @return The commit ID
+   */
+  public String getCommitId() {
+    return commitId;
+  }
+
+  /**
+   * Whether a path is a regular file
+   *
+   * @param path The path within the repository
+   * @return Whether the path exists and is a file
+   */
+  public abstract boolean isFile(String path) throws IOException;
+
+  /**
+   * Whether a path is a directory
+   *
+   * @param path The path within the repository
+   * @return Whether the path exists and is a directory
+   */
+  public abstract boolean isDirectory(String path) throws IOException;
+
+  /**
+   * Gets the size of a file
+   *
+   * @param path The path of the file within the repository
+   * @return The size of the file in bytes
+   * @throws FileNotFoundException If the path is not a file
+   */
+  public abstract long getSize(String path) throws IOException;
+
+  /**
+   * Opens a file for reading. The stream must be closed by the caller.
+   *
+   * @param path The path of the file within the repository
+   * @return A stream of the content of the file
+   * @throws FileNotFoundException If the path is not a file
+   */
+  public abstract InputStream open(String path) throws IOException;
+
+  /**
+   * Lists the files directly within a directory, in name order
+   *
+   * @param directory The path of the directory within the repository
+   * @return The names of the files, or an empty list if the directory does not exist
+   */
+  public abstract List<String> listFiles(String directory) throws IOException;
+
+  @Override
+  public abstract void close();
+
+  /**
+   * Normalises a path given by a user into a path within the repository
+   *
+   * @param path The path, possibly with leading slashes or <code>.</code> and <code>..</code>
+   *     segments
+   * @return The normalised path, or null if it points outside of the repository
+   */
+  public static String normalisePath(String path) {
+    Deque<String> segments = new ArrayDeque<>();
+    if (path != null) {
+      for (String segment : path.split("/")) {
+        if (segment.equals("..")) {
+          if (segments.isEmpty()) {
+            return null;
+          }
+          segments.removeLast();
+        } else if (!segment.isEmpty() && !segment.equals(".")) {
+          segments.addLast(segment);
+        }
+      }
+    }
+    return String.join("/", segments);
+  }
+}
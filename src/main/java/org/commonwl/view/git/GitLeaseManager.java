@@ -0,0 +1,274 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.commonwl.view.util.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Manages concurrent access to the local copies of Git repositories.
+ *
+ * <p>Threads using the files of a repository hold a shared lease on it, while deleting them
+ * requires an exclusive one. Leases are striped over a fixed set of read/write locks by repository.
+ * Operations which update a repository, such as fetches, are coalesced so that concurrent callers
+ * wait for the one already running instead of repeating it, and different updates of the same
+ * repository can be serialised. The time callers spend waiting is recorded in total, and for the
+ * most recently used repositories.
+ */
+@Component
+public class GitLeaseManager {
+
+  private static final int STRIPES = 64;
+
+  // Waits longer than this are logged
+  private static final long SLOW_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  // Number of repositories whose waits are recorded, least recently used ones being dropped
+  static final int TRACKED_REPOSITORIES = 256;
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+  private final Lock[] updateStripes = new Lock[STRIPES];
+  private final SingleFlight<String, Object> operations = new SingleFlight<>();
+  private final WaitStatistics totalWaitStatistics = new WaitStatistics();
+  private final Map<String, WaitStatistics> waitStatistics =
+      new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, WaitStatistics> eldest) {
+          return size() > TRACKED_REPOSITORIES;
+        }
+      };
+
+  public GitLeaseManager() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+      updateStripes[i] = new ReentrantLock();
+    }
+  }
+
+  /**
+   * Gets the key identifying the local copies of a repository, which is also used to name them
+   *
+   * @param repoUrl The url of the repository
+   * @return The repository key
+   */
+  public static String keyFor(String repoUrl) {
+    return DigestUtils.sha1Hex(normalise(repoUrl));
+  }
+
+  /**
+   * Normalises the url of a repository, which is null for local directories
+   *
+   * @param repoUrl The url of the repository
+   * @return The normalised url, empty for local directories
+   */
+  private static String normalise(String repoUrl) {
+    return GitDetails.normaliseUrl(Objects.toString(repoUrl, ""));
+  }
+
+  /**
+   * Acquires a shared lease on a repository, waiting while it is being deleted
+   *
+   * @param repoUrl The url of the repository
+   * @return The lease, to be closed once the repository files are no longer used
+   */
+  public Lease acquire(String repoUrl) {
+    Lock lock = stripeFor(keyFor(repoUrl)).readLock();
+    long start = System.nanoTime();
+    lock.lock();
+    recordWait(repoUrl, System.nanoTime() - start);
+    return new Lease(lock);
+  }
+
+  /**
+   * Attempts to acquire an exclusive lease on a repository without waiting
+   *
+   * @param repositoryKey The key of the repository, see {@link #keyFor(String)}
+   * @return The lease, or null if the repository is in use
+   */
+  public Lease tryAcquireExclusive(String repositoryKey) {
+    Lock lock = stripeFor(repositoryKey).writeLock();
+    return lock.tryLock() ? new Lease(lock) : null;
+  }
+
+  /**
+   * Runs an operation on a repository, or waits for the same operation if it is already running
+   *
+   * @param repoUrl The url of the repository
+   * @param operation Identifies the operation within the repository
+   * @param call The operation
+   * @return The result of the operation
+   * @throws E The exception thrown by the operation
+   */
+  @SuppressWarnings("unchecked")
+  public <V, E extends Exception> V coalesce(
+      String repoUrl, String operation, SingleFlight.Call<V, E> call) throws E {
+    boolean[] ranHere = {false};
+    long start = System.nanoTime();
+    try {
+      return (V)
+          operations.execute(
+              keyFor(repoUrl) + ":" + operation,
+              () -> {
+                ranHere[0] = true;
+                return call.call();
+              });
+    } finally {
+      if (!ranHere[0]) {
+        recordWait(repoUrl, System.nanoTime() - start);
+      }
+    }
+  }
+
+  /**
+   * Runs an update of a repository once no other update of it is running
+   *
+   * @param repoUrl The url of the repository
+   * @param call The update
+   * @return The result of the update
+   * @throws E The exception thrown by the update
+   */
+  public <V, E extends Exception> V serialise(String repoUrl, SingleFlight.Call<V, E> call)
+      throws E {
+    Lock lock = updateStripes[stripeIndex(keyFor(repoUrl))];
+    long start = System.nanoTime();
+    lock.lock();
+    try {
+      recordWait(repoUrl, System.nanoTime() - start);
+      return call.call();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the time spent waiting for each of the most recently used repositories so far
+   *
+   * @return Statistics keyed by normalised repository url
+   */
+  public Map<String, WaitStatistics> getWaitStatistics() {
+    synchronized (waitStatistics) {
+      return Collections.unmodifiableMap(new TreeMap<>(waitStatistics));
+    }
+  }
+
+  /**
+   * Gets the time spent waiting for all repositories so far
+   *
+   * @return The statistics
+   */
+  public WaitStatistics getTotalWaitStatistics() {
+    return totalWaitStatistics;
+  }
+
+  private ReadWriteLock stripeFor(String repositoryKey) {
+    return stripes[stripeIndex(repositoryKey)];
+  }
+
+  private int stripeIndex(String repositoryKey) {
+    return Math.floorMod(repositoryKey.hashCode(), STRIPES);
+  }
+
+  private void recordWait(String repoUrl, long nanos) {
+    String repository = normalise(repoUrl);
+    WaitStatistics statistics;
+    synchronized (waitStatistics) {
+      statistics = waitStatistics.computeIfAbsent(repository, k -> new WaitStatistics());
+    }
+    statistics.record(nanos);
+    totalWaitStatistics.record(nanos);
+    if (nanos > SLOW_WAIT_NANOS) {
+      logger.info(
+          "Waited " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms for repository " + repository);
+    }
+  }
+
+  /** A lease on a repository, released when closed */
+  public static final class Lease implements AutoCloseable {
+
+    private final Lock lock;
+    private boolean released = false;
+
+    private Lease(Lock lock) {
+      this.lock = lock;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Time spent by callers waiting for a repository */
+  public static final class WaitStatistics {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+      return count.sum();
+    }
+
+    public long getTotalWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(totalNanos.sum());
+    }
+
+    public long getMaxWaitMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    @Override
+    public String toString() {
+      return "WaitStatistics{count="
+          + getCount()
+          + ", totalWaitMillis="
+          + getTotalWaitMillis()
+          + ", maxWaitMillis="
+          + getMaxWaitMillis()
+          + "}";
+    }
+  }
+}
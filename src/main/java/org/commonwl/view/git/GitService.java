@@ -24,30 +24,89 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
-import org.apache.commons.codec.digest.DigestUtils;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
 import org.commonwl.view.researchobject.HashableAgent;
+import org.eclipse.jgit.api.FetchCommand;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.CheckoutConflictException;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.ConfigConstants;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
 import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-/** Handles Git related functionality */
+/**
+ * Handles Git related functionality.
+ *
+ * <p>Each remote repository is cloned once, as a bare mirror under <code>gitStorage/mirrors
+ * </code>, and kept up to date with fetches. Checked out files are provided by one worktree per
+ * commit under <code>gitStorage/worktrees</code>, which borrows its objects from the mirror through
+ * <code>objects/info/alternates</code>. Worktrees are never modified once created, so the same one
+ * can be shared by every request for that commit.
+ *
+ * <p>With the {@link CloneStrategy#SHALLOW} strategy, mirrors only receive the branches, tags and
+ * commits which were requested, without their history. The history is fetched the first time it is
+ * needed, by {@link #getAuthorship(Git)}.
+ *
+ * <p>Concurrent fetches of the same mirror, and checkouts of the same worktree, are coalesced by
+ * the {@link GitLeaseManager}. Callers should hold a lease on the repository while they use its
+ * files, so they are not removed by the scheduled cleanup.
+ */
 @Service
 public class GitService {
 
+  /** Directory within the git storage holding the bare mirror repositories */
+  public static final String MIRRORS_DIR = "mirrors";
+
+  /** Directory within the git storage holding the per-commit worktrees */
+  public static final String WORKTREES_DIR = "worktrees";
+
+  // Written into the .git directory once a worktree has been fully checked out
+  private static final String WORKTREE_COMPLETE_MARKER = "cwlviewer-complete";
+
+  // Directory within each mirror holding the authorship index of each commit
+  private static final String AUTHORSHIP_DIR = "cwlviewer-authorship";
+
+  // Number of authorship indexes kept in each mirror, the least recently used being deleted first
+  static final int AUTHORSHIP_INDEXES_KEPT = 8;
+
+  // Where commits fetched by ID are kept in shallow mirrors, so they are not garbage collected
+  private static final String R_COMMITS = "refs/commits/";
+
+  // Fetched into shallow mirrors when the requested ref cannot be found on its own
+  private static final RefSpec ALL_BRANCHES =
+      new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*");
+
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
   // Location to check out git repositories into
@@ -56,79 +115,83 @@ public class GitService {
   // Whether submodules are also cloned
   private final boolean cloneSubmodules;
 
+  // Whether mirrors are full clones or only hold the requested refs
+  private final CloneStrategy cloneStrategy;
+
+  private final GitLeaseManager gitLeaseManager;
+
   @Autowired
   public GitService(
       @Value("${gitStorage}") Path gitStorage,
-      @Value("${gitAPI.cloneSubmodules}") boolean cloneSubmodules) {
+      @Value("${gitAPI.cloneSubmodules}") boolean cloneSubmodules,
+      @Value("${gitAPI.cloneStrategy}") CloneStrategy cloneStrategy,
+      GitLeaseManager gitLeaseManager) {
     this.gitStorage = gitStorage;
     this.cloneSubmodules = cloneSubmodules;
+    this.cloneStrategy = cloneStrategy;
+    this.gitLeaseManager = gitLeaseManager;
   }
 
   /**
-   * Gets a repository, cloning into a local directory or
+   * Gets a worktree of a repository checked out at the given branch, tag or commit ID. The
+   * repository is only cloned the first time it is requested, and the remote is not contacted at
+   * all if a requested commit ID is already present in the mirror.
+   *
+   * <p>Prefer {@link #getSnapshot(GitDetails)} when files only need to be read, as it avoids
+   * checking out the whole commit.
    *
    * @param gitDetails The details of the Git repository
-   * @param reuseDir Whether the cached repository can be used
-   * @return The git object for the repository
+   * @return The git object for the worktree, with a detached HEAD at the requested commit
+   * @throws RefNotFoundException If the branch, tag or commit ID does not exist
    */
-  public Git getRepository(GitDetails gitDetails, boolean reuseDir)
-      throws GitAPIException, IOException {
-    Git repo;
-    if (reuseDir) {
-      // Base dir from configuration, name from hash of repository URL
-      String baseName = DigestUtils.sha1Hex(GitDetails.normaliseUrl(gitDetails.getRepoUrl()));
-
-      // Check if folder already exists
-      Path repoDir = gitStorage.resolve(baseName);
-      if (Files.isReadable(repoDir) && Files.isDirectory(repoDir)) {
-        try {
-          repo = Git.open(repoDir.toFile());
-          repo.fetch().call();
-        } catch (RepositoryNotFoundException ex) {
-          repo = cloneRepo(gitDetails.getRepoUrl(), repoDir.toFile());
-        }
-      } else {
-        // Create a folder and clone repository into it
-        Files.createDirectory(repoDir);
-        try {
-          repo = cloneRepo(gitDetails.getRepoUrl(), repoDir.toFile());
-        } catch (CheckoutConflictException ex) {
-          repo = cloneRepo(gitDetails.getRepoUrl(), createTempDir());
-        }
-      }
-    } else {
-      // Another thread is already using the existing folder
-      // Must create another temporary one
-      repo = cloneRepo(gitDetails.getRepoUrl(), createTempDir());
-    }
-
-    // Checkout the specific branch or commit ID
-    if (repo != null) {
-      // Create a new local branch if it does not exist and not a commit ID
-      String branchOrCommitId = gitDetails.getBranch();
-      final boolean isId = ObjectId.isId(branchOrCommitId);
-      if (!isId) {
-        branchOrCommitId = "refs/remotes/origin/" + branchOrCommitId;
-      }
-      try {
-        repo.checkout().setName(branchOrCommitId).call();
-      } catch (Exception ex) {
-        // Maybe it was a tag
-        if (!isId && ex instanceof RefNotFoundException) {
-          final String tag = gitDetails.getBranch();
-          try {
-            repo.checkout().setName(tag).call();
-          } catch (Exception ex2) {
-            // Throw the first exception, to keep the same behavior as before.
-            throw ex;
-          }
-        } else {
-          throw ex;
-        }
-      }
+  public Git getRepository(GitDetails gitDetails) throws GitAPIException, IOException {
+    String mirrorName = GitLeaseManager.keyFor(gitDetails.getRepoUrl());
+    try (Git mirror = getMirror(gitDetails, mirrorName)) {
+      ObjectId commitId = resolveCommit(mirror.getRepository(), gitDetails.getBranch());
+      return getWorktree(gitDetails.getRepoUrl(), mirrorName, commitId);
     }
+  }
 
-    return repo;
+  /**
+   * Gets a read-only snapshot of the files of a repository at the given branch, tag or commit ID.
+   * Files are read straight from the mirror, unless the path given in the details lies within a
+   * submodule, in which case a worktree is checked out instead. The snapshot must be closed by the
+   * caller.
+   *
+   * @param gitDetails The details of the Git repository
+   * @return A snapshot of the files at the requested commit
+   * @throws RefNotFoundException If the branch, tag or commit ID does not exist
+   */
+  public CommitSnapshot getSnapshot(GitDetails gitDetails) throws GitAPIException, IOException {
+    String mirrorName = GitLeaseManager.keyFor(gitDetails.getRepoUrl());
+    Git mirror = getMirror(gitDetails, mirrorName);
+    TreeSnapshot snapshot;
+    try {
+      ObjectId commitId = resolveCommit(mirror.getRepository(), gitDetails.getBranch());
+      // Takes ownership of the mirror repository
+      snapshot = new TreeSnapshot(mirror.getRepository(), commitId);
+    } catch (GitAPIException | IOException | RuntimeException ex) {
+      mirror.close();
+      throw ex;
+    }
+
+    String path = CommitSnapshot.normalisePath(gitDetails.getPath());
+    boolean inSubmodule;
+    try {
+      inSubmodule = cloneSubmodules && path != null && snapshot.isInSubmodule(path);
+    } catch (IOException | RuntimeException ex) {
+      snapshot.close();
+      throw ex;
+    }
+    if (inSubmodule) {
+      String commitId = snapshot.getCommitId();
+      snapshot.close();
+      try (Git worktree =
+          getWorktree(gitDetails.getRepoUrl(), mirrorName, ObjectId.fromString(commitId))) {
+        return new WorktreeSnapshot(worktree.getRepository().getWorkTree().toPath(), commitId);
+      }
+    }
+    return snapshot;
   }
 
   /**
@@ -143,16 +206,97 @@ public class GitService {
   }
 
   /**
-   * Gets a set of authors for a path in a given repository
+   * Gets the authors of every path in a repository as of its checked out commit, from a single walk
+   * of the history. The index of each commit is saved in the mirror the first time it is built, so
+   * later calls for the same commit do not walk the history again. Only the most recently used
+   * indexes of each mirror are kept. If the repository is a worktree of a shallow mirror, the
+   * history of the mirror is fetched first.
+   *
+   * @param repo The git repository
+   * @return The authors of each path in the repository
+   * @throws GitAPIException Any API errors which may occur
+   * @throws IOException Errors reading the history of the repository or the saved index
+   */
+  public AuthorshipIndex getAuthorship(Git repo) throws GitAPIException, IOException {
+    Repository repository = repo.getRepository();
+    ObjectId commitId = repository.resolve(Constants.HEAD);
+    if (commitId == null) {
+      throw new IOException("Repository has no commit checked out");
+    }
+    deepenMirror(repository);
+    String repoUrl = getRemoteUrl(repository);
+    if (repoUrl == null) {
+      // Not a worktree of a mirror, so there is nowhere to save the index
+      return AuthorshipIndex.build(repository, commitId);
+    }
+    Path authorshipDir = getMirrorDir(GitLeaseManager.keyFor(repoUrl)).resolve(AUTHORSHIP_DIR);
+    Path indexFile = authorshipDir.resolve(commitId.getName() + ".json");
+    try {
+      touch(indexFile);
+      return AuthorshipIndex.read(indexFile);
+    } catch (NoSuchFileException ex) {
+      // Not built yet, or pruned since
+    }
+
+    // Only one thread walks the history of a commit, the others wait for its index
+    AuthorshipIndex[] built = {null};
+    coalesce(
+        repoUrl,
+        "authorship " + commitId.getName(),
+        () -> {
+          if (!Files.exists(indexFile)) {
+            built[0] = AuthorshipIndex.build(repository, commitId);
+            built[0].write(indexFile);
+            pruneAuthorship(authorshipDir);
+          }
+        });
+    return built[0] != null ? built[0] : AuthorshipIndex.read(indexFile);
+  }
+
+  /**
+   * Deletes the least recently used authorship indexes of a mirror beyond {@link
+   * #AUTHORSHIP_INDEXES_KEPT}, so they do not accumulate as new commits are requested
+   *
+   * @param authorshipDir The directory holding the indexes of the mirror
+   */
+  private void pruneAuthorship(Path authorshipDir) throws IOException {
+    List<Path> indexes;
+    try (Stream<Path> list = Files.list(authorshipDir)) {
+      // Skips the partial files of indexes still being written
+      indexes =
+          list.filter(file -> file.getFileName().toString().endsWith(".json"))
+              .sorted(Comparator.comparing(GitService::lastModified).reversed())
+              .collect(Collectors.toList());
+    }
+    for (Path index :
+        indexes.subList(Math.min(AUTHORSHIP_INDEXES_KEPT, indexes.size()), indexes.size())) {
+      Files.deleteIfExists(index);
+    }
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /**
+   * Gets a set of authors for a path in a given repository. If the repository is a worktree of a
+   * shallow mirror, the history of the mirror is fetched first. Prefer {@link #getAuthorship(Git)}
+   * when the authors of several paths are needed.
    *
    * @param repo The git repository
    * @param path The path to get commits for
    * @return An iterable of commits
    * @throws GitAPIException Any API errors which may occur
+   * @throws IOException Errors fetching the history of the repository
    * @throws URISyntaxException Error constructing mailto link
    */
   public Set<HashableAgent> getAuthors(Git repo, String path)
-      throws GitAPIException, URISyntaxException {
+      throws GitAPIException, IOException, URISyntaxException {
+    deepenMirror(repo.getRepository());
     Iterable<RevCommit> logs = repo.log().addPath(path).call();
     Set<HashableAgent> fileAuthors = new HashSet<>();
     for (RevCommit rev : logs) {
@@ -202,7 +346,458 @@ public class GitService {
   }
 
   /**
-   * Clones a Git repository
+   * Opens the bare mirror of a repository, cloning it if necessary. The mirror is fetched unless
+   * the requested commit ID is already present. Shallow mirrors only fetch the requested ref.
+   *
+   * @param gitDetails The details of the Git repository
+   * @param mirrorName The name of the mirror
+   * @return The git object for the mirror
+   */
+  private Git getMirror(GitDetails gitDetails, String mirrorName)
+      throws GitAPIException, IOException {
+    Path mirrorDir = getMirrorDir(mirrorName);
+    String branchOrCommitId = gitDetails.getBranch();
+    if (!ObjectId.isId(branchOrCommitId) || !hasObject(mirrorDir, branchOrCommitId)) {
+      // Only one thread does each update, the others share its result
+      String repoUrl = gitDetails.getRepoUrl();
+      if (cloneStrategy == CloneStrategy.SHALLOW) {
+        coalesce(
+            repoUrl,
+            "update " + branchOrCommitId,
+            () -> serialise(repoUrl, () -> fetchRef(repoUrl, mirrorDir, branchOrCommitId)));
+      } else {
+        coalesce(repoUrl, "update", () -> updateMirror(repoUrl, mirrorDir));
+      }
+    }
+    touch(mirrorDir);
+    return Git.open(mirrorDir.toFile());
+  }
+
+  /**
+   * Whether an object is already present in a mirror
+   *
+   * @param mirrorDir The directory of the mirror
+   * @param objectId The ID of the object
+   * @return Whether the mirror exists and contains the object
+   */
+  private boolean hasObject(Path mirrorDir, String objectId) throws IOException {
+    if (!Files.isDirectory(mirrorDir)) {
+      return false;
+    }
+    try (Git mirror = Git.open(mirrorDir.toFile())) {
+      return mirror.getRepository().getObjectDatabase().has(ObjectId.fromString(objectId));
+    } catch (RepositoryNotFoundException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Fetches into the mirror of a repository, or clones it if it does not exist yet
+   *
+   * @param repoUrl The url of the Git repository
+   * @param mirrorDir The directory of the mirror
+   */
+  private void updateMirror(String repoUrl, Path mirrorDir) throws GitAPIException, IOException {
+    if (Files.isDirectory(mirrorDir)) {
+      try (Git mirror = Git.open(mirrorDir.toFile())) {
+        mirror.fetch().setTagOpt(TagOpt.FETCH_TAGS).setRemoveDeletedRefs(true).call();
+        return;
+      } catch (RepositoryNotFoundException ex) {
+        logger.warn("Discarding unreadable mirror " + mirrorDir + " for " + repoUrl);
+        FileUtils.deleteDirectory(mirrorDir.toFile());
+      }
+    }
+
+    Files.createDirectories(mirrorDir.getParent());
+    try (Git mirror = cloneRepo(repoUrl, mirrorDir.toFile())) {
+      logger.info("Cloned " + repoUrl + " into " + mirrorDir);
+    } catch (GitAPIException | RuntimeException ex) {
+      // Do not leave a partial clone behind to be picked up by the next request
+      FileUtils.deleteQuietly(mirrorDir.toFile());
+      throw ex;
+    }
+  }
+
+  /**
+   * Fetches a single branch, tag or commit ID into a shallow mirror, creating the mirror if it does
+   * not exist yet. Only the requested commit is fetched unless the mirror already has the history.
+   * Anything which cannot be fetched on its own, such as an abbreviated commit ID, causes every
+   * branch to be fetched with its history instead.
+   *
+   * @param repoUrl The url of the Git repository
+   * @param mirrorDir The directory of the mirror
+   * @param branchOrCommitId The branch, tag or commit ID
+   */
+  private void fetchRef(String repoUrl, Path mirrorDir, String branchOrCommitId)
+      throws GitAPIException, IOException {
+    boolean created = false;
+    if (Files.isDirectory(mirrorDir) && !isRepository(mirrorDir)) {
+      logger.warn("Discarding unreadable mirror " + mirrorDir + " for " + repoUrl);
+      FileUtils.deleteDirectory(mirrorDir.toFile());
+    }
+    if (!Files.isDirectory(mirrorDir)) {
+      Files.createDirectories(mirrorDir.getParent());
+      initMirror(repoUrl, mirrorDir);
+      created = true;
+    }
+
+    try (Git mirror = Git.open(mirrorDir.toFile())) {
+      boolean shallow = created || isShallow(mirror.getRepository());
+      RefSpec refSpec = findRefSpec(mirror, branchOrCommitId);
+      if (refSpec != null) {
+        FetchCommand fetch = mirror.fetch().setRefSpecs(refSpec).setTagOpt(TagOpt.NO_TAGS);
+        if (shallow) {
+          fetch.setDepth(1);
+        }
+        try {
+          fetch.call();
+          if (created) {
+            logger.info("Fetched " + branchOrCommitId + " of " + repoUrl + " into " + mirrorDir);
+          }
+          return;
+        } catch (TransportException ex) {
+          // Not every server allows commits to be fetched by ID
+          logger.info("Could not fetch " + branchOrCommitId + " of " + repoUrl + " on its own");
+        }
+      }
+      mirror
+          .fetch()
+          .setRefSpecs(ALL_BRANCHES)
+          .setTagOpt(TagOpt.FETCH_TAGS)
+          .setUnshallow(isShallow(mirror.getRepository()))
+          .call();
+    } catch (GitAPIException | IOException | RuntimeException ex) {
+      if (created) {
+        // Do not leave an empty mirror behind to be picked up by the next request
+        FileUtils.deleteQuietly(mirrorDir.toFile());
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Finds the ref spec fetching a branch, tag or commit ID on its own into a shallow mirror
+   *
+   * @param mirror The shallow mirror
+   * @param branchOrCommitId The branch, tag or commit ID
+   * @return The ref spec, or null if the remote has no such branch or tag
+   */
+  private RefSpec findRefSpec(Git mirror, String branchOrCommitId) throws GitAPIException {
+    if (ObjectId.isId(branchOrCommitId)) {
+      return new RefSpec("+" + branchOrCommitId + ":" + R_COMMITS + branchOrCommitId);
+    }
+    Map<String, Ref> remoteRefs =
+        mirror.lsRemote().setRemote(Constants.DEFAULT_REMOTE_NAME).callAsMap();
+    for (String name :
+        List.of(Constants.R_HEADS + branchOrCommitId, Constants.R_TAGS + branchOrCommitId)) {
+      if (remoteRefs.containsKey(name)) {
+        return new RefSpec("+" + name + ":" + name);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the url of the repository a worktree was checked out from
+   *
+   * @param worktree The worktree repository
+   * @return The url, or null if the repository is not a worktree of a mirror
+   */
+  private static String getRemoteUrl(Repository worktree) {
+    return worktree
+        .getConfig()
+        .getString(
+            ConfigConstants.CONFIG_REMOTE_SECTION,
+            Constants.DEFAULT_REMOTE_NAME,
+            ConfigConstants.CONFIG_KEY_URL);
+  }
+
+  /**
+   * Fetches the history of the mirror a worktree borrows its objects from, if it is shallow
+   *
+   * @param worktree The worktree repository
+   */
+  private void deepenMirror(Repository worktree) throws GitAPIException, IOException {
+    if (cloneStrategy != CloneStrategy.SHALLOW) {
+      return;
+    }
+    String repoUrl = getRemoteUrl(worktree);
+    if (repoUrl == null) {
+      return;
+    }
+    Path mirrorDir = getMirrorDir(GitLeaseManager.keyFor(repoUrl));
+    if (!Files.exists(mirrorDir.resolve(Constants.SHALLOW))) {
+      return;
+    }
+    coalesce(
+        repoUrl,
+        "deepen",
+        () ->
+            serialise(
+                repoUrl,
+                () -> {
+                  try (Git mirror = Git.open(mirrorDir.toFile())) {
+                    if (!isShallow(mirror.getRepository())) {
+                      return;
+                    }
+                    // Refetch everything the mirror holds, this time with its history
+                    List<RefSpec> refSpecs = new ArrayList<>();
+                    for (Ref ref : mirror.getRepository().getRefDatabase().getRefs()) {
+                      String name = ref.getName();
+                      if (name.startsWith(R_COMMITS)) {
+                        refSpecs.add(
+                            new RefSpec("+" + name.substring(R_COMMITS.length()) + ":" + name));
+                      } else if (name.startsWith(Constants.R_REFS)) {
+                        refSpecs.add(new RefSpec("+" + name + ":" + name));
+                      }
+                    }
+                    mirror
+                        .fetch()
+                        .setRefSpecs(refSpecs)
+                        .setTagOpt(TagOpt.NO_TAGS)
+                        .setUnshallow(true)
+                        .call();
+                    logger.info("Fetched the history of " + repoUrl + " into " + mirrorDir);
+                  }
+                }));
+  }
+
+  /**
+   * Creates an empty bare mirror to be fetched into
+   *
+   * @param repoUrl The url of the Git repository
+   * @param mirrorDir The directory of the mirror
+   */
+  private void initMirror(String repoUrl, Path mirrorDir) throws GitAPIException, IOException {
+    try (Git init = Git.init().setBare(true).setDirectory(mirrorDir.toFile()).call()) {
+      StoredConfig config = init.getRepository().getConfig();
+      config.setString(
+          ConfigConstants.CONFIG_REMOTE_SECTION,
+          Constants.DEFAULT_REMOTE_NAME,
+          ConfigConstants.CONFIG_KEY_URL,
+          repoUrl);
+      config.save();
+    }
+  }
+
+  private boolean isRepository(Path directory) throws IOException {
+    try (Git repository = Git.open(directory.toFile())) {
+      return true;
+    } catch (RepositoryNotFoundException ex) {
+      return false;
+    }
+  }
+
+  private boolean isShallow(Repository repository) {
+    return new File(repository.getDirectory(), Constants.SHALLOW).exists();
+  }
+
+  /**
+   * Resolves a branch, tag or (possibly abbreviated) commit ID to a commit in the mirror
+   *
+   * @param mirror The mirror repository
+   * @param branchOrCommitId The branch, tag or commit ID
+   * @return The ID of the commit
+   * @throws RefNotFoundException If nothing matches
+   */
+  private ObjectId resolveCommit(Repository mirror, String branchOrCommitId)
+      throws IOException, RefNotFoundException {
+    List<String> candidates =
+        ObjectId.isId(branchOrCommitId)
+            ? List.of(branchOrCommitId)
+            : List.of(
+                Constants.R_HEADS + branchOrCommitId,
+                Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + branchOrCommitId,
+                Constants.R_TAGS + branchOrCommitId,
+                branchOrCommitId);
+    for (String candidate : candidates) {
+      try {
+        ObjectId commitId = mirror.resolve(candidate + "^{commit}");
+        if (commitId != null) {
+          return commitId;
+        }
+      } catch (RevisionSyntaxException ex) {
+        // Not a valid revision, try the next form
+      }
+    }
+    throw new RefNotFoundException("Ref " + branchOrCommitId + " cannot be resolved");
+  }
+
+  /**
+   * Opens the worktree for a commit, checking it out first if it does not exist yet
+   *
+   * @param repoUrl The url of the Git repository
+   * @param mirrorName The name of the mirror holding the objects
+   * @param commitId The commit to check out
+   * @return The git object for the worktree
+   */
+  private Git getWorktree(String repoUrl, String mirrorName, ObjectId commitId)
+      throws GitAPIException, IOException {
+    Path worktreeDir =
+        gitStorage.resolve(WORKTREES_DIR).resolve(mirrorName + "-" + commitId.getName());
+    Path marker = worktreeDir.resolve(Constants.DOT_GIT).resolve(WORKTREE_COMPLETE_MARKER);
+    if (!Files.exists(marker)) {
+      // Only one thread checks out a commit, the others wait for it
+      coalesce(
+          repoUrl,
+          "checkout " + commitId.getName(),
+          () -> {
+            if (!Files.exists(marker)) {
+              createWorktree(repoUrl, getMirrorDir(mirrorName), worktreeDir, commitId);
+              Files.createFile(marker);
+            }
+          });
+    }
+    touch(worktreeDir);
+    return Git.open(worktreeDir.toFile());
+  }
+
+  /**
+   * Checks out a commit into a new worktree borrowing its objects from the mirror
+   *
+   * @param repoUrl The url of the Git repository
+   * @param mirrorDir The directory of the mirror holding the objects
+   * @param worktreeDir The directory of the worktree
+   * @param commitId The commit to check out
+   */
+  private void createWorktree(String repoUrl, Path mirrorDir, Path worktreeDir, ObjectId commitId)
+      throws GitAPIException, IOException {
+    // Left over from an interrupted checkout
+    if (Files.exists(worktreeDir)) {
+      FileUtils.deleteDirectory(worktreeDir.toFile());
+    }
+    Files.createDirectories(worktreeDir);
+
+    try (Git init = Git.init().setDirectory(worktreeDir.toFile()).call()) {
+      Path alternates =
+          init.getRepository().getDirectory().toPath().resolve("objects/info/alternates");
+      Files.createDirectories(alternates.getParent());
+      Files.writeString(alternates, mirrorDir.resolve("objects").toAbsolutePath() + "\n");
+
+      // Needed to resolve relative submodule URLs
+      StoredConfig config = init.getRepository().getConfig();
+      config.setString(
+          ConfigConstants.CONFIG_REMOTE_SECTION,
+          Constants.DEFAULT_REMOTE_NAME,
+          ConfigConstants.CONFIG_KEY_URL,
+          repoUrl);
+      config.save();
+    }
+
+    // Reopen so the alternates are picked up
+    try (Git worktree = Git.open(worktreeDir.toFile())) {
+      checkoutDetached(worktree.getRepository(), commitId);
+      if (cloneSubmodules) {
+        worktree.submoduleInit().call();
+        worktree.submoduleUpdate().call();
+      }
+    } catch (GitAPIException | IOException | RuntimeException ex) {
+      FileUtils.deleteQuietly(worktreeDir.toFile());
+      throw ex;
+    }
+  }
+
+  /**
+   * Checks out a commit into an empty worktree, detaching HEAD at it
+   *
+   * @param repository The worktree repository
+   * @param commitId The commit to check out
+   */
+  private void checkoutDetached(Repository repository, ObjectId commitId) throws IOException {
+    try (RevWalk revWalk = new RevWalk(repository)) {
+      RevCommit commit = revWalk.parseCommit(commitId);
+      DirCache dirCache = repository.lockDirCache();
+      try {
+        DirCacheCheckout checkout = new DirCacheCheckout(repository, dirCache, commit.getTree());
+        checkout.setFailOnConflict(true);
+        checkout.checkout();
+      } finally {
+        dirCache.unlock();
+      }
+      RefUpdate head = repository.updateRef(Constants.HEAD, true);
+      head.setNewObjectId(commit);
+      head.forceUpdate();
+    }
+  }
+
+  /**
+   * Gets the key of the repository a mirror or worktree directory belongs to
+   *
+   * @param directoryName The name of a directory within the mirrors or worktrees directory
+   * @return The repository key, see {@link GitLeaseManager#keyFor(String)}
+   */
+  public static String getRepositoryKey(String directoryName) {
+    // Both are named starting with the SHA-1 hex of the normalised url
+    return directoryName.substring(0, Math.min(40, directoryName.length()));
+  }
+
+  private Path getMirrorDir(String mirrorName) {
+    return gitStorage.resolve(MIRRORS_DIR).resolve(mirrorName + Constants.DOT_GIT_EXT);
+  }
+
+  /**
+   * Runs an operation on a repository through the lease manager, so concurrent identical operations
+   * are only run once
+   *
+   * @param repoUrl The url of the Git repository
+   * @param operation Identifies the operation within the repository
+   * @param call The operation
+   */
+  private void coalesce(String repoUrl, String operation, GitOperation call)
+      throws GitAPIException, IOException {
+    try {
+      gitLeaseManager.coalesce(
+          repoUrl,
+          operation,
+          () -> {
+            call.run();
+            return null;
+          });
+    } catch (GitAPIException | IOException | RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * Runs an update of a repository through the lease manager, so it does not overlap with other
+   * updates of the same repository
+   *
+   * @param repoUrl The url of the Git repository
+   * @param call The update
+   */
+  private void serialise(String repoUrl, GitOperation call) throws GitAPIException, IOException {
+    try {
+      gitLeaseManager.serialise(
+          repoUrl,
+          () -> {
+            call.run();
+            return null;
+          });
+    } catch (GitAPIException | IOException | RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /** An operation on a local copy of a repository */
+  @FunctionalInterface
+  private interface GitOperation {
+    void run() throws GitAPIException, IOException;
+  }
+
+  /**
+   * Marks a mirror, worktree or authorship index as recently used, so the scheduled cleanup or
+   * pruning leaves it alone
+   */
+  private void touch(Path directory) throws IOException {
+    Files.setLastModifiedTime(directory, FileTime.from(Instant.now()));
+  }
+
+  /**
+   * Clones a Git repository as a bare mirror
    *
    * @param repoUrl the url of the Git repository
    * @param directory the directory to clone the repo into
@@ -211,16 +806,11 @@ public class GitService {
    */
   protected Git cloneRepo(String repoUrl, File directory) throws GitAPIException {
     return Git.cloneRepository()
-        .setCloneSubmodules(cloneSubmodules)
         .setURI(repoUrl)
         .setDirectory(directory)
+        .setBare(true)
         .setCloneAllBranches(true)
+        .setTagOption(TagOpt.FETCH_TAGS)
         .call();
   }
-
-  protected File createTempDir() throws IOException {
-    Path repoDir = gitStorage.resolve(String.valueOf(UUID.randomUUID()));
-    Files.createDirectory(repoDir);
-    return repoDir.toFile();
-  }
 }
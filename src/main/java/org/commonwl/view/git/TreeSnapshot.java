@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+
+/**
+ * Snapshot reading files straight from the object database of a repository, without checking
+ * anything out. Closing the snapshot also closes the repository.
+ */
+class TreeSnapshot extends CommitSnapshot {
+
+  private final Repository repository;
+  private final ObjectReader reader;
+  private final RevCommit commit;
+
+  TreeSnapshot(Repository repository, ObjectId commitId) throws IOException {
+    super(commitId.getName());
+    this.repository = repository;
+    this.reader = repository.newObjectReader();
+    try (RevWalk revWalk = new RevWalk(reader)) {
+      this.commit = revWalk.parseCommit(commitId);
+    } catch (IOException | RuntimeException ex) {
+      reader.close();
+      throw ex;
+    }
+  }
+
+  @Override
+  public boolean isFile(String path) throws IOException {
+    try (TreeWalk entry = find(path)) {
+      return entry != null && isFileMode(entry.getRawMode(0));
+    }
+  }
+
+  @Override
+  public boolean isDirectory(String path) throws IOException {
+    if (path.isEmpty()) {
+      return true;
+    }
+    try (TreeWalk entry = find(path)) {
+      return entry != null && entry.isSubtree();
+    }
+  }
+
+  @Override
+  public long getSize(String path) throws IOException {
+    return reader.getObjectSize(findFile(path), Constants.OBJ_BLOB);
+  }
+
+  @Override
+  public InputStream open(String path) throws IOException {
+    return reader.open(findFile(path), Constants.OBJ_BLOB).openStream();
+  }
+
+  @Override
+  public List<String> listFiles(String directory) throws IOException {
+    List<String> files = new ArrayList<>();
+    try (TreeWalk walk = new TreeWalk(reader)) {
+      if (directory.isEmpty()) {
+        walk.addTree(commit.getTree());
+      } else {
+        try (TreeWalk entry = find(directory)) {
+          if (entry == null || !entry.isSubtree()) {
+            return files;
+          }
+          walk.addTree(entry.getObjectId(0));
+        }
+      }
+      // Tree entries are already sorted by name
+      while (walk.next()) {
+        if (isFileMode(walk.getRawMode(0))) {
+          files.add(walk.getNameString());
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Whether a path lies within a submodule, whose files are not in this object database
+   *
+   * @param path The path within the repository
+   * @return Whether any parent of the path, or the path itself, is a submodule
+   */
+  boolean isInSubmodule(String path) throws IOException {
+    if (path.isEmpty()) {
+      return false;
+    }
+    try (TreeWalk walk = new TreeWalk(reader)) {
+      walk.addTree(commit.getTree());
+      walk.setFilter(PathFilter.create(path));
+      while (walk.next()) {
+        if ((walk.getRawMode(0) & FileMode.TYPE_MASK) == FileMode.TYPE_GITLINK) {
+          return true;
+        }
+        if (walk.isSubtree()) {
+          walk.enterSubtree();
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void close() {
+    reader.close();
+    repository.close();
+  }
+
+  /**
+   * Finds the tree entry for a path
+   *
+   * @param path The path within the repository, not the root
+   * @return A tree walk positioned at the entry, or null if it does not exist
+   */
+  private TreeWalk find(String path) throws IOException {
+    if (path.isEmpty()) {
+      return null;
+    }
+    return TreeWalk.forPath(reader, path, commit.getTree());
+  }
+
+  private ObjectId findFile(String path) throws IOException {
+    try (TreeWalk entry = find(path)) {
+      if (entry == null || !isFileMode(entry.getRawMode(0))) {
+        throw new FileNotFoundException(path + " is not a file in commit " + getCommitId());
+      }
+      return entry.getObjectId(0);
+    }
+  }
+
+  private static boolean isFileMode(int rawMode) {
+    // Covers both regular and executable files, but not symbolic links
+    return (rawMode & FileMode.TYPE_MASK) == FileMode.TYPE_FILE;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Snapshot reading files from a checked out worktree. Used when the files are not all in a single
+ * object database, e.g. within submodules.
+ */
+public class WorktreeSnapshot extends CommitSnapshot {
+
+  private final Path workTree;
+
+  /**
+   * Creates a snapshot over a checked out directory
+   *
+   * @param workTree The root of the checked out repository
+   * @param commitId The commit ID checked out into the directory
+   */
+  public WorktreeSnapshot(Path workTree, String commitId) {
+    super(commitId);
+    this.workTree = workTree.normalize().toAbsolutePath();
+  }
+
+  @Override
+  public boolean isFile(String path) {
+    return Files.isRegularFile(resolve(path), LinkOption.NOFOLLOW_LINKS);
+  }
+
+  @Override
+  public boolean isDirectory(String path) {
+    return Files.isDirectory(resolve(path));
+  }
+
+  @Override
+  public long getSize(String path) throws IOException {
+    return Files.size(resolveFile(path));
+  }
+
+  @Override
+  public InputStream open(String path) throws IOException {
+    return Files.newInputStream(resolveFile(path));
+  }
+
+  @Override
+  public List<String> listFiles(String directory) throws IOException {
+    List<String> files = new ArrayList<>();
+    Path dir = resolve(directory);
+    if (Files.isDirectory(dir)) {
+      try (Stream<Path> entries = Files.list(dir)) {
+        entries
+            .filter(entry -> Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS))
+            .map(entry -> entry.getFileName().toString())
+            .sorted()
+            .forEach(files::add);
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public void close() {
+    // Nothing to release, the worktree is shared
+  }
+
+  private Path resolve(String path) {
+    return path.isEmpty() ? workTree : workTree.resolve(path);
+  }
+
+  private Path resolveFile(String path) throws FileNotFoundException {
+    Path file = resolve(path);
+    if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+      throw new FileNotFoundException(path + " is not a file in commit " + getCommitId());
+    }
+    return file;
+  }
+}
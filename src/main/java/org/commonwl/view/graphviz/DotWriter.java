@@ -26,12 +26,68 @@ import java.io.Writer;
 public abstract class DotWriter {
 
   protected static final String EOL = System.getProperty("line.separator");
-  private Writer writer;
+
+  /**
+   * Style of the graph based on the Apache Taverna workflow management system, joined once as it is
+   * identical for every graph
+   */
+  private static final String PREAMBLE =
+      String.join(
+              EOL,
+              "digraph workflow {",
+              // Overall graph style
+              "  graph [",
+              "    bgcolor = \"#eeeeee\"",
+              "    color = \"black\"",
+              "    fontsize = \"10\"",
+              "    labeljust = \"left\"",
+              "    clusterrank = \"local\"",
+              "    ranksep = \"0.22\"",
+              "    nodesep = \"0.05\"",
+              "  ]",
+              // Overall node style
+              "  node [",
+              "    fontname = \"Helvetica\"",
+              "    fontsize = \"10\"",
+              "    fontcolor = \"black\"",
+              "    shape = \"record\"",
+              "    height = \"0\"",
+              "    width = \"0\"",
+              "    color = \"black\"",
+              "    fillcolor = \"lightgoldenrodyellow\"",
+              "    style = \"filled\"",
+              "  ];",
+              // Overall edge style
+              "  edge [",
+              "    fontname=\"Helvetica\"",
+              "    fontsize=\"8\"",
+              "    fontcolor=\"black\"",
+              "    color=\"black\"",
+              "    arrowsize=\"0.7\"",
+              "  ];")
+          + EOL;
+
+  /** Rough number of characters written per node or edge, used to size output buffers */
+  private static final int CHARS_PER_ELEMENT = 96;
+
+  private final Writer writer;
+  private final StringBuilder lineBuffer = new StringBuilder(128);
 
   public DotWriter(Writer writer) {
     this.writer = writer;
   }
 
+  /**
+   * Estimate the size of the DOT source for a graph so the buffer it is written to can be allocated
+   * once rather than grown repeatedly
+   *
+   * @param elements The number of inputs, outputs and steps in the graph
+   * @return A suitable initial capacity in characters
+   */
+  public static int sizeHint(int elements) {
+    return PREAMBLE.length() + CHARS_PER_ELEMENT * Math.max(elements, 0);
+  }
+
   /**
    * Write the start of the graph with styling based on the Apache Taverna workflow management
    * system
@@ -39,42 +95,7 @@ public abstract class DotWriter {
    * @throws IOException Any errors in writing which may have occurred
    */
   protected void writePreamble() throws IOException {
-
-    // Begin graph
-    writeLine("digraph workflow {");
-
-    // Overall graph style
-    writeLine("  graph [");
-    writeLine("    bgcolor = \"#eeeeee\"");
-    writeLine("    color = \"black\"");
-    writeLine("    fontsize = \"10\"");
-    writeLine("    labeljust = \"left\"");
-    writeLine("    clusterrank = \"local\"");
-    writeLine("    ranksep = \"0.22\"");
-    writeLine("    nodesep = \"0.05\"");
-    writeLine("  ]");
-
-    // Overall node style
-    writeLine("  node [");
-    writeLine("    fontname = \"Helvetica\"");
-    writeLine("    fontsize = \"10\"");
-    writeLine("    fontcolor = \"black\"");
-    writeLine("    shape = \"record\"");
-    writeLine("    height = \"0\"");
-    writeLine("    width = \"0\"");
-    writeLine("    color = \"black\"");
-    writeLine("    fillcolor = \"lightgoldenrodyellow\"");
-    writeLine("    style = \"filled\"");
-    writeLine("  ];");
-
-    // Overall edge style
-    writeLine("  edge [");
-    writeLine("    fontname=\"Helvetica\"");
-    writeLine("    fontsize=\"8\"");
-    writeLine("    fontcolor=\"black\"");
-    writeLine("    color=\"black\"");
-    writeLine("    arrowsize=\"0.7\"");
-    writeLine("  ];");
+    writer.write(PREAMBLE);
   }
 
   /**
@@ -84,7 +105,27 @@ public abstract class DotWriter {
    * @throws IOException Any errors in writing which may have occurred
    */
   protected void writeLine(String line) throws IOException {
-    writer.write(line);
-    writer.write(EOL);
+    writeLine(startLine().append(line));
+  }
+
+  /**
+   * Start building a line in a buffer reused for every line of the graph, so lines made of several
+   * identifiers and labels do not each allocate intermediate strings
+   *
+   * @return The cleared line buffer
+   */
+  protected StringBuilder startLine() {
+    lineBuffer.setLength(0);
+    return lineBuffer;
+  }
+
+  /**
+   * Write a line built with {@link #startLine()} using the Writer
+   *
+   * @param line The line buffer to be written
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  protected void writeLine(StringBuilder line) throws IOException {
+    writer.append(line.append(EOL));
   }
 }
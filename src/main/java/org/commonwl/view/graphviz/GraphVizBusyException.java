@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.graphviz;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/** Exception thrown when a graph cannot be rendered because too many are already rendering */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class GraphVizBusyException extends RuntimeException {
+
+  private final int retryAfterSeconds;
+
+  public GraphVizBusyException(int retryAfterSeconds) {
+    super("Too many graphs are being rendered, please try again later");
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * Get the suggested delay before retrying the render
+   *
+   * @return The delay in seconds
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
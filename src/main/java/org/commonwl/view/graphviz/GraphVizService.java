@@ -19,28 +19,153 @@
 
 package org.commonwl.view.graphviz;
 
-import com.github.jabbalaci.graphviz.GraphViz;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileAlreadyExistsException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.PreDestroy;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.commonwl.view.util.SingleFlight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
-/** Handles Graphviz rendering from DOT generated by RDFDotWriter */
+/**
+ * Handles Graphviz rendering from DOT generated by RDFDotWriter
+ *
+ * <p>Rendered graphs are cached on disk by a hash of their DOT source and format, so identical
+ * graphs from different commits, branches or packed workflows are only rendered once. The cache is
+ * limited in size, evicting the least recently used graphs first.
+ *
+ * <p>Graphviz runs on a bounded pool of render threads, with a limit on the time each render may
+ * take and the size of its output. Once the pool and its queue are full, further renders are
+ * rejected with a {@link GraphVizBusyException}.
+ */
 @Service
 public class GraphVizService {
 
+  /** Directory within the graphviz storage holding the render cache */
+  public static final String CACHE_DIRECTORY = "render-cache";
+
+  /** Changed whenever the way graphs are rendered changes, so older renders are not reused */
+  public static final String RENDER_VERSION = "1";
+
+  // Directory within the temporary directory of a render which its outputs are written to
+  private static final String OUTPUT_DIRECTORY = "out";
+
+  // Formats pre-rendered together from one layout, as they are all shown for a workflow
+  private static final List<String> SHARED_LAYOUT_FORMATS = List.of("xdot", "png", "svg", "json");
+
+  // Text formats also stored compressed, with the extension of their compressed copies
+  private static final Set<String> COMPRESSED_FORMATS = Set.of("svg", "xdot", "json");
+  private static final String GZIP_EXTENSION = ".gz";
+
+  // Resolution of SVG graphs, three steps down from the default of 96 for bitmaps
+  private static final int SVG_DPI = 70;
+
+  // How often a running Graphviz process is checked against its budgets
+  private static final long POLL_MILLIS = 50;
+
+  // Longest part of the output of a failed Graphviz process included in exceptions
+  private static final int MAX_ERROR_LENGTH = 1000;
+
+  // Suggested delay before retrying a render rejected because the pool is full
+  private static final int RETRY_AFTER_SECONDS = 10;
+
+  // Used when not configured
+  private static final long DEFAULT_CACHE_MAX_SIZE_MB = 1024;
+  private static final int DEFAULT_MAX_CONCURRENT = 2;
+  private static final int DEFAULT_QUEUE_CAPACITY = 20;
+  private static final long DEFAULT_RENDER_TIMEOUT_SECONDS = 60;
+  private static final long DEFAULT_MAX_OUTPUT_SIZE_MB = 50;
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
   private final String graphvizStorage;
+  private final Path cacheDirectory;
+  private final long cacheMaxSize;
+  private final SingleFlight<String, Void> renders = new SingleFlight<>();
+  private final ThreadPoolExecutor renderExecutor;
+  private final long renderTimeoutNanos;
+  private final long maxOutputSize;
+
+  // Size of each cached file by name, least recently used first
+  private final LinkedHashMap<String, Long> cacheEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long cacheSize = 0;
+  private boolean cacheLoaded = false;
+
+  private final CacheStatistics cacheStatistics = new CacheStatistics();
+
+  public GraphVizService(String graphvizStorage) {
+    this(graphvizStorage, DEFAULT_CACHE_MAX_SIZE_MB);
+  }
+
+  public GraphVizService(String graphvizStorage, long cacheMaxSizeMB) {
+    this(
+        graphvizStorage,
+        cacheMaxSizeMB,
+        DEFAULT_MAX_CONCURRENT,
+        DEFAULT_QUEUE_CAPACITY,
+        DEFAULT_RENDER_TIMEOUT_SECONDS,
+        DEFAULT_MAX_OUTPUT_SIZE_MB);
+  }
 
   @Autowired
-  public GraphVizService(@Value("${graphvizStorage}") String graphvizStorage) {
+  public GraphVizService(
+      @Value("${graphvizStorage}") String graphvizStorage,
+      @Value("${graphviz.cacheMaxSizeMB}") long cacheMaxSizeMB,
+      @Value("${graphviz.maxConcurrent}") int maxConcurrent,
+      @Value("${graphviz.queueCapacity}") int queueCapacity,
+      @Value("${graphviz.renderTimeoutSeconds}") long renderTimeoutSeconds,
+      @Value("${graphviz.maxOutputSizeMB}") long maxOutputSizeMB) {
     this.graphvizStorage = graphvizStorage;
+    this.cacheDirectory = Paths.get(graphvizStorage).resolve(CACHE_DIRECTORY);
+    this.cacheMaxSize = cacheMaxSizeMB * 1024 * 1024;
+    this.renderTimeoutNanos = TimeUnit.SECONDS.toNanos(renderTimeoutSeconds);
+    this.maxOutputSize = maxOutputSizeMB * 1024 * 1024;
+    BlockingQueue<Runnable> queue =
+        queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>();
+    this.renderExecutor =
+        new ThreadPoolExecutor(
+            maxConcurrent,
+            maxConcurrent,
+            0L,
+            TimeUnit.MILLISECONDS,
+            queue,
+            new CustomizableThreadFactory("graphviz-"));
   }
 
   /**
@@ -49,48 +174,140 @@ public class GraphVizService {
    * @param dot The DOT source
    * @param format The format for the graph to be generated in, e.g. "svg", "png", "dot"
    * @return An InputStream containing the graph in desired image format.
+   * @throws IOException if the graph could not be rendered or cached
+   * @throws GraphVizBusyException if too many graphs are being rendered
    */
-  public InputStream getGraphStream(String dot, String format) {
-    // Generate graphviz image if it does not already exist
-    GraphViz gv = new GraphViz();
+  public InputStream getGraphStream(String dot, String format) throws IOException {
+    return Files.newInputStream(getGraphPath(dot, format));
+  }
 
-    // Different DPI and transparency for svg files
-    if (format.equals("svg")) {
-      gv.decreaseDpi();
-      gv.decreaseDpi();
-      gv.decreaseDpi();
-      dot = dot.replace("bgcolor = \"#eeeeee\"", "bgcolor = \"transparent\"");
+  /**
+   * Generate a graph in a specified format using GraphViz, or get it from the cache. Only the
+   * requested format is rendered, as graphs such as those with nested workflows expanded may never
+   * be requested in any other format.
+   *
+   * @param dot The DOT source
+   * @param format The format for the graph to be generated in, e.g. "svg", "png", "xdot", or "json"
+   *     for the positions of its nodes, edges and clusters
+   * @return The file containing the graph
+   * @throws IOException if rendering failed or exceeded its budgets, or writing failed
+   * @throws GraphVizBusyException if too many graphs are being rendered
+   */
+  public Path getGraphPath(String dot, String format) throws IOException {
+    String fileName = getCacheFileName(dot, format);
+    Path out = cacheDirectory.resolve(fileName);
+    if (touch(fileName, out)) {
+      cacheStatistics.hits.increment();
+      return out;
     }
+    cacheStatistics.misses.increment();
+    renderMissing(dot, List.of(format));
+    return out;
+  }
 
-    byte[] dotBytes = gv.getGraph(dot, format, "dot");
-    return new ByteArrayInputStream(dotBytes);
+  /**
+   * Get the name a graph is cached under without rendering it. As it is derived from the normalised
+   * DOT source, it changes whenever the graph does, so it can identify the graph to clients.
+   *
+   * @param dot The DOT source
+   * @param format The format for the graph
+   * @param compressed Whether the name of the gzip compressed graph is wanted
+   * @return The file name of the graph, as returned by {@link #getGraphPath(String, String)} or
+   *     {@link #getCompressedGraphPath(String, String)}
+   */
+  public String getGraphFileName(String dot, String format, boolean compressed) {
+    String fileName = getCacheFileName(dot, format);
+    return compressed ? fileName + GZIP_EXTENSION : fileName;
   }
 
   /**
-   * Generate a graph in a specified format using GraphViz
+   * Get a gzip compressed graph in a text format, rendering and compressing it if it is not cached.
+   * Text formats are compressed once when they are rendered, so they can be served compressed
+   * without compressing them again for each request.
    *
-   * @param fileName The relative name of the file to be generated in the graphvizStorage directory
    * @param dot The DOT source
-   * @param format The format for the graph to be generated in, e.g. "svg", "png", "dot"
-   * @return The file containing the graph
-   * @throws IOException if the writing failed (e.g. out of disk space)
+   * @param format The format for the graph, one of those for which {@link #isCompressible(String)}
+   * @return The file containing the compressed graph
+   * @throws IOException if rendering failed or exceeded its budgets, or writing failed
+   * @throws GraphVizBusyException if too many graphs are being rendered
    */
-  public Path getGraphPath(String fileName, String dot, String format) throws IOException {
-    // Generate graphviz image if it does not already exist
-    Path out = Paths.get(graphvizStorage).resolve(fileName);
-    try {
-      if (!Files.exists(out)) {
-        Files.copy(getGraphStream(dot, format), out);
-      }
-    } catch (FileAlreadyExistsException ex) {
+  public Path getCompressedGraphPath(String dot, String format) throws IOException {
+    if (!isCompressible(format)) {
+      throw new IllegalArgumentException(format + " graphs are not stored compressed");
+    }
+    String fileName = getCacheFileName(dot, format) + GZIP_EXTENSION;
+    Path out = cacheDirectory.resolve(fileName);
+    if (touch(fileName, out)) {
+      cacheStatistics.hits.increment();
       return out;
     }
+
+    // Compressed along with the render, unless the graph was cached before or evicted since
+    Path graph = getGraphPath(dot, format);
+    renders.execute(
+        fileName,
+        () -> {
+          if (!touch(fileName, out)) {
+            added(Map.of(fileName, compress(graph.getFileName().toString())));
+          }
+          return null;
+        });
     return out;
   }
 
   /**
-   * Delete the cache of workflow images for a workflow TODO: Make this more dynamic in some way,
-   * either store in workflow object or clear folder
+   * Whether graphs in a format are also stored gzip compressed
+   *
+   * @param format The format for the graph
+   * @return Whether the format is text which compresses well
+   */
+  public static boolean isCompressible(String format) {
+    return COMPRESSED_FORMATS.contains(format);
+  }
+
+  /**
+   * Render the formats shown for a workflow, PNG, SVG, xdot and the JSON layout, into the cache
+   * ahead of the first request for them
+   *
+   * @param dot The DOT source
+   * @throws IOException if rendering failed or exceeded its budgets, or writing failed
+   * @throws GraphVizBusyException if too many graphs are being rendered
+   */
+  public void preRender(String dot) throws IOException {
+    renderMissing(dot, SHARED_LAYOUT_FORMATS);
+  }
+
+  /**
+   * Renders the formats of a graph which are not cached yet, together from one layout. Concurrent
+   * calls for the same graph and formats wait for a single render.
+   *
+   * @param dot The DOT source
+   * @param formats The formats for the graph
+   * @throws IOException if rendering failed or exceeded its budgets, or writing failed
+   * @throws GraphVizBusyException if too many graphs are being rendered
+   */
+  private void renderMissing(String dot, List<String> formats) throws IOException {
+    renders.execute(
+        getCacheFileName(dot, String.join(",", formats)),
+        () -> {
+          // Another caller may have just rendered them
+          List<String> missing = new ArrayList<>();
+          for (String format : formats) {
+            String fileName = getCacheFileName(dot, format);
+            if (!touch(fileName, cacheDirectory.resolve(fileName))) {
+              missing.add(format);
+            }
+          }
+          if (!missing.isEmpty()) {
+            awaitRender(dot, missing);
+          }
+          return null;
+        });
+  }
+
+  /**
+   * Delete the images of a workflow cached under its ID by earlier versions. Graphs are now cached
+   * by their content, and are evicted when the cache is full.
    *
    * @param workflowID The ID of the workflow used for assuming file locations
    */
@@ -102,4 +319,458 @@ public class GraphVizService {
     File graphvizXdot = new File(graphvizStorage + "/" + workflowID + ".dot");
     graphvizXdot.delete();
   }
+
+  /**
+   * Get the statistics of the render cache
+   *
+   * @return The hits, misses and evictions of the cache since startup
+   */
+  public CacheStatistics getCacheStatistics() {
+    return cacheStatistics;
+  }
+
+  /** Stops the render threads, killing any Graphviz processes */
+  @PreDestroy
+  public void shutdown() {
+    renderExecutor.shutdownNow();
+  }
+
+  /**
+   * Renders a graph on the render pool and waits for it
+   *
+   * @param dot The DOT source
+   * @param formats The formats to render
+   * @throws GraphVizBusyException If the pool and its queue are full
+   */
+  private void awaitRender(String dot, List<String> formats) throws IOException {
+    Future<?> task;
+    try {
+      task =
+          renderExecutor.submit(
+              () -> {
+                long deadline = System.nanoTime() + renderTimeoutNanos;
+                Map<String, Long> rendered = new HashMap<>();
+                try {
+                  render(dot, formats, deadline, rendered);
+                } finally {
+                  added(rendered);
+                }
+                return null;
+              });
+    } catch (RejectedExecutionException ex) {
+      throw new GraphVizBusyException(RETRY_AFTER_SECONDS);
+    }
+    try {
+      task.get();
+    } catch (InterruptedException ex) {
+      task.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a graph to render", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Could not render graph", cause);
+    }
+  }
+
+  /**
+   * Renders a graph in several formats into the cache directory. Where possible the layout is
+   * computed once by dot, which writes xdot, PNG and JSON in the same run, and SVG is drawn from
+   * the positions in the xdot by neato. Otherwise each format is laid out separately.
+   *
+   * @param dot The DOT source
+   * @param formats The formats to render
+   * @param deadline The {@link System#nanoTime()} by which rendering must finish
+   * @param rendered Receives the size of each file added to the cache directory, by name
+   */
+  private void render(String dot, List<String> formats, long deadline, Map<String, Long> rendered)
+      throws IOException {
+    Files.createDirectories(cacheDirectory);
+    Path workDirectory = Files.createTempDirectory(cacheDirectory, "render");
+    try {
+      Path source = workDirectory.resolve("graph.gv");
+      Path outDirectory = Files.createDirectory(workDirectory.resolve(OUTPUT_DIRECTORY));
+      Files.writeString(source, dot, StandardCharsets.UTF_8);
+      if (formats.size() > 1 && SHARED_LAYOUT_FORMATS.containsAll(formats)) {
+        try {
+          renderFromSingleLayout(dot, source, formats, workDirectory, deadline, rendered);
+          return;
+        } catch (RenderLimitException ex) {
+          throw ex;
+        } catch (IOException ex) {
+          logger.warn("Could not render graph from a single layout, rendering each format", ex);
+          FileUtils.cleanDirectory(outDirectory.toFile());
+        }
+      }
+      for (String format : formats) {
+        Path out = outDirectory.resolve("graph." + format);
+        List<String> command =
+            new ArrayList<>(List.of("dot", "-T" + outputType(format), "-o", out.toString()));
+        if (format.equals("svg")) {
+          // Different DPI and transparency for svg files
+          Path svgSource = workDirectory.resolve("graph-svg.gv");
+          Files.writeString(
+              svgSource,
+              dot.replace("bgcolor = \"#eeeeee\"", "bgcolor = \"transparent\""),
+              StandardCharsets.UTF_8);
+          command.add("-Gdpi=" + SVG_DPI);
+          command.add(svgSource.toString());
+        } else {
+          command.add(source.toString());
+        }
+        runGraphviz(command, outDirectory, deadline);
+        storeRendered(dot, format, out, rendered);
+      }
+    } finally {
+      FileUtils.deleteQuietly(workDirectory.toFile());
+    }
+  }
+
+  /**
+   * Renders a graph in several formats from a single layout
+   *
+   * @param dot The DOT source
+   * @param source The file containing the DOT source
+   * @param formats The formats to render, from {@link #SHARED_LAYOUT_FORMATS}
+   * @param workDirectory A temporary directory with the output directory of the renderers
+   * @param deadline The {@link System#nanoTime()} by which rendering must finish
+   * @param rendered Receives the size of each file added to the cache directory, by name
+   */
+  private void renderFromSingleLayout(
+      String dot,
+      Path source,
+      List<String> formats,
+      Path workDirectory,
+      long deadline,
+      Map<String, Long> rendered)
+      throws IOException {
+    Path outDirectory = workDirectory.resolve(OUTPUT_DIRECTORY);
+
+    // Lay out once, writing the positions along with any bitmap output
+    Path layout = outDirectory.resolve("graph.xdot");
+    List<String> command = new ArrayList<>(List.of("dot", "-Txdot", "-o", layout.toString()));
+    for (String format : List.of("png", "json")) {
+      if (formats.contains(format)) {
+        Path out = outDirectory.resolve("graph." + format);
+        command.addAll(List.of("-T" + outputType(format), "-o", out.toString()));
+      }
+    }
+    command.add(source.toString());
+    runGraphviz(command, outDirectory, deadline);
+
+    // Draw the SVG from those positions, with the same changes as rendering it on its own. A
+    // layout engine chosen by the graph would override neato and lay the graph out again.
+    if (formats.contains("svg")) {
+      Path svgLayout = workDirectory.resolve("graph-svg.xdot");
+      Files.writeString(
+          svgLayout,
+          Files.readString(layout, StandardCharsets.UTF_8)
+              .replace("bgcolor=\"#eeeeee\"", "bgcolor=transparent")
+              .replace("layout=" + RDFDotWriter.SIMPLIFIED_LAYOUT, "layout=neato"),
+          StandardCharsets.UTF_8);
+      runGraphviz(
+          List.of(
+              "neato",
+              "-n2",
+              "-Gdpi=" + SVG_DPI,
+              "-Tsvg",
+              "-o",
+              outDirectory.resolve("graph.svg").toString(),
+              svgLayout.toString()),
+          outDirectory,
+          deadline);
+    }
+
+    for (String format : formats) {
+      storeRendered(dot, format, outDirectory.resolve("graph." + format), rendered);
+    }
+  }
+
+  /**
+   * Gets the Graphviz output type for a format. JSON is written without drawing operations, as only
+   * the positions and attributes are needed to draw the graph in the browser.
+   *
+   * @param format The format for the graph
+   * @return The argument for the -T option of Graphviz
+   */
+  private static String outputType(String format) {
+    return format.equals("json") ? "json0" : format;
+  }
+
+  /**
+   * Runs a Graphviz executable, killing it if it runs past the deadline or the files in the output
+   * directory, including its log, grow larger than the output size limit
+   *
+   * @param command The command to run
+   * @param outDirectory The directory the command writes to
+   * @param deadline The {@link System#nanoTime()} by which the command must finish
+   * @throws IOException If the executable could not be run or failed
+   * @throws RenderLimitException If the command exceeded its budgets
+   */
+  private void runGraphviz(List<String> command, Path outDirectory, long deadline)
+      throws IOException {
+    File log = Files.createTempFile(outDirectory, "graphviz", ".log").toFile();
+    Process process =
+        new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    try {
+      while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        if (System.nanoTime() - deadline > 0) {
+          throw new RenderLimitException(
+              "Rendering the graph took longer than "
+                  + TimeUnit.NANOSECONDS.toSeconds(renderTimeoutNanos)
+                  + " seconds");
+        }
+        checkOutputSize(outDirectory);
+      }
+      checkOutputSize(outDirectory);
+      if (process.exitValue() != 0) {
+        throw new IOException(
+            command.get(0)
+                + " exited with "
+                + process.exitValue()
+                + ": "
+                + StringUtils.abbreviate(
+                    FileUtils.readFileToString(log, StandardCharsets.UTF_8), MAX_ERROR_LENGTH));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while running " + command.get(0), ex);
+    } finally {
+      process.destroyForcibly();
+    }
+  }
+
+  private void checkOutputSize(Path outDirectory) throws RenderLimitException {
+    if (FileUtils.sizeOfDirectory(outDirectory.toFile()) > maxOutputSize) {
+      throw new RenderLimitException(
+          "The rendered graph is larger than " + maxOutputSize + " bytes");
+    }
+  }
+
+  /**
+   * Moves a rendered graph into the cache directory along with a compressed copy of text formats
+   *
+   * @param dot The DOT source
+   * @param format The format of the graph
+   * @param out The rendered graph
+   * @param rendered Receives the size of each file added to the cache directory, by name
+   */
+  private void storeRendered(String dot, String format, Path out, Map<String, Long> rendered)
+      throws IOException {
+    String fileName = getCacheFileName(dot, format);
+    rendered.put(fileName, store(fileName, out));
+    if (isCompressible(format)) {
+      rendered.put(fileName + GZIP_EXTENSION, compress(fileName));
+    }
+  }
+
+  /**
+   * Writes a gzip compressed copy of a cached graph into the cache directory, to be recorded by
+   * {@link #added(Map)}
+   *
+   * @param fileName The name of the cached graph
+   * @return The size of the compressed graph in bytes
+   */
+  private long compress(String fileName) throws IOException {
+    // Written within a directory so it is cleaned up by loadCache if interrupted
+    Path workDirectory = Files.createTempDirectory(cacheDirectory, "compress");
+    try {
+      Path compressed = workDirectory.resolve(fileName + GZIP_EXTENSION);
+      try (InputStream in = Files.newInputStream(cacheDirectory.resolve(fileName));
+          OutputStream out = new BestGZIPOutputStream(Files.newOutputStream(compressed))) {
+        in.transferTo(out);
+      }
+      return store(fileName + GZIP_EXTENSION, compressed);
+    } finally {
+      FileUtils.deleteQuietly(workDirectory.toFile());
+    }
+  }
+
+  /**
+   * Moves a rendered graph into the cache directory, to be recorded by {@link #added(Map)}
+   *
+   * @param fileName The name to cache it under
+   * @param rendered The rendered graph
+   * @return The size of the graph in bytes
+   */
+  private long store(String fileName, Path rendered) throws IOException {
+    long size = Files.size(rendered);
+    Files.move(rendered, cacheDirectory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+    return size;
+  }
+
+  /**
+   * Gets the name a graph is cached under, from a hash of its normalised DOT source, its format and
+   * the version of the rendering options
+   *
+   * @param dot The DOT source
+   * @param format The format for the graph
+   * @return The file name
+   */
+  private String getCacheFileName(String dot, String format) {
+    String normalisedDot = dot.replace("\r\n", "\n").replaceAll("[ \\t]+\n", "\n").strip();
+    String hash =
+        DigestUtils.sha256Hex(
+            (RENDER_VERSION + "\n" + format + "\n" + normalisedDot)
+                .getBytes(StandardCharsets.UTF_8));
+    String extension = format.matches("[A-Za-z0-9]+") ? format : "out";
+    return hash + "." + extension;
+  }
+
+  /**
+   * Marks a cached graph as recently used, if it exists
+   *
+   * @param fileName The name of the cached file
+   * @param path The path of the cached file
+   * @return Whether the graph is cached
+   */
+  private boolean touch(String fileName, Path path) throws IOException {
+    synchronized (cacheEntries) {
+      loadCache();
+      if (cacheEntries.get(fileName) == null) {
+        return false;
+      }
+    }
+    try {
+      // Keeps the order of use across restarts
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (NoSuchFileException ex) {
+      // Deleted from outside the application
+      synchronized (cacheEntries) {
+        Long size = cacheEntries.remove(fileName);
+        if (size != null) {
+          cacheSize -= size;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Records newly cached graphs, evicting the least recently used graphs if the cache is full
+   *
+   * @param files The size of each cached file by name
+   */
+  private void added(Map<String, Long> files) {
+    synchronized (cacheEntries) {
+      for (Map.Entry<String, Long> file : files.entrySet()) {
+        Long previous = cacheEntries.put(file.getKey(), file.getValue());
+        cacheSize += file.getValue() - (previous == null ? 0 : previous);
+      }
+      Iterator<Map.Entry<String, Long>> eldest = cacheEntries.entrySet().iterator();
+      while (cacheSize > cacheMaxSize && eldest.hasNext()) {
+        Map.Entry<String, Long> entry = eldest.next();
+        if (files.containsKey(entry.getKey())) {
+          // Always keep the graphs just rendered
+          continue;
+        }
+        try {
+          Files.deleteIfExists(cacheDirectory.resolve(entry.getKey()));
+        } catch (IOException ex) {
+          logger.warn("Could not evict " + entry.getKey() + " from the render cache", ex);
+        }
+        cacheSize -= entry.getValue();
+        eldest.remove();
+        cacheStatistics.evictions.increment();
+      }
+    }
+  }
+
+  /** Reads the graphs already cached on disk the first time the cache is used */
+  private void loadCache() throws IOException {
+    if (cacheLoaded) {
+      return;
+    }
+    Files.createDirectories(cacheDirectory);
+    List<Path> files;
+    try (Stream<Path> list = Files.list(cacheDirectory)) {
+      files =
+          list.sorted(Comparator.comparing(GraphVizService::lastModified))
+              .collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (Files.isDirectory(file)) {
+        // Left over from an interrupted render
+        FileUtils.deleteQuietly(file.toFile());
+      } else {
+        long size = Files.size(file);
+        cacheEntries.put(name, size);
+        cacheSize += size;
+      }
+    }
+    cacheLoaded = true;
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /** Compresses as much as possible, as each graph is only compressed once */
+  private static final class BestGZIPOutputStream extends GZIPOutputStream {
+    private BestGZIPOutputStream(OutputStream out) throws IOException {
+      super(out);
+      def.setLevel(Deflater.BEST_COMPRESSION);
+    }
+  }
+
+  /** Thrown when a render exceeds its time or output size budget */
+  private static final class RenderLimitException extends IOException {
+    private RenderLimitException(String message) {
+      super(message);
+    }
+  }
+
+  /** Hits, misses and evictions of the render cache */
+  public static final class CacheStatistics {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public long getHits() {
+      return hits.sum();
+    }
+
+    public long getMisses() {
+      return misses.sum();
+    }
+
+    public long getEvictions() {
+      return evictions.sum();
+    }
+
+    /**
+     * Get the proportion of requests served from the cache
+     *
+     * @return The hit rate between 0 and 1, or 0 if there have been no requests
+     */
+    public double getHitRate() {
+      long hits = getHits();
+      long total = hits + getMisses();
+      return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+      return "CacheStatistics{hits="
+          + getHits()
+          + ", misses="
+          + getMisses()
+          + ", evictions="
+          + getEvictions()
+          + ", hitRate="
+          + getHitRate()
+          + "}";
+    }
+  }
 }
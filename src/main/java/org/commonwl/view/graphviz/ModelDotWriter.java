@@ -21,7 +21,6 @@ package org.commonwl.view.graphviz;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import org.commonwl.view.cwl.CWLElement;
@@ -103,18 +102,18 @@ public class ModelDotWriter extends DotWriter {
     // Write each of the steps as a node
     for (Map.Entry<String, CWLStep> step : workflow.getSteps().entrySet()) {
       String label = step.getValue().getLabel();
-      if (label == null) {
-        writeLine("  \"" + step.getKey() + "\";");
-      } else {
-        writeLine("  \"" + step.getKey() + "\" [label=\"" + label + "\"];");
+      StringBuilder line = startLine().append("  \"").append(step.getKey()).append('"');
+      if (label != null) {
+        line.append(" [label=\"").append(label).append("\"]");
       }
+      writeLine(line.append(';'));
     }
 
     // Write the links between nodes
     // Write links between outputs and penultimate steps
     for (Map.Entry<String, CWLElement> output : workflow.getOutputs().entrySet()) {
       for (String sourceID : output.getValue().getSourceIDs()) {
-        writeLine("  \"" + sourceID + "\" -> \"" + output.getKey() + "\";");
+        writeEdge(sourceID, output.getKey());
       }
     }
 
@@ -131,17 +130,24 @@ public class ModelDotWriter extends DotWriter {
             // New node for a default value to be used as the source
             defaultCount++;
             writeLine(
-                "  \"default"
-                    + defaultCount
-                    + "\" [label=\""
-                    + defaultVal
-                    + "\", fillcolor=\"#D5AEFC\"]");
-            writeLine("  \"default" + defaultCount + "\" -> \"" + step.getKey() + "\";");
+                startLine()
+                    .append("  \"default")
+                    .append(defaultCount)
+                    .append("\" [label=\"")
+                    .append(defaultVal)
+                    .append("\", fillcolor=\"#D5AEFC\"]"));
+            writeLine(
+                startLine()
+                    .append("  \"default")
+                    .append(defaultCount)
+                    .append("\" -> \"")
+                    .append(step.getKey())
+                    .append("\";"));
           }
 
           // Otherwise write regular links from source step to destination step
           for (String sourceID : sourceIDs) {
-            writeLine("  \"" + sourceID + "\" -> \"" + step.getKey() + "\";");
+            writeEdge(sourceID, step.getKey());
           }
         }
       }
@@ -151,17 +157,36 @@ public class ModelDotWriter extends DotWriter {
     writeLine("");
     writeLine("  // Invisible links to force outputs to be at lowest rank");
     if (workflow.getOutputs().size() > 0) {
-      for (Map.Entry<String, CWLStep> step : workflow.getSteps().entrySet()) {
+      String firstOutput = workflow.getOutputs().keySet().iterator().next();
+      for (String stepID : workflow.getSteps().keySet()) {
         writeLine(
-            "  \""
-                + step.getKey()
-                + "\" -> \""
-                + workflow.getOutputs().keySet().iterator().next()
-                + "\" [style=invis];");
+            startLine()
+                .append("  \"")
+                .append(stepID)
+                .append("\" -> \"")
+                .append(firstOutput)
+                .append("\" [style=invis];"));
       }
     }
   }
 
+  /**
+   * Writes a plain link between two nodes to the Writer
+   *
+   * @param sourceID The ID of the node the link starts from
+   * @param destID The ID of the node the link ends at
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  private void writeEdge(String sourceID, String destID) throws IOException {
+    writeLine(
+        startLine()
+            .append("  \"")
+            .append(sourceID)
+            .append("\" -> \"")
+            .append(destID)
+            .append("\";"));
+  }
+
   /**
    * Writes a single input or output to the Writer
    *
@@ -169,17 +194,19 @@ public class ModelDotWriter extends DotWriter {
    * @throws IOException Any errors in writing which may have occurred
    */
   private void writeInputOutput(Map.Entry<String, CWLElement> inputOutput) throws IOException {
-    // List of options for this node
-    List<String> nodeOptions = new ArrayList<>();
-    nodeOptions.add("fillcolor=\"#94DDF4\"");
+    StringBuilder line =
+        startLine()
+            .append("    \"")
+            .append(inputOutput.getKey())
+            .append("\" [fillcolor=\"#94DDF4\"");
 
     // Use label if it is defined
     String label = inputOutput.getValue().getLabel();
     if (label != null && !label.isEmpty()) {
-      nodeOptions.add("label=\"" + label + "\";");
+      line.append(",label=\"").append(label).append("\";");
     }
 
     // Write the line for the node
-    writeLine("    \"" + inputOutput.getKey() + "\" [" + String.join(",", nodeOptions) + "];");
+    writeLine(line.append("];"));
   }
 }
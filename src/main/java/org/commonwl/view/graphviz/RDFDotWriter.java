@@ -22,9 +22,13 @@ package org.commonwl.view.graphviz;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import org.apache.jena.iri.IRI;
 import org.apache.jena.iri.IRIFactory;
 import org.apache.jena.query.QuerySolution;
@@ -32,18 +36,90 @@ import org.apache.jena.query.ResultSet;
 import org.commonwl.view.cwl.CWLProcess;
 import org.commonwl.view.cwl.RDFService;
 
-/** Writes GraphViz DOT files from a workflow RDF model */
+/**
+ * Writes GraphViz DOT files from a workflow RDF model
+ *
+ * <p>The queries return their results in a fixed order, so a workflow whose inputs, outputs, steps,
+ * links and labels are unchanged between commits gives the same DOT. Its renders are then reused
+ * from the cache rather than rendered again.
+ *
+ * <p>Graphs with more nodes than a given limit are simplified so they can be laid out quickly.
+ * Default values are written as fields of the step they are passed to rather than as nodes of their
+ * own, links between the same two steps are merged into one edge listing every input, and the graph
+ * is laid out by {@link #SIMPLIFIED_LAYOUT} rather than dot.
+ */
 public class RDFDotWriter extends DotWriter {
 
+  /** Expands every nested workflow when given as a node ID to expand */
+  public static final String EXPAND_ALL = "all";
+
+  /** Never simplifies the graph when given as the node limit */
+  public static final int NEVER_SIMPLIFY = Integer.MAX_VALUE;
+
+  /**
+   * Layout engine for simplified graphs, which scales to thousands of nodes where the rank
+   * assignment and crossing minimisation of dot take tens of seconds
+   */
+  public static final String SIMPLIFIED_LAYOUT = "sfdp";
+
   private final IRIFactory iriFactory = IRIFactory.iriImplementation();
 
   private RDFService rdfService;
   private String gitPath;
 
+  /** Node IDs already derived from URIs, as each node is referenced by every link to it */
+  private final Map<String, String> nodeIDs = new HashMap<>();
+
+  // Nested workflows drawn as clusters, and where their contents come from
+  private final Set<String> expanded;
+  private final Function<String, SubworkflowCluster> clusters;
+
+  // Graphs with more nodes than this are simplified
+  private final int simplifyAboveNodes;
+
+  // Fields listing the default values passed to each step of a simplified graph, by node ID
+  private final Map<String, StringBuilder> defaultFields = new HashMap<>();
+
   public RDFDotWriter(Writer writer, RDFService rdfService, String gitPath) {
+    this(writer, rdfService, gitPath, Set.of(), null, NEVER_SIMPLIFY);
+  }
+
+  public RDFDotWriter(
+      Writer writer,
+      RDFService rdfService,
+      String gitPath,
+      Set<String> expanded,
+      Function<String, SubworkflowCluster> clusters) {
+    this(writer, rdfService, gitPath, expanded, clusters, NEVER_SIMPLIFY);
+  }
+
+  /**
+   * Create a writer which draws some nested workflows as clusters of their steps rather than as a
+   * single node. The node of the step stays at the top of its cluster, so links to and from the
+   * step are unchanged.
+   *
+   * @param writer The writer the graph is written to
+   * @param rdfService The service answering queries about the workflow
+   * @param gitPath The path of the workflow within the repository
+   * @param expanded The node IDs of nested workflows to expand, such as step or step/innerstep, or
+   *     {@link #EXPAND_ALL}
+   * @param clusters Gets the contents of a nested workflow from the URI of its run
+   * @param simplifyAboveNodes The number of inputs, outputs, steps and default values above which
+   *     the graph is simplified, or {@link #NEVER_SIMPLIFY}
+   */
+  public RDFDotWriter(
+      Writer writer,
+      RDFService rdfService,
+      String gitPath,
+      Set<String> expanded,
+      Function<String, SubworkflowCluster> clusters,
+      int simplifyAboveNodes) {
     super(writer);
     this.rdfService = rdfService;
     this.gitPath = gitPath;
+    this.expanded = expanded;
+    this.clusters = clusters;
+    this.simplifyAboveNodes = simplifyAboveNodes;
   }
 
   /**
@@ -53,21 +129,79 @@ public class RDFDotWriter extends DotWriter {
    * @throws IOException Any errors in writing which may have occurred
    */
   public void writeGraph(String workflowUri) throws IOException {
+    List<QuerySolution> inputs = solutions(rdfService.getInputs(workflowUri));
+    List<QuerySolution> outputs = solutions(rdfService.getOutputs(workflowUri));
+    List<QuerySolution> steps = solutions(rdfService.getSteps(workflowUri));
+    List<QuerySolution> stepLinks = solutions(rdfService.getStepLinks(workflowUri));
+    int defaults = 0;
+    for (QuerySolution stepLink : stepLinks) {
+      if (!stepLink.contains("src") && stepLink.contains("default")) {
+        defaults++;
+      }
+    }
+    int nodes =
+        countDistinct(inputs, "name")
+            + countDistinct(outputs, "name")
+            + countDistinct(steps, "step")
+            + defaults;
+    boolean simplified = nodes > simplifyAboveNodes;
+
     writePreamble();
-    writeInputs(workflowUri);
-    writeOutputs(workflowUri);
-    writeSteps(workflowUri, false);
-    writeStepLinks(workflowUri);
+    if (simplified) {
+      writeLine(startLine().append("  layout = \"").append(SIMPLIFIED_LAYOUT).append("\";"));
+      writeLine("  overlap = \"prism\";");
+      collectDefaultFields(workflowUri, stepLinks);
+    }
+    writeInputs(inputs);
+    writeOutputs(outputs);
+    writeSteps(workflowUri, steps);
+    if (simplified) {
+      writeMergedStepLinks(stepLinks);
+    } else {
+      writeStepLinks(workflowUri, stepLinks);
+    }
+    writeOutputLinks(workflowUri);
     writeLine("}");
   }
 
+  /**
+   * Read every row of a result set, so the rows can be counted before the graph is written
+   *
+   * @param results The result set
+   * @return The rows in the order of the result set
+   */
+  private static List<QuerySolution> solutions(ResultSet results) {
+    List<QuerySolution> solutions = new ArrayList<>();
+    while (results.hasNext()) {
+      solutions.add(results.nextSolution());
+    }
+    return solutions;
+  }
+
+  /**
+   * Count the distinct values of a variable, as an input or step may appear in several rows
+   *
+   * @param solutions The rows of a result set
+   * @param var The variable to count
+   * @return The number of distinct values
+   */
+  private static int countDistinct(List<QuerySolution> solutions, String var) {
+    Set<String> values = new HashSet<>();
+    for (QuerySolution solution : solutions) {
+      if (solution.contains(var)) {
+        values.add(solution.get(var).toString());
+      }
+    }
+    return values.size();
+  }
+
   /**
    * Writes a set of inputs from a workflow to the Writer
    *
-   * @param workflowUri The URI of the workflow in the model
+   * @param inputs The inputs of the workflow
    * @throws IOException Any errors in writing which may have occurred
    */
-  private void writeInputs(String workflowUri) throws IOException {
+  private void writeInputs(List<QuerySolution> inputs) throws IOException {
 
     // Start of subgraph with styling
     writeLine("  subgraph cluster_inputs {");
@@ -76,9 +210,7 @@ public class RDFDotWriter extends DotWriter {
     writeLine("    label = \"Workflow Inputs\";");
 
     // Write each of the inputs as a node
-    ResultSet inputs = rdfService.getInputs(workflowUri);
-    while (inputs.hasNext()) {
-      QuerySolution input = inputs.nextSolution();
+    for (QuerySolution input : inputs) {
       writeInputOutput(input);
     }
 
@@ -89,10 +221,10 @@ public class RDFDotWriter extends DotWriter {
   /**
    * Writes a set of outputs from a workflow to the Writer
    *
-   * @param workflowUri The URI of the workflow in the model
+   * @param outputs The outputs of the workflow
    * @throws IOException Any errors in writing which may have occurred
    */
-  private void writeOutputs(String workflowUri) throws IOException {
+  private void writeOutputs(List<QuerySolution> outputs) throws IOException {
     // Start of subgraph with styling
     writeLine("  subgraph cluster_outputs {");
     writeLine("    rank = \"same\";");
@@ -101,9 +233,7 @@ public class RDFDotWriter extends DotWriter {
     writeLine("    label = \"Workflow Outputs\";");
 
     // Write each of the outputs as a node
-    ResultSet outputs = rdfService.getOutputs(workflowUri);
-    while (outputs.hasNext()) {
-      QuerySolution output = outputs.nextSolution();
+    for (QuerySolution output : outputs) {
       writeInputOutput(output);
     }
 
@@ -115,16 +245,14 @@ public class RDFDotWriter extends DotWriter {
    * Writes a set of steps from a workflow to the Writer
    *
    * @param workflowUri The URI of the workflow in the model
-   * @param subworkflow Whether these are steps of a subworkflow
+   * @param steps The steps of the workflow
    * @throws IOException Any errors in writing which may have occurred
    */
-  private void writeSteps(String workflowUri, boolean subworkflow) throws IOException {
+  private void writeSteps(String workflowUri, List<QuerySolution> steps) throws IOException {
 
-    ResultSet steps = rdfService.getSteps(workflowUri);
     Set<String> addedSteps = new HashSet<>();
-    while (steps.hasNext()) {
-      QuerySolution step = steps.nextSolution();
-      String stepName = rdfService.stepNameFromURI(gitPath, step.get("step").toString());
+    for (QuerySolution step : steps) {
+      String stepName = nodeIDFromUri(step.get("step").toString());
 
       // Only write each step once
       if (!addedSteps.contains(stepName)) {
@@ -137,74 +265,270 @@ public class RDFDotWriter extends DotWriter {
 
         // Distinguish nested workflows
         CWLProcess runType = rdfService.strToRuntype(step.get("runtype").toString());
-        if (runType == CWLProcess.WORKFLOW) {
-          writeLine("  \"" + stepName + "\" [label=\"" + label + "\", fillcolor=\"#F3CEA1\"];");
+        boolean isWorkflow = runType == CWLProcess.WORKFLOW;
+        if (isWorkflow && isExpanded(stepName)) {
+          String run = step.get("run").toString();
+          Set<String> enclosing = new HashSet<>();
+          enclosing.add(workflowUri);
+          enclosing.add(run);
+          writeCluster(stepName, label, run, enclosing);
         } else {
-          writeLine("  \"" + stepName + "\" [label=\"" + label + "\"];");
+          writeStepNode(stepName, label, isWorkflow);
         }
         addedSteps.add(stepName);
       }
     }
   }
 
+  /**
+   * Writes a single step as a node, with the default values passed to it in a simplified graph
+   *
+   * @param nodeID The ID of the node
+   * @param label The label of the step
+   * @param isWorkflow Whether the step runs a nested workflow
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  private void writeStepNode(String nodeID, String label, boolean isWorkflow) throws IOException {
+    StringBuilder line = startLine().append("  \"").append(nodeID).append("\" [label=\"");
+    StringBuilder fields = defaultFields.get(nodeID);
+    if (fields == null) {
+      line.append(label);
+    } else {
+      line.append('{');
+      appendRecordField(line, label);
+      line.append(fields).append('}');
+    }
+    if (isWorkflow) {
+      line.append("\", fillcolor=\"#F3CEA1\"];");
+    } else {
+      line.append("\"];");
+    }
+    writeLine(line);
+  }
+
+  /**
+   * Writes a nested workflow as a cluster containing its steps and the links between them. Links
+   * from inputs of the nested workflow start from the node of the step which runs it.
+   *
+   * @param nodeID The ID of the node of the step running the nested workflow
+   * @param label The label of the step
+   * @param run The URI of the nested workflow
+   * @param enclosing The URIs of the workflows enclosing this one, which are never expanded again
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  private void writeCluster(String nodeID, String label, String run, Set<String> enclosing)
+      throws IOException {
+    SubworkflowCluster cluster = clusters.apply(run);
+    writeLine(startLine().append("  subgraph \"cluster_").append(nodeID).append("\" {"));
+    writeLine("    style = \"dashed\";");
+    writeLine(startLine().append("    label = \"").append(label).append("\";"));
+    writeStepNode(nodeID, label, true);
+
+    for (SubworkflowCluster.Step step : cluster.getSteps()) {
+      String stepID = nodeID + "/" + step.getName();
+      if (step.isWorkflow() && isExpanded(stepID) && !enclosing.contains(step.getRun())) {
+        Set<String> nestedEnclosing = new HashSet<>(enclosing);
+        nestedEnclosing.add(step.getRun());
+        writeCluster(stepID, step.getLabel(), step.getRun(), nestedEnclosing);
+      } else {
+        writeStepNode(stepID, step.getLabel(), step.isWorkflow());
+      }
+    }
+
+    for (SubworkflowCluster.Link link : cluster.getLinks()) {
+      StringBuilder line = startLine().append("  \"").append(nodeID);
+      if (link.getSource() != null) {
+        line.append('/').append(link.getSource());
+      }
+      writeLine(
+          line.append("\" -> \"")
+              .append(nodeID)
+              .append('/')
+              .append(link.getDest())
+              .append("\" [label=\"")
+              .append(link.getInput())
+              .append("\"];"));
+    }
+
+    writeLine("  }");
+  }
+
+  /**
+   * Whether a nested workflow should be drawn as a cluster
+   *
+   * @param nodeID The ID of the node of the step running the nested workflow
+   * @return Whether the nested workflow is expanded
+   */
+  private boolean isExpanded(String nodeID) {
+    return clusters != null && (expanded.contains(EXPAND_ALL) || expanded.contains(nodeID));
+  }
+
   /**
    * Write the links between steps for the entire model
    *
    * @param workflowUri The URI of the workflow in the model
-   * @throws IOException Any errors in writing which may have occurredn
+   * @param stepLinks The links to the inputs of steps
+   * @throws IOException Any errors in writing which may have occurred
    */
-  private void writeStepLinks(String workflowUri) throws IOException {
+  private void writeStepLinks(String workflowUri, List<QuerySolution> stepLinks)
+      throws IOException {
     // Write links between steps
-    ResultSet stepLinks = rdfService.getStepLinks(workflowUri);
     int defaultCount = 1;
-    while (stepLinks.hasNext()) {
-      QuerySolution stepLink = stepLinks.nextSolution();
+    for (QuerySolution stepLink : stepLinks) {
       if (stepLink.contains("src")) {
         // Normal link from step
         String sourceID = nodeIDFromUri(stepLink.get("src").toString());
         String dest = stepLink.get("dest").toString();
         String destID = nodeIDFromUri(dest);
-        String destInput = dest.substring(dest.replaceAll("#", "/").lastIndexOf("/") + 1);
-        writeLine("  \"" + sourceID + "\" -> \"" + destID + "\" [label=\"" + destInput + "\"];");
+        int destInputStart = Math.max(dest.lastIndexOf('/'), dest.lastIndexOf('#')) + 1;
+        writeLine(
+            startLine()
+                .append("  \"")
+                .append(sourceID)
+                .append("\" -> \"")
+                .append(destID)
+                .append("\" [label=\"")
+                .append(dest, destInputStart, dest.length())
+                .append("\"];"));
       } else if (stepLink.contains("default")) {
-        // Collect default values
-        String destID = rdfService.stepNameFromURI(gitPath, stepLink.get("dest").toString());
-        String label;
-        if (stepLink.get("default").isLiteral()) {
-          label = rdfService.formatDefault(stepLink.get("default").toString());
-        } else if (stepLink.get("default").isURIResource()) {
-          IRI workflowPath = iriFactory.construct(workflowUri).resolve("./");
-          IRI resourcePath = iriFactory.construct(stepLink.get("default").asResource().getURI());
-          label = workflowPath.relativize(resourcePath).toString();
-        } else {
-          label = "[Complex Object]";
-        }
-
         // Write default
+        String destID = nodeIDFromUri(stepLink.get("dest").toString());
+        String label = defaultLabel(workflowUri, stepLink);
         String dest = stepLink.get("dest").toString();
-        String inputName = dest.substring(dest.lastIndexOf("/") + 1);
         writeLine(
-            "  \"default"
-                + defaultCount
-                + "\" -> \""
-                + destID
-                + "\" "
-                + "[label=\""
-                + inputName
-                + "\"];");
+            startLine()
+                .append("  \"default")
+                .append(defaultCount)
+                .append("\" -> \"")
+                .append(destID)
+                .append("\" [label=\"")
+                .append(dest, dest.lastIndexOf('/') + 1, dest.length())
+                .append("\"];"));
         writeLine(
-            "  \"default" + defaultCount + "\" [label=\"" + label + "\", fillcolor=\"#D5AEFC\"];");
+            startLine()
+                .append("  \"default")
+                .append(defaultCount)
+                .append("\" [label=\"")
+                .append(label)
+                .append("\", fillcolor=\"#D5AEFC\"];"));
         defaultCount++;
       }
     }
+  }
+
+  /**
+   * Write the links between steps of a simplified graph, with one edge between any two nodes
+   * labelled with every input it links to. Default values are written with the steps instead.
+   *
+   * @param stepLinks The links to the inputs of steps
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  private void writeMergedStepLinks(List<QuerySolution> stepLinks) throws IOException {
+    // Labels of each edge, in the order the edges are first linked
+    Map<String, StringBuilder> edges = new LinkedHashMap<>();
+    for (QuerySolution stepLink : stepLinks) {
+      if (stepLink.contains("src")) {
+        String sourceID = nodeIDFromUri(stepLink.get("src").toString());
+        String dest = stepLink.get("dest").toString();
+        String destID = nodeIDFromUri(dest);
+        int destInputStart = Math.max(dest.lastIndexOf('/'), dest.lastIndexOf('#')) + 1;
+        String edge = sourceID + "\" -> \"" + destID;
+        StringBuilder label = edges.get(edge);
+        if (label == null) {
+          label = new StringBuilder();
+          edges.put(edge, label);
+        } else {
+          label.append(", ");
+        }
+        label.append(dest, destInputStart, dest.length());
+      }
+    }
+    for (Map.Entry<String, StringBuilder> edge : edges.entrySet()) {
+      writeLine(
+          startLine()
+              .append("  \"")
+              .append(edge.getKey())
+              .append("\" [label=\"")
+              .append(edge.getValue())
+              .append("\"];"));
+    }
+  }
 
-    // Write links between steps and outputs
+  /**
+   * Write the links between steps and the outputs of the workflow
+   *
+   * @param workflowUri The URI of the workflow in the model
+   * @throws IOException Any errors in writing which may have occurred
+   */
+  private void writeOutputLinks(String workflowUri) throws IOException {
     ResultSet outputLinks = rdfService.getOutputLinks(workflowUri);
     while (outputLinks.hasNext()) {
       QuerySolution outputLink = outputLinks.nextSolution();
       String sourceID = nodeIDFromUri(outputLink.get("src").toString());
       String destID = nodeIDFromUri(outputLink.get("dest").toString());
-      writeLine("  \"" + sourceID + "\" -> \"" + destID + "\";");
+      writeLine(
+          startLine()
+              .append("  \"")
+              .append(sourceID)
+              .append("\" -> \"")
+              .append(destID)
+              .append("\";"));
+    }
+  }
+
+  /**
+   * Collect the default values passed to each step of a simplified graph as fields of a record
+   * label, to be written with the node of the step
+   *
+   * @param workflowUri The URI of the workflow in the model
+   * @param stepLinks The links to the inputs of steps
+   */
+  private void collectDefaultFields(String workflowUri, List<QuerySolution> stepLinks) {
+    for (QuerySolution stepLink : stepLinks) {
+      if (!stepLink.contains("src") && stepLink.contains("default")) {
+        String dest = stepLink.get("dest").toString();
+        StringBuilder fields =
+            defaultFields.computeIfAbsent(nodeIDFromUri(dest), id -> new StringBuilder());
+        fields.append('|');
+        appendRecordField(fields, dest.substring(dest.lastIndexOf('/') + 1));
+        fields.append(" = ");
+        appendRecordField(fields, defaultLabel(workflowUri, stepLink));
+      }
+    }
+  }
+
+  /**
+   * Get the label of a default value passed to a step
+   *
+   * @param workflowUri The URI of the workflow in the model
+   * @param stepLink The link with the default value
+   * @return The label of the default value
+   */
+  private String defaultLabel(String workflowUri, QuerySolution stepLink) {
+    if (stepLink.get("default").isLiteral()) {
+      return rdfService.formatDefault(stepLink.get("default").toString());
+    } else if (stepLink.get("default").isURIResource()) {
+      IRI workflowPath = iriFactory.construct(workflowUri).resolve("./");
+      IRI resourcePath = iriFactory.construct(stepLink.get("default").asResource().getURI());
+      return workflowPath.relativize(resourcePath).toString();
+    } else {
+      return "[Complex Object]";
+    }
+  }
+
+  /**
+   * Append text to a record label, escaping the characters which separate its fields
+   *
+   * @param label The record label
+   * @param text The text of a field
+   */
+  private static void appendRecordField(StringBuilder label, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '{' || c == '}' || c == '|' || c == '<' || c == '>') {
+        label.append('\\');
+      }
+      label.append(c);
     }
   }
 
@@ -215,7 +539,7 @@ public class RDFDotWriter extends DotWriter {
    * @return A string in the format filename#stepID
    */
   private String nodeIDFromUri(String uri) {
-    return rdfService.stepNameFromURI(gitPath, uri);
+    return nodeIDs.computeIfAbsent(uri, u -> rdfService.stepNameFromURI(gitPath, u));
   }
 
   /**
@@ -225,10 +549,6 @@ public class RDFDotWriter extends DotWriter {
    * @throws IOException Any errors in writing which may have occurred
    */
   private void writeInputOutput(QuerySolution inputOutput) throws IOException {
-    // List of options for this node
-    List<String> nodeOptions = new ArrayList<>();
-    nodeOptions.add("fillcolor=\"#94DDF4\"");
-
     // Label for the node
     String label;
     if (inputOutput.contains("label")) {
@@ -236,11 +556,15 @@ public class RDFDotWriter extends DotWriter {
     } else {
       label = rdfService.labelFromName(inputOutput.get("name").toString());
     }
-    nodeOptions.add("label=\"" + label + "\"");
 
     // Write the line for the node
-    String inputOutputName =
-        rdfService.stepNameFromURI(gitPath, inputOutput.get("name").toString());
-    writeLine("    \"" + inputOutputName + "\" [" + String.join(",", nodeOptions) + "];");
+    String inputOutputName = nodeIDFromUri(inputOutput.get("name").toString());
+    writeLine(
+        startLine()
+            .append("    \"")
+            .append(inputOutputName)
+            .append("\" [fillcolor=\"#94DDF4\",label=\"")
+            .append(label)
+            .append("\"];"));
   }
 }
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.graphviz;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.jena.query.QuerySolution;
+import org.apache.jena.query.ResultSet;
+import org.commonwl.view.cwl.CWLProcess;
+import org.commonwl.view.cwl.RDFService;
+
+/**
+ * The steps of a nested workflow and the links between them, queried once so the cluster drawn for
+ * it can be reused wherever and whenever the workflow is expanded. Names are relative to the nested
+ * workflow so the same cluster can be placed under any step.
+ */
+public class SubworkflowCluster {
+
+  /** A step of the nested workflow */
+  public static class Step {
+
+    private final String name;
+    private final String label;
+    private final String run;
+    private final boolean workflow;
+
+    public Step(String name, String label, String run, boolean workflow) {
+      this.name = name;
+      this.label = label;
+      this.run = run;
+      this.workflow = workflow;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public String getRun() {
+      return run;
+    }
+
+    public boolean isWorkflow() {
+      return workflow;
+    }
+  }
+
+  /** A link between steps of the nested workflow, or from one of its inputs to a step */
+  public static class Link {
+
+    private final String source;
+    private final String dest;
+    private final String input;
+
+    public Link(String source, String dest, String input) {
+      this.source = source;
+      this.dest = dest;
+      this.input = input;
+    }
+
+    /**
+     * Get the name of the step the link starts from
+     *
+     * @return The step name, or null if the link starts from an input of the nested workflow
+     */
+    public String getSource() {
+      return source;
+    }
+
+    public String getDest() {
+      return dest;
+    }
+
+    public String getInput() {
+      return input;
+    }
+  }
+
+  private final List<Step> steps;
+  private final List<Link> links;
+
+  public SubworkflowCluster(List<Step> steps, List<Link> links) {
+    this.steps = Collections.unmodifiableList(steps);
+    this.links = Collections.unmodifiableList(links);
+  }
+
+  public List<Step> getSteps() {
+    return steps;
+  }
+
+  public List<Link> getLinks() {
+    return links;
+  }
+
+  /**
+   * Query the steps and links of a nested workflow
+   *
+   * @param rdfService A view answering queries about the nested workflow
+   * @param workflowUri The URI of the nested workflow
+   * @return The cluster for the nested workflow
+   */
+  public static SubworkflowCluster fromRDF(RDFService rdfService, String workflowUri) {
+    // One solution is returned for each input of a step
+    Map<String, Step> steps = new LinkedHashMap<>();
+    ResultSet stepResults = rdfService.getSteps(workflowUri);
+    while (stepResults.hasNext()) {
+      QuerySolution step = stepResults.nextSolution();
+      String name = relativeName(workflowUri, step.get("step").toString());
+      if (!steps.containsKey(name)) {
+        String label;
+        if (step.contains("label")) {
+          label = step.get("label").toString();
+        } else {
+          label = rdfService.labelFromName(name);
+        }
+        CWLProcess runType = rdfService.strToRuntype(step.get("runtype").toString());
+        steps.put(
+            name,
+            new Step(name, label, step.get("run").toString(), runType == CWLProcess.WORKFLOW));
+      }
+    }
+
+    // Default values are left out to keep clusters compact
+    List<Link> links = new ArrayList<>();
+    ResultSet linkResults = rdfService.getStepLinks(workflowUri);
+    while (linkResults.hasNext()) {
+      QuerySolution link = linkResults.nextSolution();
+      if (link.contains("src")) {
+        String source = relativeName(workflowUri, link.get("src").toString());
+        String dest = relativeName(workflowUri, link.get("dest").toString());
+        int separator = dest.indexOf('/');
+        if (separator > 0) {
+          // Sources without a step part are inputs of the nested workflow
+          int sourceSeparator = source.indexOf('/');
+          links.add(
+              new Link(
+                  sourceSeparator > 0 ? source.substring(0, sourceSeparator) : null,
+                  dest.substring(0, separator),
+                  dest.substring(separator + 1)));
+        }
+      }
+    }
+
+    return new SubworkflowCluster(new ArrayList<>(steps.values()), links);
+  }
+
+  /**
+   * Get the name of a step, input or output relative to the workflow it belongs to
+   *
+   * @param workflowUri The URI of the workflow
+   * @param uri The URI of the step, input or output
+   * @return The name, such as step or step/input
+   */
+  private static String relativeName(String workflowUri, String uri) {
+    String name;
+    if (uri.startsWith(workflowUri)) {
+      name = uri.substring(workflowUri.length());
+    } else {
+      name = uri.substring(uri.lastIndexOf('#') + 1);
+    }
+    if (name.startsWith("#") || name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    return name;
+  }
+}
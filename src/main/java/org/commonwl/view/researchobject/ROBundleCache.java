@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.researchobject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.commonwl.view.util.SingleFlight;
+import org.commonwl.view.workflow.Workflow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache of Research Object Bundles created when they are first requested. A bundle is sent to the
+ * client which requested it while it is being written, and kept on disk for later requests until
+ * the least recently used bundles are evicted to keep the cache within its size limit. If that
+ * client goes away, the bundle is still finished for the other requests waiting for it.
+ */
+@Service
+public class ROBundleCache {
+
+  // Increment when the contents of bundles change, so bundles cached before are not served
+  private static final String BUNDLE_VERSION = "1";
+
+  // Directory within the bundle storage holding the cached bundles
+  public static final String CACHE_DIRECTORY = "robundles";
+
+  // Extension of bundles still being written
+  private static final String PARTIAL_EXTENSION = ".part";
+
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  private final ROBundleService roBundleService;
+  private final Path cacheDirectory;
+  private final long cacheMaxSize;
+  private final SingleFlight<String, Path> bundles = new SingleFlight<>();
+
+  // Size of each cached bundle by name, least recently used first
+  private final LinkedHashMap<String, Long> cacheEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private long cacheSize = 0;
+  private boolean cacheLoaded = false;
+
+  /**
+   * Create a cache of Research Object Bundles
+   *
+   * @param bundleStorage The configured storage location for bundles
+   * @param cacheMaxSizeMB The largest total size of the cached bundles
+   * @param roBundleService The service creating the bundles
+   */
+  @Autowired
+  public ROBundleCache(
+      @Value("${bundleStorage}") Path bundleStorage,
+      @Value("${bundleCacheMaxSizeMB}") long cacheMaxSizeMB,
+      ROBundleService roBundleService) {
+    this.cacheDirectory = bundleStorage.resolve(CACHE_DIRECTORY);
+    this.cacheMaxSize = cacheMaxSizeMB * 1024 * 1024;
+    this.roBundleService = roBundleService;
+  }
+
+  /**
+   * Write the Research Object Bundle for a workflow to a stream, creating it if it is not cached.
+   * Concurrent requests for a bundle being created wait for it and are then sent the cached copy.
+   *
+   * @param workflow The workflow
+   * @param out The stream to write the bundle to, which is not closed
+   * @throws IOException Any errors creating the bundle or writing it to the stream
+   */
+  public void writeBundle(Workflow workflow, OutputStream out) throws IOException {
+    String fileName = getCacheFileName(workflow);
+    Path cached = cacheDirectory.resolve(fileName);
+    if (touch(fileName, cached)) {
+      try (InputStream in = Files.newInputStream(cached)) {
+        in.transferTo(out);
+        return;
+      } catch (NoSuchFileException ex) {
+        // Evicted since it was looked up, so create it again
+      }
+    }
+
+    DetachingOutputStream client = new DetachingOutputStream(out);
+    boolean[] streamed = {false};
+    Path bundle =
+        bundles.execute(
+            fileName,
+            () -> {
+              streamed[0] = true;
+              return createBundle(workflow, fileName, client);
+            });
+    if (!streamed[0]) {
+      try (InputStream in = Files.newInputStream(bundle)) {
+        in.transferTo(out);
+      }
+    } else if (client.getFailure() != null) {
+      throw client.getFailure();
+    }
+  }
+
+  /**
+   * Create the bundle for a workflow in the cache, sending it to a stream as it is written. The
+   * bundle is only moved into place once complete, so a failed bundle is never served.
+   *
+   * @param workflow The workflow
+   * @param fileName The name of the bundle in the cache
+   * @param out The stream to write the bundle to, which is not closed
+   * @return The cached bundle
+   * @throws IOException Any errors creating the bundle or writing it to the stream
+   */
+  private Path createBundle(Workflow workflow, String fileName, OutputStream out)
+      throws IOException {
+    logger.info("Creating Research Object Bundle for workflow " + workflow.getID());
+    synchronized (cacheEntries) {
+      loadCache();
+    }
+    // May have been deleted from outside the application since the cache was loaded
+    Files.createDirectories(cacheDirectory);
+    Path partial = Files.createTempFile(cacheDirectory, "bundle", PARTIAL_EXTENSION);
+    try (ROBundleWriter writer = new ROBundleWriter(partial, out)) {
+      roBundleService.writeBundle(workflow, ROBundleService.getFolderDetails(workflow), writer);
+      writer.finish();
+    }
+    Path bundle = cacheDirectory.resolve(fileName);
+    Files.move(partial, bundle, StandardCopyOption.ATOMIC_MOVE);
+    added(fileName, Files.size(bundle));
+    logger.info("Finished creating Research Object Bundle for workflow " + workflow.getID());
+    return bundle;
+  }
+
+  /**
+   * Get the name of the cached bundle of a workflow, which changes with the commit
+   *
+   * @param workflow The workflow
+   * @return The file name
+   */
+  private static String getCacheFileName(Workflow workflow) {
+    String hash =
+        DigestUtils.sha256Hex(
+            (BUNDLE_VERSION + "\n" + workflow.getIdentifier()).getBytes(StandardCharsets.UTF_8));
+    return hash + ".zip";
+  }
+
+  /**
+   * Marks a cached bundle as recently used, if it exists
+   *
+   * @param fileName The name of the cached bundle
+   * @param path The path of the cached bundle
+   * @return Whether the bundle is cached
+   */
+  private boolean touch(String fileName, Path path) throws IOException {
+    synchronized (cacheEntries) {
+      loadCache();
+      if (cacheEntries.get(fileName) == null) {
+        return false;
+      }
+    }
+    try {
+      // Keeps the order of use across restarts
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+      return true;
+    } catch (NoSuchFileException ex) {
+      // Deleted from outside the application
+      synchronized (cacheEntries) {
+        Long size = cacheEntries.remove(fileName);
+        if (size != null) {
+          cacheSize -= size;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Records a newly cached bundle, evicting the least recently used bundles if the cache is full
+   *
+   * @param fileName The name of the cached bundle
+   * @param size The size of the cached bundle
+   */
+  private void added(String fileName, long size) {
+    synchronized (cacheEntries) {
+      Long previous = cacheEntries.put(fileName, size);
+      cacheSize += size - (previous == null ? 0 : previous);
+      Iterator<Map.Entry<String, Long>> eldest = cacheEntries.entrySet().iterator();
+      while (cacheSize > cacheMaxSize && eldest.hasNext()) {
+        Map.Entry<String, Long> entry = eldest.next();
+        if (entry.getKey().equals(fileName)) {
+          // Always keep the bundle just created
+          continue;
+        }
+        try {
+          Files.deleteIfExists(cacheDirectory.resolve(entry.getKey()));
+        } catch (IOException ex) {
+          logger.warn("Could not evict " + entry.getKey() + " from the bundle cache", ex);
+        }
+        cacheSize -= entry.getValue();
+        eldest.remove();
+      }
+    }
+  }
+
+  /** Reads the bundles already cached on disk the first time the cache is used */
+  private void loadCache() throws IOException {
+    if (cacheLoaded) {
+      return;
+    }
+    Files.createDirectories(cacheDirectory);
+    List<Path> files;
+    try (Stream<Path> list = Files.list(cacheDirectory)) {
+      files =
+          list.sorted(Comparator.comparing(ROBundleCache::lastModified))
+              .collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String name = file.getFileName().toString();
+      if (name.endsWith(PARTIAL_EXTENSION)) {
+        // Left over from an interrupted bundle
+        Files.deleteIfExists(file);
+      } else {
+        long size = Files.size(file);
+        cacheEntries.put(name, size);
+        cacheSize += size;
+      }
+    }
+    cacheLoaded = true;
+  }
+
+  private static FileTime lastModified(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException ex) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /**
+   * Passes a bundle on to the client it is streamed to until writing to the client fails, after
+   * which the rest of the bundle is dropped, so the bundle is still finished and cached
+   */
+  private static class DetachingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private IOException failure;
+
+    DetachingOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Get the error writing to the client, if any
+     *
+     * @return The error, or null if the client received everything written
+     */
+    IOException getFailure() {
+      return failure;
+    }
+
+    @Override
+    public void write(int b) {
+      if (failure == null) {
+        try {
+          out.write(b);
+        } catch (IOException ex) {
+          failure = ex;
+        }
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (failure == null) {
+        try {
+          out.write(b, off, len);
+        } catch (IOException ex) {
+          failure = ex;
+        }
+      }
+    }
+
+    @Override
+    public void flush() {
+      if (failure == null) {
+        try {
+          out.flush();
+        } catch (IOException ex) {
+          failure = ex;
+        }
+      }
+    }
+  }
+}
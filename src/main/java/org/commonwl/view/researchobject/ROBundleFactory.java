@@ -20,16 +20,15 @@
 package org.commonwl.view.researchobject;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.taverna.robundle.Bundle;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.util.FileUtils;
 import org.commonwl.view.workflow.Workflow;
 import org.commonwl.view.workflow.WorkflowRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.stereotype.Component;
@@ -48,49 +47,93 @@ public class ROBundleFactory {
 
   private final WorkflowRepository workflowRepository;
   private final ROBundleService roBundleService;
+  private final ROBundleCache roBundleCache;
+  private final boolean onDemand;
 
-  @Autowired
   public ROBundleFactory(ROBundleService roBundleService, WorkflowRepository workflowRepository) {
+    this(roBundleService, workflowRepository, null, false);
+  }
+
+  /**
+   * Create the factory of Research Object Bundles
+   *
+   * @param roBundleService The service creating the bundles
+   * @param workflowRepository The repository the bundles of workflows are recorded in
+   * @param roBundleCache The cache of bundles created on demand
+   * @param onDemand Whether bundles are created when first requested rather than after each
+   *     workflow is parsed
+   */
+  @Autowired
+  public ROBundleFactory(
+      ROBundleService roBundleService,
+      WorkflowRepository workflowRepository,
+      ROBundleCache roBundleCache,
+      @Value("${bundleOnDemand}") boolean onDemand) {
     this.workflowRepository = workflowRepository;
     this.roBundleService = roBundleService;
+    this.roBundleCache = roBundleCache;
+    this.onDemand = onDemand;
   }
 
   /**
-   * Creates a new Workflow Research Object Bundle from Git details and saves it to a file
+   * Whether bundles are created when first requested, and sent with {@link #writeWorkflowRO}
+   *
+   * @return Whether bundles are created on demand
+   */
+  public boolean isOnDemand() {
+    return onDemand;
+  }
+
+  /**
+   * Creates a new Workflow Research Object Bundle from Git details and saves it to a file. Does
+   * nothing when bundles are created on demand.
    *
    * @param workflow The workflow to generate a RO bundle for
    * @throws IOException Any API errors which may have occurred
    */
   @Async
   public void createWorkflowRO(Workflow workflow) throws IOException, InterruptedException {
+    createWorkflowRO(workflow, null);
+  }
+
+  /**
+   * Creates a new Workflow Research Object Bundle from Git details and saves it to a file, using
+   * the packed version of the workflow produced when it was parsed. Does nothing when bundles are
+   * created on demand.
+   *
+   * @param workflow The workflow to generate a RO bundle for
+   * @param packed The packed version of the workflow, or null to pack it again
+   * @throws IOException Any API errors which may have occurred
+   */
+  @Async
+  public void createWorkflowRO(Workflow workflow, String packed)
+      throws IOException, InterruptedException {
+    if (onDemand) {
+      return;
+    }
     logger.info("Creating Research Object Bundle for workflow " + workflow.getID());
 
     // Get the whole containing folder, not just the workflow itself
-    GitDetails githubInfo = workflow.getRetrievedFrom();
-    GitDetails roDetails =
-        new GitDetails(
-            githubInfo.getRepoUrl(),
-            githubInfo.getBranch(),
-            FilenameUtils.getPath(githubInfo.getPath()));
+    GitDetails roDetails = ROBundleService.getFolderDetails(workflow);
 
-    // Create a new Research Object Bundle
-    Bundle bundle = roBundleService.createBundle(workflow, roDetails);
-
-    // Save the bundle to the storage location in properties
-    Path bundleLocation = roBundleService.saveToFile(bundle);
-    try {
-      FileUtils.deleteBundleTemporaryDirectory(bundle);
-    } catch (IOException e) {
-      logger.warn(
-          String.format(
-              "Failed to delete temporary directory for bundle [%s]: %s",
-              bundle.getSource(), e.getMessage()),
-          e);
-    }
+    // Create a new Research Object Bundle in the storage location in properties
+    Path bundleLocation = roBundleService.createBundle(workflow, roDetails, packed);
 
     // Add RO Bundle to associated workflow model
     workflow.setRoBundlePath(bundleLocation.toString());
     workflowRepository.save(workflow);
     logger.info("Finished saving Research Object Bundle for workflow " + workflow.getID());
   }
+
+  /**
+   * Writes the Research Object Bundle of a workflow to a stream, creating it as it is sent if it
+   * has not been requested before
+   *
+   * @param workflow The workflow to write the RO bundle of
+   * @param out The stream to write the bundle to, which is not closed
+   * @throws IOException Any errors creating or writing the bundle
+   */
+  public void writeWorkflowRO(Workflow workflow, OutputStream out) throws IOException {
+    roBundleCache.writeBundle(workflow, out);
+  }
 }
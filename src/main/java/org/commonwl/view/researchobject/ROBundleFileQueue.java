@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.researchobject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Adds the files of a repository to a bundle, reading and compressing several at once on a shared
+ * pool while they are written to the bundle in the order they were added. Only a few files are
+ * compressed ahead of the writer, so few are held in memory at a time.
+ *
+ * <p>The files added are limited to a total size. Once a file does not fit, the budget is exhausted
+ * and every file after it is refused too, so which files are bundled depends only on the order they
+ * are added in.
+ */
+class ROBundleFileQueue implements Closeable {
+
+  private final ROBundleWriter writer;
+  private final ForkJoinPool pool;
+  private final int maxPending;
+  private final Deque<PendingFile> pending = new ArrayDeque<>();
+  private long remainingSize;
+  private boolean exhausted = false;
+
+  /**
+   * Create a queue of files to add to a bundle
+   *
+   * @param writer The writer of the bundle
+   * @param pool The pool compressing the files
+   * @param totalSizeLimit The largest total size of the files added
+   */
+  ROBundleFileQueue(ROBundleWriter writer, ForkJoinPool pool, long totalSizeLimit) {
+    this.writer = writer;
+    this.pool = pool;
+    this.maxPending = 2 * pool.getParallelism();
+    this.remainingSize = totalSizeLimit;
+  }
+
+  /**
+   * Add a file to the bundle if it fits within the remaining size limit. It is compressed in the
+   * background, and written once the files added before it have been.
+   *
+   * @param bundlePath The path of the file within the bundle
+   * @param source The file to add
+   * @param size The size of the file
+   * @return Whether the file will be added, false if the size limit has been reached
+   * @throws IOException Any errors reading or writing the files added before it
+   */
+  boolean add(Path bundlePath, Path source, long size) throws IOException {
+    if (exhausted || size > remainingSize) {
+      exhausted = true;
+      return false;
+    }
+    remainingSize -= size;
+    pending.add(new PendingFile(bundlePath, pool.submit(() -> ROBundleWriter.compress(source))));
+    if (pending.size() > maxPending) {
+      writeNext();
+    }
+    return true;
+  }
+
+  /**
+   * Write every file added to the bundle
+   *
+   * @throws IOException Any errors reading or writing the files
+   */
+  void flush() throws IOException {
+    while (!pending.isEmpty()) {
+      writeNext();
+    }
+  }
+
+  /** Stop compressing any files not yet written */
+  @Override
+  public void close() {
+    for (PendingFile file : pending) {
+      file.compressed.cancel(true);
+    }
+    pending.clear();
+  }
+
+  /**
+   * Wait for the oldest file to be compressed and write it to the bundle
+   *
+   * @throws IOException Any errors reading or writing the file
+   */
+  private void writeNext() throws IOException {
+    PendingFile next = pending.remove();
+    try {
+      writer.addCompressed(next.bundlePath, next.compressed.get());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted compressing " + next.bundlePath);
+    } catch (ExecutionException ex) {
+      // Checked exceptions are wrapped when thrown by tasks of the pool
+      for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+      }
+      throw new IOException("Could not compress " + next.bundlePath, ex.getCause());
+    }
+  }
+
+  /** A file being compressed, waiting to be written */
+  private static class PendingFile {
+
+    private final Path bundlePath;
+    private final ForkJoinTask<ROBundleWriter.CompressedFile> compressed;
+
+    private PendingFile(Path bundlePath, ForkJoinTask<ROBundleWriter.CompressedFile> compressed) {
+      this.bundlePath = bundlePath;
+      this.compressed = compressed;
+    }
+  }
+}
@@ -19,30 +19,32 @@
 
 package org.commonwl.view.researchobject;
 
-import static org.apache.commons.io.FileUtils.readFileToString;
-
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.annotation.PreDestroy;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.jena.query.QuerySolution;
 import org.apache.jena.query.ResultSet;
-import org.apache.taverna.robundle.Bundle;
-import org.apache.taverna.robundle.Bundles;
 import org.apache.taverna.robundle.manifest.Agent;
 import org.apache.taverna.robundle.manifest.Manifest;
 import org.apache.taverna.robundle.manifest.PathAnnotation;
@@ -52,8 +54,9 @@ import org.commonwl.view.WebConfig.Format;
 import org.commonwl.view.cwl.CWLTool;
 import org.commonwl.view.cwl.CWLValidationException;
 import org.commonwl.view.cwl.RDFService;
+import org.commonwl.view.git.AuthorshipIndex;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.git.GitSemaphore;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitService;
 import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.workflow.Workflow;
@@ -69,6 +72,9 @@ import org.springframework.stereotype.Service;
 @Service
 public class ROBundleService {
 
+  // Files of each bundle read and compressed at once when not configured
+  private static final int DEFAULT_PARALLELISM = 2;
+
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
   // Services
@@ -76,13 +82,17 @@ public class ROBundleService {
   private final GitService gitService;
   private final RDFService rdfService;
   private final CWLTool cwlTool;
-  private final GitSemaphore gitSemaphore;
+  private final GitLeaseManager gitLeaseManager;
 
   // Configuration variables
   private final Agent appAgent;
   private final int singleFileSizeLimit;
+  private final long totalFileSizeLimit;
   private final Path bundleStorage;
 
+  // Reads and compresses the files of bundles
+  private final ForkJoinPool compressionPool;
+
   // Pattern for extracting version from a cwl file
   private final String CWL_VERSION_REGEX = "cwlVersion:\\s*\"?(?:cwl:)?([^\\s\"]+)\"?";
   private final Pattern cwlVersionPattern = Pattern.compile(CWL_VERSION_REGEX);
@@ -96,40 +106,200 @@ public class ROBundleService {
    * @param singleFileSizeLimit The file size limit for each file in the RO bundle
    * @throws URISyntaxException Error in creating URI for appURL
    */
+  public ROBundleService(
+      Path bundleStorage,
+      String appName,
+      String appURL,
+      int singleFileSizeLimit,
+      GraphVizService graphVizService,
+      GitService gitService,
+      RDFService rdfService,
+      GitLeaseManager gitLeaseManager,
+      CWLTool cwlTool)
+      throws URISyntaxException {
+    this(
+        bundleStorage,
+        appName,
+        appURL,
+        singleFileSizeLimit,
+        Long.MAX_VALUE,
+        DEFAULT_PARALLELISM,
+        graphVizService,
+        gitService,
+        rdfService,
+        gitLeaseManager,
+        cwlTool);
+  }
+
+  /**
+   * Creates an instance of this service which handles Research Object Bundles
+   *
+   * @param bundleStorage The configured storage location for bundles
+   * @param appName The name of the application from properties, for attribution
+   * @param appURL The URL of the application from properties, for attribution
+   * @param singleFileSizeLimit The file size limit for each file in the RO bundle
+   * @param totalFileSizeLimit The limit of the total size of the files in the RO bundle, beyond
+   *     which files are linked externally
+   * @param parallelism The number of files read and compressed at once
+   * @throws URISyntaxException Error in creating URI for appURL
+   */
   @Autowired
   public ROBundleService(
       @Value("${bundleStorage}") Path bundleStorage,
       @Value("${applicationName}") String appName,
       @Value("${applicationURL}") String appURL,
       @Value("${singleFileSizeLimit}") int singleFileSizeLimit,
+      @Value("${totalFileSizeLimit}") long totalFileSizeLimit,
+      @Value("${bundleParallelism}") int parallelism,
       GraphVizService graphVizService,
       GitService gitService,
       RDFService rdfService,
-      GitSemaphore gitSemaphore,
+      GitLeaseManager gitLeaseManager,
       CWLTool cwlTool)
       throws URISyntaxException {
     this.bundleStorage = bundleStorage;
     this.appAgent = new Agent(appName);
     appAgent.setUri(new URI(appURL));
     this.singleFileSizeLimit = singleFileSizeLimit;
+    this.totalFileSizeLimit = totalFileSizeLimit;
+    this.compressionPool = new ForkJoinPool(parallelism);
     this.graphVizService = graphVizService;
     this.gitService = gitService;
     this.rdfService = rdfService;
-    this.gitSemaphore = gitSemaphore;
+    this.gitLeaseManager = gitLeaseManager;
     this.cwlTool = cwlTool;
   }
 
   /**
-   * Creates a new research object bundle for a workflow from a Git repository
+   * Creates a new research object bundle for a workflow from a Git repository, writing it straight
+   * to a ZIP file in the bundle storage
    *
    * @param workflow The workflow to create the research object for
-   * @return The constructed bundle
+   * @param gitInfo The Git details of the folder containing the workflow
+   * @return The path to the research object
+   * @throws IOException Any errors creating the bundle, in which case no file is left behind
    */
-  public Bundle createBundle(Workflow workflow, GitDetails gitInfo) throws IOException {
+  public Path createBundle(Workflow workflow, GitDetails gitInfo) throws IOException {
+    return createBundle(workflow, gitInfo, null);
+  }
 
-    // Create a new RO bundle
-    Bundle bundle = Bundles.createBundle();
-    Manifest manifest = bundle.getManifest();
+  /**
+   * Creates a new research object bundle for a workflow from a Git repository, writing it straight
+   * to a ZIP file in the bundle storage
+   *
+   * @param workflow The workflow to create the research object for
+   * @param gitInfo The Git details of the folder containing the workflow
+   * @param packed The packed version of the workflow, as produced when it was parsed, or null to
+   *     run cwltool on the checkout of the workflow
+   * @return The path to the research object
+   * @throws IOException Any errors creating the bundle, in which case no file is left behind
+   */
+  public Path createBundle(Workflow workflow, GitDetails gitInfo, String packed)
+      throws IOException {
+    String fileName = "bundle-" + java.util.UUID.randomUUID() + ".zip";
+    try (ROBundleWriter writer = new ROBundleWriter(bundleStorage.resolve(fileName))) {
+      writeBundle(workflow, gitInfo, packed, writer);
+      return writer.finish();
+    }
+  }
+
+  /**
+   * Gets the Git details of the commit a workflow was parsed from, so its checkout is reused rather
+   * than the branch being fetched again
+   *
+   * @param workflow The workflow
+   * @return The Git details of the workflow at its commit
+   */
+  private static GitDetails getCommitDetails(Workflow workflow) {
+    GitDetails gitInfo = workflow.getRetrievedFrom();
+    if (workflow.getLastCommit() == null) {
+      return gitInfo;
+    }
+    return new GitDetails(gitInfo.getRepoUrl(), workflow.getLastCommit(), gitInfo.getPath());
+  }
+
+  /**
+   * Runs cwltool to pack a workflow from its checkout
+   *
+   * @param workflow The workflow
+   * @param workTree The checkout of the commit the workflow was parsed from
+   * @return The packed workflow, with paths within the checkout replaced by permalinks, or null if
+   *     it could not be packed
+   */
+  private String packWorkflow(Workflow workflow, Path workTree) {
+    GitDetails gitInfo = workflow.getRetrievedFrom();
+    String workTreeUri = workTree.toAbsolutePath().toUri().toString();
+    String localUrl =
+        workTree.resolve(gitInfo.getPath()).normalize().toAbsolutePath().toUri().toString();
+    String packedWorkflowID = gitInfo.getPackedId();
+    if (packedWorkflowID != null) {
+      if (packedWorkflowID.charAt(0) != '#') {
+        localUrl += "#";
+      }
+      localUrl += packedWorkflowID;
+    }
+    try {
+      return cwlTool
+          .getPackedVersion(localUrl)
+          .replace(workTreeUri, "https://w3id.org/cwl/view/git/" + workflow.getLastCommit() + "/");
+    } catch (CWLValidationException ex) {
+      logger.error(
+          String.format(
+              "Could not pack workflow when creating Research Object: %s", ex.getMessage()),
+          ex);
+      return null;
+    }
+  }
+
+  /** Stops compressing the files of bundles */
+  @PreDestroy
+  public void shutdown() {
+    compressionPool.shutdownNow();
+  }
+
+  /**
+   * Gets the Git details of the folder containing a workflow, all of which is included in its
+   * research object bundle
+   *
+   * @param workflow The workflow
+   * @return The Git details of the folder
+   */
+  static GitDetails getFolderDetails(Workflow workflow) {
+    GitDetails gitInfo = workflow.getRetrievedFrom();
+    return new GitDetails(
+        gitInfo.getRepoUrl(), gitInfo.getBranch(), FilenameUtils.getPath(gitInfo.getPath()));
+  }
+
+  /**
+   * Writes the contents of the research object bundle for a workflow, leaving the manifest to be
+   * written when the bundle is finished
+   *
+   * @param workflow The workflow to create the research object for
+   * @param gitInfo The Git details of the folder containing the workflow
+   * @param writer The writer of the bundle
+   * @throws IOException Any errors creating the bundle
+   */
+  void writeBundle(Workflow workflow, GitDetails gitInfo, ROBundleWriter writer)
+      throws IOException {
+    writeBundle(workflow, gitInfo, null, writer);
+  }
+
+  /**
+   * Writes the contents of the research object bundle for a workflow, leaving the manifest to be
+   * written when the bundle is finished. The files are read from the checkout of the commit the
+   * workflow was parsed from, which is reused if it is still on disk and otherwise checked out
+   * again from the local mirror, without contacting the remote.
+   *
+   * @param workflow The workflow to create the research object for
+   * @param gitInfo The Git details of the folder containing the workflow
+   * @param packed The packed version of the workflow, as produced when it was parsed, or null to
+   *     run cwltool on the checkout of the workflow
+   * @param writer The writer of the bundle
+   * @throws IOException Any errors creating the bundle
+   */
+  void writeBundle(Workflow workflow, GitDetails gitInfo, String packed, ROBundleWriter writer)
+      throws IOException {
+    Manifest manifest = writer.getManifest();
 
     // Simplified attribution for RO bundle
     try {
@@ -145,82 +315,64 @@ public class ROBundleService {
       manifest.setRetrievedFrom(new URI(workflow.getPermalink(Format.ro)));
 
       // Make a directory in the RO bundle to store the files
-      Path bundleRoot = bundle.getRoot();
+      Path bundleRoot = writer.getRoot();
       Path bundlePath = bundleRoot.resolve("workflow");
-      Files.createDirectory(bundlePath);
+      writer.addDirectory(bundlePath);
 
       // Add the files from the repo to this workflow
       Set<HashableAgent> authors = new HashSet<>();
 
-      boolean safeToAccess = gitSemaphore.acquire(gitInfo.getRepoUrl());
-      Git gitRepo = null;
-      try {
-        gitRepo = gitService.getRepository(workflow.getRetrievedFrom(), safeToAccess);
+      try (GitLeaseManager.Lease lease = gitLeaseManager.acquire(gitInfo.getRepoUrl());
+          ROBundleFileQueue files =
+              new ROBundleFileQueue(writer, compressionPool, totalFileSizeLimit);
+          Git gitRepo = gitService.getRepository(getCommitDetails(workflow))) {
+        Path workTree = gitRepo.getRepository().getWorkTree().toPath();
         Path relativePath = Paths.get(FilenameUtils.getPath(gitInfo.getPath()));
-        Path gitPath = gitRepo.getRepository().getWorkTree().toPath().resolve(relativePath);
-        addFilesToBundle(gitInfo, bundle, bundlePath, gitRepo, gitPath, authors, workflow);
-      } catch (GitAPIException | IOException e) {
-        org.commonwl.view.util.FileUtils.deleteBundleTemporaryDirectory(bundle);
-        org.commonwl.view.util.FileUtils.deleteBundleParentDirectory(bundle);
-        throw e;
-      } finally {
-        gitSemaphore.release(gitInfo.getRepoUrl());
-        org.commonwl.view.util.FileUtils.deleteGitRepository(gitRepo);
+        Path gitPath = workTree.resolve(relativePath);
+        AuthorshipIndex authorship;
+        try {
+          // Authors of every file from one walk of the history
+          authorship = gitService.getAuthorship(gitRepo);
+        } catch (GitAPIException | IOException ex) {
+          logger.error("Could not get commits for repository " + gitInfo.getRepoUrl(), ex);
+          authorship = new AuthorshipIndex(Map.of());
+        }
+        addFilesToBundle(
+            gitInfo, writer, files, bundlePath, authorship, gitPath, authors, workflow);
+        // Files are read from the repository, so must be written while it is leased
+        files.flush();
+
+        if (packed == null) {
+          packed = packWorkflow(workflow, workTree);
+        }
       }
 
       // Add combined authors
       manifest.setAuthoredBy(new ArrayList<>(authors));
 
       // Add visualisation images
-      try (InputStream png =
-          graphVizService.getGraphStream(workflow.getVisualisationDot(), "png")) {
-        Files.copy(png, bundleRoot.resolve("visualisation.png"));
-      }
-      PathMetadata pngAggr =
-          bundle.getManifest().getAggregation(bundleRoot.resolve("visualisation.png"));
+      Path pngPath = bundleRoot.resolve("visualisation.png");
+      writer.addFile(pngPath, graphVizService.getGraphPath(workflow.getVisualisationDot(), "png"));
+      PathMetadata pngAggr = manifest.getAggregation(pngPath);
       pngAggr.setRetrievedFrom(new URI(workflow.getPermalink(Format.png)));
 
-      try (InputStream svg =
-          graphVizService.getGraphStream(workflow.getVisualisationDot(), "svg")) {
-        Files.copy(svg, bundleRoot.resolve("visualisation.svg"));
-      }
-
-      PathMetadata svgAggr =
-          bundle.getManifest().getAggregation(bundleRoot.resolve("visualisation.svg"));
+      Path svgPath = bundleRoot.resolve("visualisation.svg");
+      writer.addFile(svgPath, graphVizService.getGraphPath(workflow.getVisualisationDot(), "svg"));
+      PathMetadata svgAggr = manifest.getAggregation(svgPath);
       svgAggr.setRetrievedFrom(new URI(workflow.getPermalink(Format.svg)));
 
-      // Add annotation files
-      GitDetails wfDetails = workflow.getRetrievedFrom();
-
-      // Get URL to run cwltool
-      String rawUrl = wfDetails.getRawUrl();
-      String packedWorkflowID = wfDetails.getPackedId();
-      if (packedWorkflowID != null) {
-        if (packedWorkflowID.charAt(0) != '#') {
-          rawUrl += "#";
-        }
-        rawUrl += packedWorkflowID;
-      }
-
-      // Run cwltool for annotations
+      // Add annotation files, the packed workflow and the RDF stored when it was parsed
       List<PathAnnotation> manifestAnnotations = new ArrayList<>();
-      try {
-        addAggregation(bundle, manifestAnnotations, "merged.cwl", cwlTool.getPackedVersion(rawUrl));
-      } catch (CWLValidationException ex) {
-        logger.error(
-            String.format(
-                "Could not pack workflow when creating Research Object: %s", ex.getMessage()),
-            ex);
+      if (packed != null) {
+        addAggregation(
+            writer, manifestAnnotations, "merged.cwl", packed.getBytes(StandardCharsets.UTF_8));
       }
       String rdfUrl = workflow.getIdentifier();
       if (rdfService.graphExists(rdfUrl)) {
         addAggregation(
-            bundle,
-            manifestAnnotations,
-            "workflow.ttl",
-            new String(rdfService.getModel(rdfUrl, "TURTLE")));
+            writer, manifestAnnotations, "workflow.ttl", rdfService.getModel(rdfUrl, "TURTLE"));
       }
-      bundle.getManifest().setAnnotations(manifestAnnotations);
+      manifest.setAnnotations(manifestAnnotations);
 
       // Git2prov history
       List<Path> history = new ArrayList<>();
@@ -229,48 +381,43 @@ public class ROBundleService {
           "http://git2prov.org/git2prov?giturl="
               + gitInfo.getRepoUrl()
               + "&serialization=PROV-JSON";
-      Path git2ProvPath = bundle.getRoot().relativize(bundle.getRoot().resolve(git2prov));
+      Path git2ProvPath = bundleRoot.relativize(bundleRoot.resolve(git2prov));
       history.add(git2ProvPath);
-      bundle.getManifest().setHistory(history);
+      manifest.setHistory(history);
 
     } catch (URISyntaxException ex) {
-      logger.error("Error creating URI for RO Bundle", ex);
-      org.commonwl.view.util.FileUtils.deleteBundleTemporaryDirectory(bundle);
-      org.commonwl.view.util.FileUtils.deleteBundleParentDirectory(bundle);
+      throw new IOException("Error creating URI for RO Bundle", ex);
     } catch (GitAPIException ex) {
-      logger.error("Error getting repository to create RO Bundle", ex);
-      org.commonwl.view.util.FileUtils.deleteBundleTemporaryDirectory(bundle);
-      org.commonwl.view.util.FileUtils.deleteBundleParentDirectory(bundle);
+      throw new IOException("Error getting repository to create RO Bundle", ex);
     }
-    // TODO: Why are we not re-throwing the exceptions above? It looks like we should
-    //       so users/admins are aware of the problem.
-
-    // Return the completed bundle
-    return bundle;
   }
 
   /**
    * Add files to this bundle from a list of repository contents
    *
    * @param gitDetails The Git information for the repository
-   * @param bundle The RO bundle to add files/directories to
+   * @param writer The writer of the RO bundle to add directories to
+   * @param files The queue of files to add to the RO bundle, within its size limit
    * @param bundlePath The current path within the RO bundle
-   * @param gitRepo The Git repository
+   * @param authorship The authors of each path in the Git repository
    * @param repoPath The current path within the Git repository
    * @param authors The combined set of authors for al the files
    */
   private void addFilesToBundle(
       GitDetails gitDetails,
-      Bundle bundle,
+      ROBundleWriter writer,
+      ROBundleFileQueue files,
       Path bundlePath,
-      Git gitRepo,
+      AuthorshipIndex authorship,
       Path repoPath,
       Set<HashableAgent> authors,
       Workflow workflow)
       throws IOException {
-    File[] files = repoPath.toFile().listFiles();
-    if (files != null) {
-      for (File file : files) {
+    File[] repoFiles = repoPath.toFile().listFiles();
+    if (repoFiles != null) {
+      // In a fixed order, so the same files are bundled when over the size limit
+      Arrays.sort(repoFiles);
+      for (File file : repoFiles) {
         if (!file.getName().equals(".git")) {
           BasicFileAttributes basicFileAttributes =
               Files.readAttributes(file.toPath(), BasicFileAttributes.class);
@@ -278,7 +425,7 @@ public class ROBundleService {
 
             // Create a new folder in the RO for this directory
             Path newBundlePath = bundlePath.resolve(file.getName());
-            Files.createDirectory(newBundlePath);
+            writer.addDirectory(newBundlePath);
 
             // Create git details object for subfolder
             GitDetails subfolderGitDetails =
@@ -290,9 +437,10 @@ public class ROBundleService {
             // Add all files in the subdirectory to this new folder
             addFilesToBundle(
                 subfolderGitDetails,
-                bundle,
+                writer,
+                files,
                 newBundlePath,
-                gitRepo,
+                authorship,
                 repoPath.resolve(file.getName()),
                 authors,
                 workflow);
@@ -313,36 +461,43 @@ public class ROBundleService {
                           + gitPath
                           + "?format=raw");
 
-              // Variable to store file contents and aggregation
-              String fileContent = null;
+              // Aggregation for the file, and whether it is copied into the bundle
               PathMetadata aggregation;
+              long size = basicFileAttributes.size();
+              boolean bundled =
+                  size <= singleFileSizeLimit && files.add(bundleFilePath, file.toPath(), size);
 
-              // Download or externally link if oversized
-              if (basicFileAttributes.size() <= singleFileSizeLimit) {
-                // Save file to research object bundle
-                fileContent = readFileToString(file, Charset.defaultCharset());
-                Bundles.setStringValue(bundleFilePath, fileContent);
-
+              // Download or externally link if oversized or the bundle is full
+              if (bundled) {
                 // Set retrieved information for this file in the manifest
-                aggregation = bundle.getManifest().getAggregation(bundleFilePath);
+                aggregation = writer.getManifest().getAggregation(bundleFilePath);
                 aggregation.setRetrievedFrom(rawURI);
                 aggregation.setRetrievedBy(appAgent);
                 aggregation.setRetrievedOn(aggregation.getCreatedOn());
               } else {
-                logger.info(
-                    "File "
-                        + file.getName()
-                        + " is too large to download - "
-                        + FileUtils.byteCountToDisplaySize(basicFileAttributes.size())
-                        + "/"
-                        + FileUtils.byteCountToDisplaySize(singleFileSizeLimit)
-                        + ", linking externally to RO bundle");
+                if (size > singleFileSizeLimit) {
+                  logger.info(
+                      "File "
+                          + file.getName()
+                          + " is too large to download - "
+                          + FileUtils.byteCountToDisplaySize(size)
+                          + "/"
+                          + FileUtils.byteCountToDisplaySize(singleFileSizeLimit)
+                          + ", linking externally to RO bundle");
+                } else {
+                  logger.info(
+                      "RO bundle size limit of "
+                          + FileUtils.byteCountToDisplaySize(totalFileSizeLimit)
+                          + " reached, linking "
+                          + file.getName()
+                          + " externally");
+                }
 
                 // Set information for this file in the manifest
-                aggregation = bundle.getManifest().getAggregation(rawURI);
+                aggregation = writer.getManifest().getAggregation(rawURI);
                 Proxy bundledAs = new Proxy();
                 bundledAs.setURI();
-                bundledAs.setFolder(repoPath);
+                bundledAs.setFolder(bundlePath);
                 aggregation.setBundledAs(bundledAs);
               }
 
@@ -353,47 +508,43 @@ public class ROBundleService {
                 aggregation.setMediatype("text/x-yaml");
 
                 // Add conformsTo for version extracted from regex
-                if (fileContent != null) {
-                  Matcher m = cwlVersionPattern.matcher(fileContent);
-                  if (m.find()) {
-                    aggregation.setConformsTo(new URI("https://w3id.org/cwl/" + m.group(1)));
+                if (bundled) {
+                  String cwlVersion = findCwlVersion(file.toPath());
+                  if (cwlVersion != null) {
+                    aggregation.setConformsTo(new URI("https://w3id.org/cwl/" + cwlVersion));
                   }
                 }
               }
 
-              try {
-                // Add authors from git commits to the file
-                Set<HashableAgent> fileAuthors = gitService.getAuthors(gitRepo, gitPath.toString());
-
-                if (cwl) {
-                  // Attempt to get authors from cwl description - takes priority
-                  ResultSet descAuthors =
-                      rdfService.getAuthors(
-                          bundlePath.resolve(file.getName()).toString().substring(10),
-                          workflow.getIdentifier());
-                  if (descAuthors.hasNext()) {
-                    QuerySolution authorSolution = descAuthors.nextSolution();
-                    HashableAgent newAuthor = new HashableAgent();
-                    if (authorSolution.contains("name")) {
-                      newAuthor.setName(authorSolution.get("name").toString());
-                    }
-                    if (authorSolution.contains("email")) {
-                      newAuthor.setUri(new URI(authorSolution.get("email").toString()));
-                    }
-                    if (authorSolution.contains("orcid")) {
-                      newAuthor.setOrcid(new URI(authorSolution.get("orcid").toString()));
-                    }
-                    fileAuthors.remove(newAuthor);
-                    fileAuthors.add(newAuthor);
+              // Add authors from git commits to the file
+              Set<HashableAgent> fileAuthors = authorship.getAuthors(gitPath.toString());
+
+              if (cwl) {
+                // Attempt to get authors from cwl description - takes priority
+                ResultSet descAuthors =
+                    rdfService.getAuthors(
+                        bundlePath.resolve(file.getName()).toString().substring(10),
+                        workflow.getIdentifier());
+                if (descAuthors.hasNext()) {
+                  QuerySolution authorSolution = descAuthors.nextSolution();
+                  HashableAgent newAuthor = new HashableAgent();
+                  if (authorSolution.contains("name")) {
+                    newAuthor.setName(authorSolution.get("name").toString());
                   }
+                  if (authorSolution.contains("email")) {
+                    newAuthor.setUri(new URI(authorSolution.get("email").toString()));
+                  }
+                  if (authorSolution.contains("orcid")) {
+                    newAuthor.setOrcid(new URI(authorSolution.get("orcid").toString()));
+                  }
+                  fileAuthors.remove(newAuthor);
+                  fileAuthors.add(newAuthor);
                 }
-
-                authors.addAll(fileAuthors);
-                aggregation.setAuthoredBy(new ArrayList<>(fileAuthors));
-              } catch (GitAPIException ex) {
-                logger.error("Could not get commits for file " + repoPath, ex);
               }
 
+              authors.addAll(fileAuthors);
+              aggregation.setAuthoredBy(new ArrayList<>(fileAuthors));
+
               // Set retrieved information for this file in the manifest
               aggregation.setRetrievedFrom(rawURI);
               aggregation.setRetrievedBy(appAgent);
@@ -409,37 +560,47 @@ public class ROBundleService {
   }
 
   /**
-   * Save the Research Object Bundle to disk
+   * Find the CWL version declared in a file, reading only as far as the declaration
    *
-   * @param roBundle The bundle to be saved
-   * @return The path to the research object
-   * @throws IOException Any errors in saving
+   * @param cwlFile The CWL file
+   * @return The version, or null if none is declared
+   * @throws IOException Any errors reading the file
    */
-  public Path saveToFile(Bundle roBundle) throws IOException {
-    String fileName = "bundle-" + java.util.UUID.randomUUID() + ".zip";
-    Path bundleLocation = Files.createFile(bundleStorage.resolve(fileName));
-    Bundles.closeAndSaveBundle(roBundle, bundleLocation);
-    return bundleLocation;
+  private String findCwlVersion(Path cwlFile) throws IOException {
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(Files.newInputStream(cwlFile), Charset.defaultCharset()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        Matcher m = cwlVersionPattern.matcher(line);
+        if (m.find()) {
+          return m.group(1);
+        }
+      }
+    }
+    return null;
   }
 
   /**
    * Add an aggregation to the Research Object Bundle
    *
-   * @param roBundle The bundle to add to
-   * @param fileName The file name of the aggregation
+   * @param writer The writer of the bundle to add to
    * @param manifestAnnotations The list of manifest aggregations
-   * @param content The identifier for the resource containing the body of the annotation
+   * @param fileName The file name of the aggregation
+   * @param content The body of the annotation
    * @throws IOException Errors accessing the bundle
    */
   private void addAggregation(
-      Bundle roBundle, List<PathAnnotation> manifestAnnotations, String fileName, String content)
+      ROBundleWriter writer,
+      List<PathAnnotation> manifestAnnotations,
+      String fileName,
+      byte[] content)
       throws IOException {
-    Path annotations = Bundles.getAnnotations(roBundle);
-    Path packedPath = annotations.resolve(fileName);
-    Bundles.setStringValue(packedPath, content);
+    Path packedPath = writer.getAnnotations().resolve(fileName);
+    writer.addBytes(packedPath, content);
     PathAnnotation packedFile = new PathAnnotation();
     packedFile.setContent(packedPath);
-    packedFile.setAbout(roBundle.getManifest().getId());
+    packedFile.setAbout(writer.getManifest().getId());
     packedFile.generateAnnotationId();
     manifestAnnotations.add(packedFile);
   }
@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.researchobject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.taverna.robundle.Bundle;
+import org.apache.taverna.robundle.Bundles;
+import org.apache.taverna.robundle.manifest.Manifest;
+import org.commonwl.view.util.FileUtils;
+
+/**
+ * Writes a Research Object Bundle straight into a ZIP file, copying each file into the archive as
+ * it is added so that no file is written to disk twice. Files may instead be compressed ahead of
+ * time with {@link #compress(Path)}, which is safe to call from other threads, so several files are
+ * compressed at once while the archive is still written in order.
+ *
+ * <p>The manifest is built in an otherwise empty Apache Taverna bundle, which is only used to
+ * serialise it, and is written as the last entry once every aggregation is known.
+ */
+class ROBundleWriter implements Closeable {
+
+  // Media type of Research Object Bundles, stored uncompressed as the first entry of the ZIP
+  private static final String MIMETYPE = "application/vnd.wf4ever.robundle+zip";
+
+  private final Path zipFile;
+  private final ZipArchiveOutputStream zip;
+  private final Bundle manifestBundle;
+  private final Set<String> directories = new HashSet<>();
+  private boolean finished = false;
+
+  /**
+   * Start writing a bundle, creating its ZIP file
+   *
+   * @param zipFile The file the bundle is written to
+   * @throws IOException Any errors creating the file
+   */
+  ROBundleWriter(Path zipFile) throws IOException {
+    this(zipFile, null);
+  }
+
+  /**
+   * Start writing a bundle, creating its ZIP file and sending each part of it to a stream as soon
+   * as it is written to the file
+   *
+   * @param zipFile The file the bundle is written to
+   * @param copy The stream also receiving the bundle, which is not closed, or null
+   * @throws IOException Any errors creating the file
+   */
+  ROBundleWriter(Path zipFile, OutputStream copy) throws IOException {
+    this.zipFile = zipFile;
+    OutputStream out = Files.newOutputStream(zipFile);
+    if (copy != null) {
+      out = new TeeOutputStream(out, CloseShieldOutputStream.wrap(copy));
+    }
+    this.zip = new ZipArchiveOutputStream(new BufferedOutputStream(out));
+    try {
+      writeMimetype();
+      this.manifestBundle = Bundles.createBundle();
+    } catch (IOException ex) {
+      try {
+        zip.close();
+      } finally {
+        Files.deleteIfExists(zipFile);
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Get the root of the bundle, which paths of files added to it are resolved against
+   *
+   * @return The root path
+   */
+  Path getRoot() {
+    return manifestBundle.getRoot();
+  }
+
+  /**
+   * Get the manifest of the bundle, to which the metadata of added files should be added
+   *
+   * @return The manifest
+   * @throws IOException Errors accessing the manifest
+   */
+  Manifest getManifest() throws IOException {
+    return manifestBundle.getManifest();
+  }
+
+  /**
+   * Get the directory of annotations within the bundle
+   *
+   * @return The path of the directory
+   * @throws IOException Errors accessing the bundle
+   */
+  Path getAnnotations() throws IOException {
+    return Bundles.getAnnotations(manifestBundle);
+  }
+
+  /**
+   * Add an empty directory to the bundle, such as one within the repository
+   *
+   * @param bundlePath The path of the directory within the bundle
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  void addDirectory(Path bundlePath) throws IOException {
+    putDirectories(entryName(bundlePath) + "/");
+  }
+
+  /**
+   * Copy a file into the bundle
+   *
+   * @param bundlePath The path of the file within the bundle
+   * @param source The file to copy
+   * @throws IOException Any errors reading the file or writing to the ZIP file
+   */
+  void addFile(Path bundlePath, Path source) throws IOException {
+    putEntry(bundlePath);
+    Files.copy(source, zip);
+    zip.closeArchiveEntry();
+  }
+
+  /**
+   * Add a file compressed with {@link #compress(Path)} to the bundle, copying the compressed data
+   * into the archive as it is
+   *
+   * @param bundlePath The path of the file within the bundle
+   * @param file The compressed file
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  void addCompressed(Path bundlePath, CompressedFile file) throws IOException {
+    String name = entryName(bundlePath);
+    putParentDirectories(name);
+    ZipArchiveEntry entry = new ZipArchiveEntry(name);
+    entry.setMethod(ZipEntry.DEFLATED);
+    entry.setSize(file.size);
+    entry.setCompressedSize(file.deflated.length);
+    entry.setCrc(file.crc);
+    zip.addRawArchiveEntry(entry, new ByteArrayInputStream(file.deflated));
+  }
+
+  /**
+   * Read and compress a file, ready to be added to a bundle with {@link #addCompressed}
+   *
+   * @param source The file to compress
+   * @return The compressed file
+   * @throws IOException Any errors reading the file
+   */
+  static CompressedFile compress(Path source) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    // ZIP entries hold raw deflate data, without the zlib header and checksum
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    long size;
+    try (InputStream in = new CheckedInputStream(Files.newInputStream(source), crc);
+        DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater)) {
+      size = in.transferTo(out);
+    } finally {
+      deflater.end();
+    }
+    return new CompressedFile(deflated.toByteArray(), size, crc.getValue());
+  }
+
+  /**
+   * Add a file with the given content to the bundle
+   *
+   * @param bundlePath The path of the file within the bundle
+   * @param content The content of the file
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  void addBytes(Path bundlePath, byte[] content) throws IOException {
+    putEntry(bundlePath);
+    zip.write(content);
+    zip.closeArchiveEntry();
+  }
+
+  /**
+   * Write the manifest as the last entry and complete the ZIP file
+   *
+   * @return The completed bundle
+   * @throws IOException Any errors writing the manifest or the ZIP file
+   */
+  Path finish() throws IOException {
+    getManifest().writeAsJsonLD();
+    Path manifestPath = getRoot().resolve(".ro").resolve("manifest.json");
+    addFile(manifestPath, manifestPath);
+    zip.close();
+    finished = true;
+    return zipFile;
+  }
+
+  /**
+   * Discard the manifest and, unless the bundle was finished, the incomplete ZIP file
+   *
+   * @throws IOException Any errors deleting the files
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (!finished) {
+        try {
+          zip.close();
+        } finally {
+          Files.deleteIfExists(zipFile);
+        }
+      }
+    } finally {
+      manifestBundle.close();
+      FileUtils.deleteBundleTemporaryDirectory(manifestBundle);
+      FileUtils.deleteBundleParentDirectory(manifestBundle);
+    }
+  }
+
+  /**
+   * Write the media type of the bundle, which must be the first entry and stored uncompressed so it
+   * can be read at a fixed offset
+   *
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  private void writeMimetype() throws IOException {
+    byte[] mimetype = MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+    CRC32 crc = new CRC32();
+    crc.update(mimetype);
+    ZipArchiveEntry entry = new ZipArchiveEntry("mimetype");
+    entry.setMethod(ZipEntry.STORED);
+    entry.setSize(mimetype.length);
+    entry.setCompressedSize(mimetype.length);
+    entry.setCrc(crc.getValue());
+    zip.putArchiveEntry(entry);
+    zip.write(mimetype);
+    zip.closeArchiveEntry();
+  }
+
+  /**
+   * Start the entry of a file, after the entries of any directories containing it
+   *
+   * @param bundlePath The path of the file within the bundle
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  private void putEntry(Path bundlePath) throws IOException {
+    String name = entryName(bundlePath);
+    putParentDirectories(name);
+    zip.putArchiveEntry(new ZipArchiveEntry(name));
+  }
+
+  /**
+   * Write the entries of the directories containing a file, once each
+   *
+   * @param name The entry name of the file
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  private void putParentDirectories(String name) throws IOException {
+    int lastSlash = name.lastIndexOf('/');
+    if (lastSlash > 0) {
+      putDirectories(name.substring(0, lastSlash + 1));
+    }
+  }
+
+  /**
+   * Write the entries of a directory and its parents, once each
+   *
+   * @param directory The entry name of the directory, ending with a slash
+   * @throws IOException Any errors writing to the ZIP file
+   */
+  private void putDirectories(String directory) throws IOException {
+    int slash = directory.indexOf('/');
+    while (slash > 0) {
+      String name = directory.substring(0, slash + 1);
+      if (directories.add(name)) {
+        zip.putArchiveEntry(new ZipArchiveEntry(name));
+        zip.closeArchiveEntry();
+      }
+      slash = directory.indexOf('/', slash + 1);
+    }
+  }
+
+  /**
+   * Get the name of the ZIP entry for a path within the bundle
+   *
+   * @param bundlePath The path within the bundle, which may already be relative to its root
+   * @return The path relative to the root of the bundle
+   */
+  private String entryName(Path bundlePath) {
+    return getRoot().relativize(getRoot().resolve(bundlePath)).toString();
+  }
+
+  /** A file compressed ahead of being added to a bundle */
+  static final class CompressedFile {
+
+    private final byte[] deflated;
+    private final long size;
+    private final long crc;
+
+    private CompressedFile(byte[] deflated, long size, long crc) {
+      this.deflated = deflated;
+      this.size = size;
+      this.crc = crc;
+    }
+  }
+}
@@ -108,10 +108,9 @@ public class FileUtils {
    * @since 1.4.6
    */
   public static void deleteBundleTemporaryDirectory(Bundle bundle) throws IOException {
-    // The RoBundleService#saveToFile call will delegate to Apache Taverna's
-    // Bundles.closeAndSaveBundle, which empties the bundle temporary
-    // directory without deleting the directory itself. The following call is
-    // just for cleaning it up.
+    // Closing the Apache Taverna bundle which holds the manifest of a
+    // ROBundleWriter empties the bundle temporary directory without deleting
+    // the directory itself. The following call is just for cleaning it up.
     if (bundle != null) {
       BundleFileSystem fs = (BundleFileSystem) bundle.getFileSystem();
       File tmpDir = new File(System.getProperty("java.io.tmpdir"));
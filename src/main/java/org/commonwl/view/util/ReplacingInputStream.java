@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replaces strings in a UTF-8 encoded stream as it is read, using a buffer no larger than needed to
+ * recognise the longest of them. Where several strings match at the same position, the longest is
+ * replaced.
+ */
+public class ReplacingInputStream extends FilterInputStream {
+
+  private static final int MIN_BUFFER_SIZE = 8192;
+
+  private final byte[][] targets;
+  private final byte[][] replacements;
+  private final boolean[] firstBytes = new boolean[256];
+  private final int maxTargetLength;
+
+  // Bytes read ahead from the underlying stream, from position to limit
+  private final byte[] buffer;
+  private int position = 0;
+  private int limit = 0;
+  private boolean endOfStream = false;
+
+  // Replacement being returned
+  private byte[] replacement;
+  private int replacementPosition;
+
+  /**
+   * Creates a stream replacing strings
+   *
+   * @param in The underlying stream, encoded as UTF-8
+   * @param replacements The replacement for each string, strings must not be empty
+   */
+  public ReplacingInputStream(InputStream in, Map<String, String> replacements) {
+    super(in);
+    List<Map.Entry<String, String>> entries = new ArrayList<>(replacements.entrySet());
+    entries.sort(
+        Comparator.comparingInt(
+                (Map.Entry<String, String> e) -> e.getKey().getBytes(StandardCharsets.UTF_8).length)
+            .reversed());
+    this.targets = new byte[entries.size()][];
+    this.replacements = new byte[entries.size()][];
+    int maxLength = 1;
+    for (int i = 0; i < entries.size(); i++) {
+      targets[i] = entries.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+      if (targets[i].length == 0) {
+        throw new IllegalArgumentException("Cannot replace an empty string");
+      }
+      this.replacements[i] = entries.get(i).getValue().getBytes(StandardCharsets.UTF_8);
+      firstBytes[targets[i][0] & 0xff] = true;
+      maxLength = Math.max(maxLength, targets[i].length);
+    }
+    this.maxTargetLength = maxLength;
+    this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, maxLength * 2)];
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (true) {
+      if (replacement != null) {
+        if (replacementPosition < replacement.length) {
+          return replacement[replacementPosition++] & 0xff;
+        }
+        replacement = null;
+      }
+      if (limit - position < maxTargetLength) {
+        fill();
+        if (position == limit) {
+          return -1;
+        }
+      }
+      byte next = buffer[position];
+      if (firstBytes[next & 0xff]) {
+        int match = findMatch();
+        if (match >= 0) {
+          position += targets[match].length;
+          replacement = replacements[match];
+          replacementPosition = 0;
+          continue;
+        }
+      }
+      position++;
+      return next & 0xff;
+    }
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int count = 0;
+    while (count < len) {
+      // Stop early rather than block once something has been read
+      if (count > 0 && replacement == null && limit - position < maxTargetLength && !endOfStream) {
+        break;
+      }
+      // Copy runs of bytes which cannot start a target directly
+      int run = 0;
+      if (replacement == null) {
+        int end = Math.min(limit, position + len - count);
+        while (position + run < end && !firstBytes[buffer[position + run] & 0xff]) {
+          run++;
+        }
+      }
+      if (run > 0) {
+        System.arraycopy(buffer, position, b, off + count, run);
+        position += run;
+        count += run;
+        continue;
+      }
+      int next = read();
+      if (next == -1) {
+        break;
+      }
+      b[off + count++] = (byte) next;
+    }
+    return count == 0 ? -1 : count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n && read() != -1) {
+      skipped++;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return replacement == null
+        ? limit - position
+        : replacement.length - replacementPosition + limit - position;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {}
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /** Reads ahead until the longest target fits in the buffer, or the stream ends */
+  private void fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    while (!endOfStream && limit < maxTargetLength) {
+      int read = in.read(buffer, limit, buffer.length - limit);
+      if (read == -1) {
+        endOfStream = true;
+      } else {
+        limit += read;
+      }
+    }
+  }
+
+  /**
+   * Finds the target starting at the current position
+   *
+   * @return The index of the target, or -1 if none matches
+   */
+  private int findMatch() {
+    for (int i = 0; i < targets.length; i++) {
+      byte[] target = targets[i];
+      if (target.length <= limit - position) {
+        int j = 0;
+        while (j < target.length && buffer[position + j] == target[j]) {
+          j++;
+        }
+        if (j == target.length) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces concurrent calls for the same key, so only the first caller does the work and the
+ * others wait for and share its result (or exception). Calls made after the first one has completed
+ * run again.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the results
+ */
+public class SingleFlight<K, V> {
+
+  /**
+   * A call which may throw a checked exception
+   *
+   * @param <V> The type of the result
+   * @param <E> The type of the exception thrown
+   */
+  @FunctionalInterface
+  public interface Call<V, E extends Exception> {
+    V call() throws E;
+  }
+
+  private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Runs a call, or waits for the one already running for the same key
+   *
+   * @param key The key identifying the work
+   * @param call The work to be done if no call is running for the key
+   * @return The result of the call
+   * @throws E The exception thrown by the call, whichever thread ran it
+   */
+  public <E extends Exception> V execute(K key, Call<V, E> call) throws E {
+    CompletableFuture<V> future = new CompletableFuture<>();
+    CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      return await(existing);
+    }
+
+    try {
+      V result = call.call();
+      future.complete(result);
+      return result;
+    } catch (Exception | Error ex) {
+      future.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Whether a call is currently running for a key
+   *
+   * @param key The key identifying the work
+   * @return Whether a call is running
+   */
+  public boolean isInFlight(K key) {
+    return inFlight.containsKey(key);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <E extends Exception> V await(CompletableFuture<V> future) throws E {
+    try {
+      return future.join();
+    } catch (CompletionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      // Callers sharing a key are expected to throw the same kinds of exception
+      throw (E) cause;
+    }
+  }
+}
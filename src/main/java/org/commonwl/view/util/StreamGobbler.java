@@ -19,29 +19,48 @@
 
 package org.commonwl.view.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 
-/** Background thread to consume stream and collect contents */
+/**
+ * Background thread to consume stream and collect contents, keeping at most a given number of
+ * characters so a noisy process cannot exhaust memory. The stream is always read to the end so the
+ * process writing it does not block.
+ */
 public class StreamGobbler extends Thread {
-  private final String lineSeparator = System.getProperty("line.separator");
+  private static final int CHUNK_SIZE = 8192;
 
-  private InputStream is;
-  private String content = "";
+  private final InputStream is;
+  private final int limit;
+  private final StringBuilder content = new StringBuilder();
+  private volatile boolean truncated = false;
 
   public StreamGobbler(InputStream is) {
+    this(is, Integer.MAX_VALUE);
+  }
+
+  public StreamGobbler(InputStream is, int limit) {
     this.is = is;
+    this.limit = limit;
   }
 
   public void run() {
-    try {
-      InputStreamReader isr = new InputStreamReader(is);
-      BufferedReader br = new BufferedReader(isr);
-      String line;
-      while ((line = br.readLine()) != null) {
-        content += line + lineSeparator;
+    try (Reader reader = new InputStreamReader(is, StandardCharsets.UTF_8)) {
+      char[] chunk = new char[CHUNK_SIZE];
+      int read;
+      while ((read = reader.read(chunk)) != -1) {
+        synchronized (content) {
+          int kept = Math.min(read, limit - content.length());
+          if (kept > 0) {
+            content.append(chunk, 0, kept);
+          }
+          if (kept < read) {
+            truncated = true;
+          }
+        }
       }
     } catch (IOException ex) {
       ex.printStackTrace();
@@ -49,6 +68,17 @@ public class StreamGobbler extends Thread {
   }
 
   public String getContent() {
-    return content;
+    synchronized (content) {
+      return content.toString();
+    }
+  }
+
+  /**
+   * Whether some of the stream was discarded because it was longer than the limit
+   *
+   * @return Whether the content is incomplete
+   */
+  public boolean isTruncated() {
+    return truncated;
   }
 }
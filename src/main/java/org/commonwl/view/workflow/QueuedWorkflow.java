@@ -12,6 +12,7 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import org.commonwl.view.cwl.CWLToolStatus;
 import org.commonwl.view.util.BaseEntity;
 import org.hibernate.annotations.GenericGenerator;
@@ -57,6 +58,9 @@ public class QueuedWorkflow extends BaseEntity implements Serializable {
   @Column(columnDefinition = "TEXT")
   private String message;
 
+  // Position among the workflows waiting for cwltool, not stored
+  @Transient private Integer queuePosition;
+
   public String getId() {
     return id;
   }
@@ -93,6 +97,14 @@ public class QueuedWorkflow extends BaseEntity implements Serializable {
     this.message = message;
   }
 
+  public Integer getQueuePosition() {
+    return queuePosition;
+  }
+
+  public void setQueuePosition(Integer queuePosition) {
+    this.queuePosition = queuePosition;
+  }
+
   public List<WorkflowOverview> getWorkflowList() {
     return workflowList;
   }
@@ -274,6 +274,10 @@ public class Workflow extends BaseEntity implements Serializable {
     return retrievedFrom.getInternalUrl().replaceFirst("/workflows", "/graph/svg");
   }
 
+  public String getVisualisationLayout() {
+    return retrievedFrom.getInternalUrl().replaceFirst("/workflows", "/graph/json");
+  }
+
   public String getRoBundle() {
     if (roBundlePath != null) {
       return getRoBundleLink();
@@ -31,7 +31,9 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
@@ -53,6 +55,7 @@ import org.springframework.core.io.PathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PageableDefault;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -60,6 +63,7 @@ import org.springframework.ui.Model;
 import org.springframework.validation.BeanPropertyBindingResult;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.HandlerMapping;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.RedirectAttributes;
@@ -68,6 +72,9 @@ import org.springframework.web.servlet.view.RedirectView;
 @Controller
 public class WorkflowController {
 
+  static final String ROBUNDLE_MEDIA_TYPE = "application/vnd.wf4ever.robundle+zip";
+  static final String ZIP_MEDIA_TYPE = "application/zip";
+
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
   private final WorkflowFormValidator workflowFormValidator;
@@ -257,14 +264,13 @@ public class WorkflowController {
       @PathVariable("repoName") String repoName,
       @PathVariable("branch") String branch,
       HttpServletRequest request,
-      HttpServletResponse response) {
+      HttpServletResponse response)
+      throws IOException {
     String path =
         (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
     path = extractPath(path, 7);
     GitDetails gitDetails = getGitDetails(domain, owner, repoName, branch, path);
-    File bundleDownload = workflowService.getROBundle(gitDetails);
-    response.setHeader("Content-Disposition", "attachment; filename=bundle.zip;");
-    return new FileSystemResource(bundleDownload);
+    return sendROBundle(workflowService, gitDetails, request, response);
   }
 
   /**
@@ -279,13 +285,12 @@ public class WorkflowController {
   public Resource getROBundleGeneric(
       @PathVariable("branch") String branch,
       HttpServletRequest request,
-      HttpServletResponse response) {
+      HttpServletResponse response)
+      throws IOException {
     String path =
         (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
     GitDetails gitDetails = getGitDetails(10, path, branch);
-    File bundleDownload = workflowService.getROBundle(gitDetails);
-    response.setHeader("Content-Disposition", "attachment; filename=bundle.zip;");
-    return new FileSystemResource(bundleDownload);
+    return sendROBundle(workflowService, gitDetails, request, response);
   }
 
   /**
@@ -295,6 +300,7 @@ public class WorkflowController {
    * @param owner The owner of the repository
    * @param repoName The name of the repository
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(
       value = {
@@ -308,6 +314,7 @@ public class WorkflowController {
       @PathVariable("owner") String owner,
       @PathVariable("repoName") String repoName,
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -316,18 +323,20 @@ public class WorkflowController {
     path = extractPath(path, 8);
     GitDetails gitDetails = getGitDetails(domain, owner, repoName, branch, path);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.svg\"");
-    return workflowService.getWorkflowGraph("svg", gitDetails);
+    return getGraph("svg", gitDetails, expand, request, response);
   }
 
   /**
    * Download a generated graph for a workflow in SVG format
    *
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(value = "/graph/svg/**/*.git/{branch}/**", produces = "image/svg+xml")
   @ResponseBody
   public Resource downloadGraphSvgGeneric(
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -335,7 +344,7 @@ public class WorkflowController {
         (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
     GitDetails gitDetails = getGitDetails(11, path, branch);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.svg\"");
-    return workflowService.getWorkflowGraph("svg", gitDetails);
+    return getGraph("svg", gitDetails, expand, request, response);
   }
 
   /**
@@ -345,6 +354,7 @@ public class WorkflowController {
    * @param owner The owner of the repository
    * @param repoName The name of the repository
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(
       value = {
@@ -358,6 +368,7 @@ public class WorkflowController {
       @PathVariable("owner") String owner,
       @PathVariable("repoName") String repoName,
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -366,18 +377,20 @@ public class WorkflowController {
     path = extractPath(path, 8);
     GitDetails gitDetails = getGitDetails(domain, owner, repoName, branch, path);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.png\"");
-    return workflowService.getWorkflowGraph("png", gitDetails);
+    return getGraph("png", gitDetails, expand, request, response);
   }
 
   /**
    * Download a generated graph for a workflow in PNG format
    *
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(value = "/graph/png/**/*.git/{branch}/**", produces = "image/png")
   @ResponseBody
   public Resource downloadGraphPngGeneric(
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -385,7 +398,7 @@ public class WorkflowController {
         (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
     GitDetails gitDetails = getGitDetails(11, path, branch);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.png\"");
-    return workflowService.getWorkflowGraph("png", gitDetails);
+    return getGraph("png", gitDetails, expand, request, response);
   }
 
   /**
@@ -395,6 +408,7 @@ public class WorkflowController {
    * @param owner The owner of the repository
    * @param repoName The name of the repository
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(
       value = {
@@ -408,6 +422,7 @@ public class WorkflowController {
       @PathVariable("owner") String owner,
       @PathVariable("repoName") String repoName,
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -416,18 +431,20 @@ public class WorkflowController {
     path = extractPath(path, 8);
     GitDetails gitDetails = getGitDetails(domain, owner, repoName, branch, path);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.dot\"");
-    return workflowService.getWorkflowGraph("xdot", gitDetails);
+    return getGraph("xdot", gitDetails, expand, request, response);
   }
 
   /**
    * Download a generated graph for a workflow in XDOT format
    *
    * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
    */
   @GetMapping(value = "/graph/xdot/**/*.git/{branch}/**", produces = "text/vnd.graphviz")
   @ResponseBody
   public Resource downloadGraphDotGeneric(
       @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
       HttpServletRequest request,
       HttpServletResponse response)
       throws IOException {
@@ -435,7 +452,64 @@ public class WorkflowController {
         (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
     GitDetails gitDetails = getGitDetails(12, path, branch);
     response.setHeader("Content-Disposition", "inline; filename=\"graph.dot\"");
-    return workflowService.getWorkflowGraph("xdot", gitDetails);
+    return getGraph("xdot", gitDetails, expand, request, response);
+  }
+
+  /**
+   * Download the layout of a generated graph for a workflow, with the positions of its nodes, edges
+   * and clusters as Graphviz JSON, so it can be drawn in the browser
+   *
+   * @param domain The domain of the hosting site, github.com or gitlab.com
+   * @param owner The owner of the repository
+   * @param repoName The name of the repository
+   * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
+   */
+  @GetMapping(
+      value = {
+        "/graph/json/{domain}.com/{owner}/{repoName}/tree/{branch}/**",
+        "/graph/json/{domain}.com/{owner}/{repoName}/blob/{branch}/**"
+      },
+      produces = "application/vnd.graphviz+json")
+  @ResponseBody
+  public Resource downloadGraphLayout(
+      @PathVariable("domain") String domain,
+      @PathVariable("owner") String owner,
+      @PathVariable("repoName") String repoName,
+      @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
+    String path =
+        (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+    path = extractPath(path, 8);
+    GitDetails gitDetails = getGitDetails(domain, owner, repoName, branch, path);
+    response.setHeader("Content-Disposition", "inline; filename=\"graph.json\"");
+    return getGraph("json", gitDetails, expand, request, response);
+  }
+
+  /**
+   * Download the layout of a generated graph for a workflow as Graphviz JSON
+   *
+   * @param branch The branch of repository
+   * @param expand The nested workflows to draw as clusters of their steps
+   */
+  @GetMapping(
+      value = "/graph/json/**/*.git/{branch}/**",
+      produces = "application/vnd.graphviz+json")
+  @ResponseBody
+  public Resource downloadGraphLayoutGeneric(
+      @PathVariable("branch") String branch,
+      @RequestParam(name = "expand", required = false) Set<String> expand,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
+    String path =
+        (String) request.getAttribute(HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+    GitDetails gitDetails = getGitDetails(12, path, branch);
+    response.setHeader("Content-Disposition", "inline; filename=\"graph.json\"");
+    return getGraph("json", gitDetails, expand, request, response);
   }
 
   /**
@@ -455,8 +529,7 @@ public class WorkflowController {
       throw new WorkflowNotFoundException();
     }
     Path out =
-        graphVizService.getGraphPath(
-            queued.getId() + ".png", queued.getTempRepresentation().getVisualisationDot(), "png");
+        graphVizService.getGraphPath(queued.getTempRepresentation().getVisualisationDot(), "png");
     response.setHeader("Content-Disposition", "inline; filename=\"graph.png\"");
     return new PathResource(out);
   }
@@ -569,6 +642,105 @@ public class WorkflowController {
     return new GitDetails(repoUrl, branch, path);
   }
 
+  /**
+   * Get a generated graph for a workflow, gzip compressed if the client accepts it and the format
+   * is stored compressed. The ETag is the content hash the graph is cached under, so a graph the
+   * client already has is neither rendered nor sent again.
+   *
+   * @param format The format for the graph
+   * @param gitDetails The Git details of the workflow
+   * @param expand The nested workflows to draw as clusters of their steps, if given
+   * @return The graph, or null if the client's copy is current
+   */
+  private Resource getGraph(
+      String format,
+      GitDetails gitDetails,
+      Set<String> expand,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
+    Set<String> expanded = expand == null ? Set.of() : expand;
+    boolean gzip = GraphVizService.isCompressible(format) && acceptsGzip(request);
+    response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    String etag =
+        "\"" + workflowService.getWorkflowGraphName(format, gitDetails, expanded, gzip) + "\"";
+    if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+      return null;
+    }
+    PathResource graph =
+        gzip
+            ? workflowService.getCompressedWorkflowGraph(format, gitDetails, expanded)
+            : workflowService.getWorkflowGraph(format, gitDetails, expanded);
+    if (gzip) {
+      response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return graph;
+  }
+
+  /**
+   * Get the Research Object Bundle for a workflow. Bundles created on demand are streamed to the
+   * client as they are written, so the bundle is sent here rather than returned.
+   *
+   * @param workflowService The service to get the bundle from
+   * @param gitDetails The Git details of the workflow
+   * @return The bundle file, or null if it has been sent
+   * @throws IOException Any errors creating or sending the bundle
+   */
+  static Resource sendROBundle(
+      WorkflowService workflowService,
+      GitDetails gitDetails,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws IOException {
+    if (!workflowService.isROBundleOnDemand()) {
+      File bundleDownload = workflowService.getROBundle(gitDetails);
+      response.setHeader("Content-Disposition", "attachment; filename=bundle.zip;");
+      return new FileSystemResource(bundleDownload);
+    }
+    response.setHeader("Content-Disposition", "attachment; filename=bundle.zip;");
+    response.setContentType(bundleMediaType(request));
+    workflowService.writeROBundle(gitDetails, response.getOutputStream());
+    return null;
+  }
+
+  /**
+   * The media type to send a Research Object Bundle as, plain ZIP only if the client accepts that
+   * but not the bundle media type
+   *
+   * @param request The request from the client
+   * @return The media type of the bundle
+   */
+  static String bundleMediaType(HttpServletRequest request) {
+    String accept = request.getHeader(HttpHeaders.ACCEPT);
+    if (accept != null
+        && accept.contains(ZIP_MEDIA_TYPE)
+        && !accept.contains(ROBUNDLE_MEDIA_TYPE)) {
+      return ZIP_MEDIA_TYPE;
+    }
+    return ROBUNDLE_MEDIA_TYPE;
+  }
+
+  /**
+   * Whether the client accepts gzip compressed responses
+   *
+   * @param request The request from the client
+   * @return Whether gzip is an acceptable content coding
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+    while (headers != null && headers.hasMoreElements()) {
+      for (String coding : headers.nextElement().split(",")) {
+        String[] parts = coding.split(";");
+        String name = parts[0].trim();
+        if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+          // A quality of zero means not acceptable
+          return parts.length < 2 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+        }
+      }
+    }
+    return false;
+  }
+
   /**
    * Get a workflow from Git Details, creating if it does not exist
    *
@@ -664,7 +836,8 @@ public class WorkflowController {
     } else {
       return new ModelAndView("workflow", "workflow", workflowModel)
           .addObject("lineSeparator", System.getProperty("line.separator"))
-          .addObject("formats", WebConfig.Format.values());
+          .addObject("formats", WebConfig.Format.values())
+          .addObject("roBundleOnDemand", workflowService.isROBundleOnDemand());
     }
   }
 
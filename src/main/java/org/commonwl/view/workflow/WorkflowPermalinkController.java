@@ -19,20 +19,25 @@
 
 package org.commonwl.view.workflow;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.commonwl.view.cwl.RDFService;
+import org.commonwl.view.graphviz.GraphVizService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.PathResource;
 import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.HandlerMapping;
 
 /**
@@ -44,6 +49,10 @@ import org.springframework.web.servlet.HandlerMapping;
 @RestController
 public class WorkflowPermalinkController {
 
+  // Graphs of a workflow at a commit only change with the way graphs are rendered
+  private static final CacheControl GRAPH_CACHE_CONTROL =
+      CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic();
+
   private final WorkflowService workflowService;
   private final RDFService rdfService;
 
@@ -214,9 +223,7 @@ public class WorkflowPermalinkController {
       HttpServletRequest request,
       HttpServletResponse response)
       throws WorkflowNotFoundException, IOException {
-    Workflow workflow = getWorkflow(commitId, request, part);
-    response.setHeader("Content-Disposition", "inline; filename=\"graph.svg\"");
-    return workflowService.getWorkflowGraph("svg", workflow.getRetrievedFrom());
+    return getGraph("svg", "graph.svg", commitId, part, request, response);
   }
 
   /**
@@ -234,9 +241,7 @@ public class WorkflowPermalinkController {
       HttpServletRequest request,
       HttpServletResponse response)
       throws WorkflowNotFoundException, IOException {
-    Workflow workflow = getWorkflow(commitId, request, part);
-    response.setHeader("Content-Disposition", "inline; filename=\"graph.png\"");
-    return workflowService.getWorkflowGraph("png", workflow.getRetrievedFrom());
+    return getGraph("png", "graph.png", commitId, part, request, response);
   }
 
   /**
@@ -254,16 +259,32 @@ public class WorkflowPermalinkController {
       HttpServletRequest request,
       HttpServletResponse response)
       throws WorkflowNotFoundException, IOException {
-    Workflow workflow = getWorkflow(commitId, request, part);
-    response.setHeader("Content-Disposition", "inline; filename=\"graph.dot\"");
-    return workflowService.getWorkflowGraph("xdot", workflow.getRetrievedFrom());
+    return getGraph("xdot", "graph.dot", commitId, part, request, response);
+  }
+
+  /**
+   * Get the layout of the generated graph for a workflow as Graphviz JSON
+   *
+   * @param commitId The commit ID of the workflow
+   * @return The positions of the nodes, edges and clusters of the graph
+   * @throws IOException
+   * @throws WorkflowNotFoundException
+   */
+  @GetMapping(value = "/git/{commitid}/**", produces = "application/vnd.graphviz+json")
+  public Resource getGraphAsLayout(
+      @PathVariable("commitid") String commitId,
+      @RequestParam(name = "part") Optional<String> part,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws WorkflowNotFoundException, IOException {
+    return getGraph("json", "graph.json", commitId, part, request, response);
   }
 
   /**
    * Get the Research Object bundle for a workflow
    *
    * @param commitId The commit ID of the workflow
-   * @return The Research Object Bundle
+   * @return The Research Object Bundle, or null if it has been sent
    */
   @GetMapping(
       value = "/git/{commitid}/**",
@@ -272,11 +293,57 @@ public class WorkflowPermalinkController {
       @PathVariable("commitid") String commitId,
       @RequestParam(name = "part") Optional<String> part,
       HttpServletRequest request,
-      HttpServletResponse response) {
+      HttpServletResponse response)
+      throws IOException {
+    Workflow workflow = getWorkflow(commitId, request, part);
+    return WorkflowController.sendROBundle(
+        workflowService, workflow.getRetrievedFrom(), request, response);
+  }
+
+  /**
+   * Get the generated graph for a workflow. As the graph of a workflow at a commit does not change,
+   * it may be cached for a long time and is identified by a strong ETag, so clients revalidating it
+   * are answered with 304 Not Modified without it being rendered or sent. Text formats are sent
+   * gzip compressed, as stored when rendered, to clients accepting it.
+   *
+   * @param format The format for the graph
+   * @param fileName The file name suggested to the client
+   * @param commitId The commit ID of the workflow
+   * @param part The packed workflow ID, if any
+   * @return The graph, or null if the client's copy is current
+   */
+  private Resource getGraph(
+      String format,
+      String fileName,
+      String commitId,
+      Optional<String> part,
+      HttpServletRequest request,
+      HttpServletResponse response)
+      throws WorkflowNotFoundException, IOException {
     Workflow workflow = getWorkflow(commitId, request, part);
-    File bundleDownload = workflowService.getROBundle(workflow.getRetrievedFrom());
-    response.setHeader("Content-Disposition", "attachment; filename=bundle.zip;");
-    return new FileSystemResource(bundleDownload);
+    boolean gzip =
+        GraphVizService.isCompressible(format) && WorkflowController.acceptsGzip(request);
+    response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING);
+
+    // The name of the cached graph, as on the branch endpoint, which changes with its DOT source
+    String etag = "\"" + workflowService.getWorkflowGraphName(workflow, format, gzip) + "\"";
+    if (new ServletWebRequest(request, response).checkNotModified(etag)) {
+      response.setHeader(HttpHeaders.CACHE_CONTROL, GRAPH_CACHE_CONTROL.getHeaderValue());
+      return null;
+    }
+
+    // Headers describing the graph are only set once it is rendered, so errors are not cached
+    PathResource graph =
+        gzip
+            ? workflowService.getCompressedWorkflowGraph(
+                format, workflow.getRetrievedFrom(), Set.of())
+            : workflowService.getWorkflowGraph(format, workflow.getRetrievedFrom());
+    response.setHeader(HttpHeaders.CACHE_CONTROL, GRAPH_CACHE_CONTROL.getHeaderValue());
+    response.setHeader("Content-Disposition", "inline; filename=\"" + fileName + "\"");
+    if (gzip) {
+      response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+    }
+    return graph;
   }
 
   /**
@@ -21,26 +21,28 @@ package org.commonwl.view.workflow;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import org.commonwl.view.cwl.CWLService;
 import org.commonwl.view.cwl.CWLToolRunner;
+import org.commonwl.view.cwl.CWLToolScheduler;
 import org.commonwl.view.cwl.CWLToolStatus;
+import org.commonwl.view.git.CommitSnapshot;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.git.GitSemaphore;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitService;
 import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.researchobject.ROBundleFactory;
 import org.commonwl.view.researchobject.ROBundleNotFoundException;
-import org.commonwl.view.util.FileUtils;
-import org.eclipse.jgit.api.Git;
+import org.commonwl.view.util.SingleFlight;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
 import org.slf4j.Logger;
@@ -64,9 +66,12 @@ public class WorkflowService {
   private final ROBundleFactory ROBundleFactory;
   private final GraphVizService graphVizService;
   private final CWLToolRunner cwlToolRunner;
-  private final GitSemaphore gitSemaphore;
+  private final GitLeaseManager gitLeaseManager;
   private final int cacheDays;
 
+  // Workflows being created, keyed by their normalised Git details
+  private final SingleFlight<String, QueuedWorkflow> queuedWorkflowCreation = new SingleFlight<>();
+
   @Autowired
   public WorkflowService(
       GitService gitService,
@@ -76,7 +81,7 @@ public class WorkflowService {
       ROBundleFactory ROBundleFactory,
       GraphVizService graphVizService,
       CWLToolRunner cwlToolRunner,
-      GitSemaphore gitSemaphore,
+      GitLeaseManager gitLeaseManager,
       @Value("${cacheDays}") int cacheDays) {
     this.gitService = gitService;
     this.cwlService = cwlService;
@@ -86,7 +91,7 @@ public class WorkflowService {
     this.graphVizService = graphVizService;
     this.cwlToolRunner = cwlToolRunner;
     this.cacheDays = cacheDays;
-    this.gitSemaphore = gitSemaphore;
+    this.gitLeaseManager = gitLeaseManager;
   }
 
   /**
@@ -128,7 +133,11 @@ public class WorkflowService {
    * @return The model for the queued workflow
    */
   public QueuedWorkflow getQueuedWorkflow(String id) {
-    return queuedWorkflowRepository.findById(id).orElse(null);
+    QueuedWorkflow queued = queuedWorkflowRepository.findById(id).orElse(null);
+    if (queued != null) {
+      queued.setQueuePosition(cwlToolRunner.getQueuePosition(id));
+    }
+    return queued;
   }
 
   /**
@@ -185,14 +194,14 @@ public class WorkflowService {
 
         // Add the new workflow if it exists
         try {
-          createQueuedWorkflow(workflow.getRetrievedFrom());
+          createQueuedWorkflow(workflow.getRetrievedFrom(), CWLToolScheduler.Priority.REFRESH);
 
           // Add the old commit for the purposes of permalinks
           // TODO: Separate concept of commit from branch ref, see #164
           GitDetails byOldCommitId = workflow.getRetrievedFrom();
           byOldCommitId.setBranch(workflow.getLastCommit());
           if (getQueuedWorkflow(byOldCommitId) == null && getWorkflow(byOldCommitId) == null) {
-            createQueuedWorkflow(byOldCommitId);
+            createQueuedWorkflow(byOldCommitId, CWLToolScheduler.Priority.REFRESH);
           }
 
           workflow = null;
@@ -216,12 +225,12 @@ public class WorkflowService {
   public List<WorkflowOverview> getWorkflowsFromDirectory(GitDetails gitInfo)
       throws IOException, GitAPIException {
     List<WorkflowOverview> workflowsInDir = new ArrayList<>();
-    Git repo = null;
+    CommitSnapshot snapshot = null;
+    GitLeaseManager.Lease lease = gitLeaseManager.acquire(gitInfo.getRepoUrl());
     try {
-      boolean safeToAccess = gitSemaphore.acquire(gitInfo.getRepoUrl());
-      while (repo == null) {
+      while (snapshot == null) {
         try {
-          repo = gitService.getRepository(gitInfo, safeToAccess);
+          snapshot = gitService.getSnapshot(gitInfo);
         } catch (RefNotFoundException ex) {
           // Attempt slashes in branch fix
           GitDetails correctedForSlash = gitService.transferPathToBranch(gitInfo);
@@ -233,38 +242,35 @@ public class WorkflowService {
         }
       }
 
-      Path localPath = repo.getRepository().getWorkTree().toPath();
-      Path pathToDirectory = localPath.resolve(gitInfo.getPath()).normalize().toAbsolutePath();
-      Path root = Paths.get("/").toAbsolutePath();
-      if (pathToDirectory.equals(root)) {
-        pathToDirectory = localPath;
-      } else if (!pathToDirectory.startsWith(localPath.normalize().toAbsolutePath())) {
-        // Prevent path traversal attacks
+      // Prevent path traversal attacks
+      String directory = CommitSnapshot.normalisePath(gitInfo.getPath());
+      if (directory == null) {
         throw new WorkflowNotFoundException();
       }
 
-      File directory = new File(pathToDirectory.toString());
-      if (directory.exists() && directory.isDirectory()) {
-        for (final File file : directory.listFiles()) {
-          int eIndex = file.getName().lastIndexOf('.') + 1;
-          if (eIndex > 0) {
-            String extension = file.getName().substring(eIndex);
-            if (extension.equals("cwl")) {
-              try {
-                WorkflowOverview overview = cwlService.getWorkflowOverview(file);
-                if (overview != null) {
-                  workflowsInDir.add(overview);
-                }
-              } catch (IOException err) {
-                logger.error("Skipping file due to IOException: " + file.toString(), err);
+      for (final String fileName : snapshot.listFiles(directory)) {
+        int eIndex = fileName.lastIndexOf('.') + 1;
+        if (eIndex > 0) {
+          String extension = fileName.substring(eIndex);
+          if (extension.equals("cwl")) {
+            String filePath = directory.isEmpty() ? fileName : directory + "/" + fileName;
+            try (InputStream in = snapshot.open(filePath)) {
+              WorkflowOverview overview =
+                  cwlService.getWorkflowOverview(in, snapshot.getSize(filePath), fileName);
+              if (overview != null) {
+                workflowsInDir.add(overview);
               }
+            } catch (IOException err) {
+              logger.error("Skipping file due to IOException: " + filePath, err);
             }
           }
         }
       }
     } finally {
-      gitSemaphore.release(gitInfo.getRepoUrl());
-      FileUtils.deleteTemporaryGitRepository(repo);
+      if (snapshot != null) {
+        snapshot.close();
+      }
+      lease.close();
     }
     return workflowsInDir;
   }
@@ -299,7 +305,34 @@ public class WorkflowService {
   }
 
   /**
-   * Builds a new queued workflow from Git
+   * Whether RO bundles are created when first downloaded rather than after parsing
+   *
+   * @return Whether RO bundles are sent with {@link #writeROBundle}
+   */
+  public boolean isROBundleOnDemand() {
+    return ROBundleFactory.isOnDemand();
+  }
+
+  /**
+   * Write the RO bundle for a Workflow to a stream, creating it as it is sent if needed
+   *
+   * @param gitDetails The origin details of the workflow
+   * @param out The stream to write the bundle to
+   * @throws ROBundleNotFoundException If the workflow was not found
+   * @throws IOException Any errors creating or writing the bundle
+   */
+  public void writeROBundle(GitDetails gitDetails, OutputStream out)
+      throws ROBundleNotFoundException, IOException {
+    Workflow workflow = getWorkflow(gitDetails);
+    if (workflow == null) {
+      throw new ROBundleNotFoundException();
+    }
+    ROBundleFactory.writeWorkflowRO(workflow, out);
+  }
+
+  /**
+   * Builds a new queued workflow from Git. Concurrent calls for the same workflow only build it
+   * once, and all return the same queued workflow (or exception).
    *
    * @param gitInfo Git information for the workflow
    * @return A queued workflow model
@@ -309,14 +342,62 @@ public class WorkflowService {
    */
   public QueuedWorkflow createQueuedWorkflow(GitDetails gitInfo)
       throws GitAPIException, WorkflowNotFoundException, IOException {
+    return createQueuedWorkflow(gitInfo, CWLToolScheduler.Priority.INTERACTIVE);
+  }
+
+  /**
+   * Builds a new queued workflow from Git, see {@link #createQueuedWorkflow(GitDetails)}
+   *
+   * @param gitInfo Git information for the workflow
+   * @param priority The priority of the cwltool run for the workflow
+   * @return A queued workflow model
+   */
+  private QueuedWorkflow createQueuedWorkflow(
+      GitDetails gitInfo, CWLToolScheduler.Priority priority)
+      throws GitAPIException, WorkflowNotFoundException, IOException {
+    try {
+      return queuedWorkflowCreation.execute(
+          getCreationKey(gitInfo), () -> buildQueuedWorkflow(gitInfo, priority));
+    } catch (GitAPIException | IOException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Gets the key identifying concurrent submissions of the same workflow
+   *
+   * @param gitInfo Git information for the workflow
+   * @return The normalised repository, branch, path and packed ID
+   */
+  private String getCreationKey(GitDetails gitInfo) {
+    String path = CommitSnapshot.normalisePath(gitInfo.getPath());
+    return String.join(
+        "\n",
+        GitDetails.normaliseUrl(gitInfo.getRepoUrl()),
+        gitInfo.getBranch(),
+        path == null ? gitInfo.getPath() : path,
+        Objects.toString(gitInfo.getPackedId(), ""));
+  }
+
+  /**
+   * Builds a new queued workflow from Git, see {@link #createQueuedWorkflow(GitDetails)}
+   *
+   * @param gitInfo Git information for the workflow
+   * @param priority The priority of the cwltool run for the workflow
+   * @return A queued workflow model
+   */
+  private QueuedWorkflow buildQueuedWorkflow(GitDetails gitInfo, CWLToolScheduler.Priority priority)
+      throws GitAPIException, WorkflowNotFoundException, IOException {
     QueuedWorkflow queuedWorkflow;
 
-    Git repo = null;
+    CommitSnapshot snapshot = null;
+    GitLeaseManager.Lease lease = gitLeaseManager.acquire(gitInfo.getRepoUrl());
     try {
-      boolean safeToAccess = gitSemaphore.acquire(gitInfo.getRepoUrl());
-      while (repo == null) {
+      while (snapshot == null) {
         try {
-          repo = gitService.getRepository(gitInfo, safeToAccess);
+          snapshot = gitService.getSnapshot(gitInfo);
         } catch (RefNotFoundException ex) {
           // Attempt slashes in branch fix
           GitDetails correctedForSlash = gitService.transferPathToBranch(gitInfo);
@@ -327,26 +408,33 @@ public class WorkflowService {
           }
         }
       }
-      Path localPath = repo.getRepository().getWorkTree().toPath();
-      String latestCommit = gitService.getCurrentCommitID(repo);
+      String latestCommit = snapshot.getCommitId();
 
-      Path workflowFile = localPath.resolve(gitInfo.getPath()).normalize().toAbsolutePath();
       // Prevent path traversal attacks
-      if (!workflowFile.startsWith(localPath.normalize().toAbsolutePath())) {
+      String workflowPath = CommitSnapshot.normalisePath(gitInfo.getPath());
+      if (workflowPath == null) {
         throw new WorkflowNotFoundException();
       }
 
       // Check workflow is readable
-      if (!Files.isReadable(workflowFile)) {
+      if (!snapshot.isFile(workflowPath)) {
         throw new WorkflowNotFoundException();
       }
+      String fileName = workflowPath.substring(workflowPath.lastIndexOf('/') + 1);
+      long fileSize = snapshot.getSize(workflowPath);
 
       // Handling of packed workflows
+      boolean packed;
+      try (InputStream in = snapshot.open(workflowPath)) {
+        packed = cwlService.isPacked(in, fileSize);
+      }
       String packedWorkflowId = gitInfo.getPackedId();
       if (packedWorkflowId == null) {
-        if (cwlService.isPacked(workflowFile.toFile())) {
-          List<WorkflowOverview> overviews =
-              cwlService.getWorkflowOverviewsFromPacked(workflowFile.toFile());
+        if (packed) {
+          List<WorkflowOverview> overviews;
+          try (InputStream in = snapshot.open(workflowPath)) {
+            overviews = cwlService.getWorkflowOverviewsFromPacked(in, fileSize, fileName);
+          }
           if (overviews.size() == 0) {
             throw new IOException(
                 "No workflow was found within the packed CWL file. " + gitInfo.toSummary());
@@ -359,12 +447,15 @@ public class WorkflowService {
         }
       } else {
         // Packed ID specified but was not found
-        if (!cwlService.isPacked(workflowFile.toFile())) {
+        if (!packed) {
           throw new WorkflowNotFoundException();
         }
       }
 
-      Workflow basicModel = cwlService.parseWorkflowNative(workflowFile, packedWorkflowId);
+      Workflow basicModel;
+      try (InputStream in = snapshot.open(workflowPath)) {
+        basicModel = cwlService.parseWorkflowNative(in, fileSize, fileName, packedWorkflowId);
+      }
 
       // Set origin details
       basicModel.setRetrievedOn(new Date());
@@ -379,7 +470,7 @@ public class WorkflowService {
       // ASYNC OPERATIONS
       // Parse with cwltool and update model
       try {
-        cwlToolRunner.createWorkflowFromQueued(queuedWorkflow);
+        cwlToolRunner.createWorkflowFromQueued(queuedWorkflow, priority);
       } catch (Exception e) {
         logger.error("Could not update workflow with cwltool: " + gitInfo.toSummary(), e);
       }
@@ -387,14 +478,14 @@ public class WorkflowService {
     } catch (GitAPIException | RuntimeException | IOException e) {
       logger.warn(
           String.format(
-              "Failed to create Queued Workflow: %s - Temporary files will be deleted for %s.",
-              e.getMessage(), gitInfo.toSummary()),
+              "Failed to create Queued Workflow: %s - %s", e.getMessage(), gitInfo.toSummary()),
           e);
-      FileUtils.deleteGitRepository(repo);
       throw e;
     } finally {
-      gitSemaphore.release(gitInfo.getRepoUrl());
-      FileUtils.deleteTemporaryGitRepository(repo);
+      if (snapshot != null) {
+        snapshot.close();
+      }
+      lease.close();
     }
 
     // Return this model to be displayed
@@ -411,7 +502,7 @@ public class WorkflowService {
     queuedWorkflow.setCwltoolStatus(CWLToolStatus.RUNNING);
     queuedWorkflowRepository.save(queuedWorkflow);
     try {
-      cwlToolRunner.createWorkflowFromQueued(queuedWorkflow);
+      cwlToolRunner.createWorkflowFromQueued(queuedWorkflow, CWLToolScheduler.Priority.INTERACTIVE);
     } catch (Exception e) {
       logger.error("Could not update workflow " + queuedWorkflow.getId() + " with cwltool.", e);
     }
@@ -477,15 +568,95 @@ public class WorkflowService {
    */
   public PathResource getWorkflowGraph(String format, GitDetails gitDetails)
       throws WorkflowNotFoundException, IOException {
-    // Determine file extension from format
-    String extension;
+    return getWorkflowGraph(format, gitDetails, Set.of());
+  }
+
+  /**
+   * Get a graph in a particular format with some nested workflows drawn as clusters
+   *
+   * @param format The format for the graph file
+   * @param gitDetails The Git details of the workflow
+   * @param expanded The node IDs of nested workflows to expand, such as step or step/innerstep
+   * @return A FileSystemResource representing the graph
+   * @throws WorkflowNotFoundException Error getting the workflow or format
+   * @throws IOException Error reading the workflow files
+   */
+  public PathResource getWorkflowGraph(String format, GitDetails gitDetails, Set<String> expanded)
+      throws WorkflowNotFoundException, IOException {
+    Path out = graphVizService.getGraphPath(getGraphDot(format, gitDetails, expanded), format);
+    return new PathResource(out);
+  }
+
+  /**
+   * Get a graph in a text format, gzip compressed when it was rendered
+   *
+   * @param format The format for the graph file, one of those stored compressed
+   * @param gitDetails The Git details of the workflow
+   * @param expanded The node IDs of nested workflows to expand, such as step or step/innerstep
+   * @return A FileSystemResource representing the compressed graph
+   * @throws WorkflowNotFoundException Error getting the workflow or format
+   * @throws IOException Error reading the workflow files
+   * @see GraphVizService#isCompressible(String)
+   */
+  public PathResource getCompressedWorkflowGraph(
+      String format, GitDetails gitDetails, Set<String> expanded)
+      throws WorkflowNotFoundException, IOException {
+    String dot = getGraphDot(format, gitDetails, expanded);
+    return new PathResource(graphVizService.getCompressedGraphPath(dot, format));
+  }
+
+  /**
+   * Get the file name of the graph of a workflow without rendering it, which changes whenever the
+   * graph does
+   *
+   * @param workflow The workflow
+   * @param format The format for the graph file
+   * @param compressed Whether the graph is sent gzip compressed
+   * @return The file name of the graph
+   * @see GraphVizService#getGraphFileName(String, String, boolean)
+   */
+  public String getWorkflowGraphName(Workflow workflow, String format, boolean compressed) {
+    return graphVizService.getGraphFileName(workflow.getVisualisationDot(), format, compressed);
+  }
+
+  /**
+   * Get the file name of a graph with some nested workflows drawn as clusters without rendering it,
+   * which changes whenever the graph does
+   *
+   * @param format The format for the graph file
+   * @param gitDetails The Git details of the workflow
+   * @param expanded The node IDs of nested workflows to expand, such as step or step/innerstep
+   * @param compressed Whether the graph is sent gzip compressed
+   * @return The file name of the graph
+   * @throws WorkflowNotFoundException Error getting the workflow or format
+   * @throws IOException Error reading the workflow files
+   * @see GraphVizService#getGraphFileName(String, String, boolean)
+   */
+  public String getWorkflowGraphName(
+      String format, GitDetails gitDetails, Set<String> expanded, boolean compressed)
+      throws WorkflowNotFoundException, IOException {
+    String dot = getGraphDot(format, gitDetails, expanded);
+    return graphVizService.getGraphFileName(dot, format, compressed);
+  }
+
+  /**
+   * Get the DOT source for the graph of a workflow
+   *
+   * @param format The format the graph is wanted in, which is checked
+   * @param gitDetails The Git details of the workflow
+   * @param expanded The node IDs of nested workflows to expand
+   * @return The DOT source
+   * @throws WorkflowNotFoundException Error getting the workflow or format
+   * @throws IOException Error reading the workflow files
+   */
+  private String getGraphDot(String format, GitDetails gitDetails, Set<String> expanded)
+      throws WorkflowNotFoundException, IOException {
+    // Check the format is supported
     switch (format) {
       case "svg":
       case "png":
-        extension = format;
-        break;
       case "xdot":
-        extension = "dot";
+      case "json":
         break;
       default:
         throw new WorkflowNotFoundException("Format " + format + " not recognized.");
@@ -498,11 +669,10 @@ public class WorkflowService {
           "Unable to retrieve workflow for " + gitDetails.toSummary());
     }
 
-    // Generate graph and serve the file
-    Path out =
-        graphVizService.getGraphPath(
-            workflow.getID() + "." + extension, workflow.getVisualisationDot(), format);
-    return new PathResource(out);
+    // Generate graph
+    return expanded.isEmpty()
+        ? workflow.getVisualisationDot()
+        : cwlService.getClusteredGraph(workflow, expanded);
   }
 
   /**
@@ -569,14 +739,10 @@ public class WorkflowService {
           logger.info(
               "Time has expired for caching, checking commits for workflow " + workflow.getID());
           String currentHead;
-          Git repo = null;
-          boolean safeToAccess = gitSemaphore.acquire(workflow.getRetrievedFrom().getRepoUrl());
-          try {
-            repo = gitService.getRepository(workflow.getRetrievedFrom(), safeToAccess);
-            currentHead = gitService.getCurrentCommitID(repo);
-          } finally {
-            gitSemaphore.release(workflow.getRetrievedFrom().getRepoUrl());
-            FileUtils.deleteTemporaryGitRepository(repo);
+          GitDetails gitDetails = workflow.getRetrievedFrom();
+          try (GitLeaseManager.Lease lease = gitLeaseManager.acquire(gitDetails.getRepoUrl());
+              CommitSnapshot snapshot = gitService.getSnapshot(gitDetails)) {
+            currentHead = snapshot.getCommitId();
           }
           logger.info(
               "Current: "
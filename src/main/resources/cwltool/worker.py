@@ -0,0 +1,129 @@
+"""Persistent cwltool worker for CWL Viewer.
+
+Reads one JSON request per line from stdin, such as
+{"url": "file:///path/workflow.cwl", "outputs": ["rdf", "pack"], "maxSize": 104857600},
+and runs cwltool in this interpreter for each output. Writes one line of JSON
+to stdout for each request, holding the size in bytes of each output, or the
+error output of cwltool for the first output which failed, and the peak memory
+use of the worker in kilobytes. The UTF-8 outputs follow the line in the order
+they were requested, so they can be streamed without escaping.
+
+Outputs are spooled to temporary files once they grow large, and copied to
+stdout in chunks, so the memory of the worker does not grow with them. An
+output larger than the requested maxSize is an error.
+"""
+
+import io
+import json
+import logging
+import resource
+import shutil
+import sys
+import tempfile
+
+from cwltool.main import main as cwltool_main
+
+ARGUMENTS = [
+    "--disable-color",
+    "--non-strict",
+    "--quiet",
+    "--enable-dev",
+    "--enable-ext",
+    "--skip-schemas",
+]
+
+OPTIONS = {"rdf": "--print-rdf", "pack": "--pack"}
+
+# Outputs larger than this are spooled to disk rather than kept in memory
+SPOOL_SIZE = 1024 * 1024
+
+# Size of the chunks outputs are copied to stdout in
+CHUNK_SIZE = 64 * 1024
+
+
+class OutputTooLarge(Exception):
+    pass
+
+
+class SpooledOutput(io.TextIOBase):
+    """Text output of cwltool, encoded as UTF-8 into a spooled temporary file"""
+
+    def __init__(self, max_size):
+        self.file = tempfile.SpooledTemporaryFile(max_size=SPOOL_SIZE)
+        self.max_size = max_size
+        self.size = 0
+        self.too_large = False
+
+    def writable(self):
+        return True
+
+    def write(self, text):
+        content = text.encode("utf-8")
+        self.size += len(content)
+        if self.size > self.max_size:
+            self.too_large = True
+            raise OutputTooLarge()
+        self.file.write(content)
+        return len(text)
+
+    def copy_to(self, out):
+        self.file.seek(0)
+        shutil.copyfileobj(self.file, out, CHUNK_SIZE)
+
+    def close(self):
+        self.file.close()
+        super().close()
+
+
+def run(option, url, max_size):
+    stdout = SpooledOutput(max_size)
+    stderr = io.StringIO()
+    try:
+        exit_code = cwltool_main(
+            argsl=ARGUMENTS + [option, url],
+            stdout=stdout,
+            stderr=stderr,
+            logger_handler=logging.StreamHandler(stderr),
+        )
+    except Exception as ex:  # cwltool usually reports errors through its exit code
+        stderr.write(str(ex))
+        exit_code = 1
+    error = stderr.getvalue()
+    if stdout.too_large:
+        exit_code = 1
+        error = "The output of cwltool is larger than %d bytes" % max_size
+    return exit_code, stdout, error
+
+
+def main():
+    protocol = sys.stdout.buffer
+    # Anything else printed must not corrupt the responses
+    sys.stdout = sys.stderr
+    for line in sys.stdin:
+        if not line.strip():
+            continue
+        request = json.loads(line)
+        max_size = request.get("maxSize", sys.maxsize)
+        response = {"sizes": {}}
+        contents = []
+        try:
+            for output in request["outputs"]:
+                exit_code, content, err = run(OPTIONS[output], request["url"], max_size)
+                contents.append(content)
+                if exit_code != 0:
+                    response = {"sizes": {}, "error": err}
+                    break
+                response["sizes"][output] = content.size
+            response["maxRss"] = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+            protocol.write((json.dumps(response) + "\n").encode("utf-8"))
+            if "error" not in response:
+                for content in contents:
+                    content.copy_to(protocol)
+            protocol.flush()
+        finally:
+            for content in contents:
+                content.close()
+
+
+if __name__ == "__main__":
+    main()
@@ -60,6 +60,11 @@ require(['jquery'],
                 cache: false,
                 success: function(response) {
                     if (response.cwltoolStatus == "RUNNING") {
+                        if (response.queuePosition) {
+                            $("#loadingWarning").text('Waiting for cwltool, position ' + response.queuePosition + ' in the queue');
+                        } else {
+                            $("#loadingWarning").text('This may take several minutes with very complex workflows');
+                        }
                         // Retry in 3 seconds
                         setTimeout(function () {
                             checkForDone();
@@ -21,18 +21,27 @@ package org.commonwl.view.cwl;
 
 import static org.apache.commons.io.FileUtils.readFileToString;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Paths;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.jena.query.Dataset;
 import org.apache.jena.query.DatasetFactory;
 import org.apache.jena.query.Query;
@@ -47,6 +56,8 @@ import org.apache.jena.rdf.model.ModelFactory;
 import org.apache.jena.rdf.model.RDFNode;
 import org.commonwl.view.git.GitConfig;
 import org.commonwl.view.git.GitDetails;
+import org.commonwl.view.graphviz.InvalidExpandException;
+import org.commonwl.view.graphviz.RDFDotWriter;
 import org.commonwl.view.workflow.Workflow;
 import org.commonwl.view.workflow.WorkflowOverview;
 import org.junit.jupiter.api.Assertions;
@@ -60,6 +71,11 @@ import org.springframework.test.context.ContextConfiguration;
 @ContextConfiguration(classes = {GitConfig.class})
 public class CWLServiceTest {
 
+  /** URI of the packed workflow with a nested workflow */
+  private static final String NESTED_URI =
+      "https://w3id.org/cwl/view/git/5f2b9c4e7a1d3f6b8c0e2a4d6f8b1c3e5a7d9f0b/"
+          + "workflows/nested/nested.cwl#main";
+
   /** RDFService for testing */
   private RDFService rdfService;
 
@@ -108,6 +124,7 @@ public class CWLServiceTest {
     Mockito.doAnswer(queryRdf).when(rdfService).runQuery(any());
     Mockito.doAnswer(apacheLicense).when(rdfService).getLicense(any());
     Mockito.doReturn(true).when(rdfService).graphExists(any(String.class));
+    Mockito.doReturn(rdfService).when(rdfService).getLocalView(any(String.class));
 
     this.gitConfig = Mockito.spy(GitConfig.class);
   }
@@ -247,7 +264,15 @@ public class CWLServiceTest {
     // Mock CWLTool
     CWLTool mockCwlTool = Mockito.mock(CWLTool.class);
     File packedWorkflowRdf = new File("src/test/resources/cwl/make_to_cwl/dna.ttl");
-    when(mockCwlTool.getRDF(any(String.class))).thenReturn(readFileToString(packedWorkflowRdf));
+    Mockito.doAnswer(
+            invocation -> {
+              try (InputStream rdf = new FileInputStream(packedWorkflowRdf)) {
+                invocation.<CWLTool.OutputReader>getArgument(1).read(rdf);
+              }
+              return null;
+            })
+        .when(mockCwlTool)
+        .readRDF(any(String.class), any());
 
     // CWLService to test
     CWLService cwlService =
@@ -281,6 +306,55 @@ public class CWLServiceTest {
     assertEquals("Apache License 2.0", workflow.getLicenseName());
   }
 
+  /** Test large workflow graphs are simplified when parsed using cwltool */
+  @Test
+  public void parseWorkflowWithCwltoolSimplified() throws Exception {
+
+    // Mock CWLTool
+    CWLTool mockCwlTool = Mockito.mock(CWLTool.class);
+    File packedWorkflowRdf = new File("src/test/resources/cwl/make_to_cwl/dna.ttl");
+    Mockito.doAnswer(
+            invocation -> {
+              try (InputStream rdf = new FileInputStream(packedWorkflowRdf)) {
+                invocation.<CWLTool.OutputReader>getArgument(1).read(rdf);
+              }
+              return null;
+            })
+        .when(mockCwlTool)
+        .readRDF(any(String.class), any());
+
+    // Simplify graphs of more than one node
+    CWLService cwlService =
+        new CWLService(rdfService, mockCwlTool, gitConfig.licenseVocab(), 5242880, 1);
+
+    GitDetails gitInfo =
+        new GitDetails(
+            "https://github.com/common-workflow-language/workflows.git",
+            "549c973ccc01781595ce562dea4cedc6c9540fe0",
+            "workflows/make-to-cwl/dna.cwl");
+    Workflow basicModel = new Workflow();
+    basicModel.setRetrievedFrom(gitInfo);
+    gitInfo.setPackedId("main");
+    basicModel.setLastCommit("549c973ccc01781595ce562dea4cedc6c9540fe0");
+
+    Workflow workflow =
+        cwlService.parseWorkflowWithCwltool(
+            basicModel,
+            Paths.get("src/test/resources/cwl/make_to_cwl/dna.cwl"),
+            Paths.get("src/test/resources/cwl/make_to_cwl"));
+
+    // Default values are fields of their steps rather than nodes, and a faster layout is used
+    String dot = workflow.getVisualisationDot();
+    assertTrue(dot.contains("  layout = \"sfdp\";"));
+    assertTrue(
+        dot.contains(
+            "  \"translate_sequences\" [label=\"{translate_sequences"
+                + "|filename = \\\"database.dna\\\"|from = \\\"U\\\"|to = \\\"T\\\"}\"];"));
+    assertTrue(
+        dot.contains("  \"combine_sequences\" -> \"translate_sequences\" [label=\"trinput\"];"));
+    assertFalse(dot.contains("default1"));
+  }
+
   /** Test IOException is thrown when files are over limit */
   @Test
   public void workflowOverSingleFileSizeLimitThrowsIOException() throws Exception {
@@ -394,6 +468,112 @@ public class CWLServiceTest {
     assertNull(overviews.get(0).getDoc());
   }
 
+  /** Nested workflows are drawn as clusters, and the graph is only queried once */
+  @Test
+  public void getClusteredGraph() throws Exception {
+    RDFService mockRdfService = mockNestedRdfService();
+    CWLService cwlService =
+        new CWLService(
+            mockRdfService,
+            Mockito.mock(CWLTool.class),
+            Mockito.mock(GitConfig.class).licenseVocab(),
+            5242880);
+    Workflow nested = mockNestedWorkflow();
+
+    String expected = readFileToString(new File("src/test/resources/graphviz/nestedWorkflow.dot"));
+    assertEquals(expected, cwlService.getClusteredGraph(nested, Set.of("wrap")));
+    assertEquals(expected, cwlService.getClusteredGraph(nested, Set.of("wrap")));
+    verify(mockRdfService, times(1)).graphExists(NESTED_URI);
+    verify(mockRdfService, times(1)).getLocalView(NESTED_URI);
+  }
+
+  /** Nodes which are not nested workflows, or too many of them, are rejected */
+  @Test
+  public void getClusteredGraphRejectsInvalidNodes() throws Exception {
+    RDFService mockRdfService = mockNestedRdfService();
+    CWLService cwlService =
+        new CWLService(
+            mockRdfService,
+            Mockito.mock(CWLTool.class),
+            Mockito.mock(GitConfig.class).licenseVocab(),
+            5242880);
+    Workflow nested = mockNestedWorkflow();
+
+    // Checked against the stored workflow without querying its graph
+    assertThrows(
+        InvalidExpandException.class,
+        () -> cwlService.getClusteredGraph(nested, Set.of("prepare")));
+    assertThrows(
+        InvalidExpandException.class,
+        () -> cwlService.getClusteredGraph(nested, Set.of("missing")));
+    Set<String> tooMany = new HashSet<>();
+    for (int i = 0; i <= CWLService.MAX_EXPANDED; i++) {
+      tooMany.add("wrap/step" + i);
+    }
+    assertThrows(InvalidExpandException.class, () -> cwlService.getClusteredGraph(nested, tooMany));
+    verifyNoInteractions(mockRdfService);
+
+    // Steps of nested workflows are checked against their contents
+    assertThrows(
+        InvalidExpandException.class,
+        () -> cwlService.getClusteredGraph(nested, Set.of("wrap", "wrap/first")));
+  }
+
+  /** Expansions which do not change the graph return the stored graph without querying it */
+  @Test
+  public void getClusteredGraphWithoutExpansion() throws Exception {
+    RDFService mockRdfService = mockNestedRdfService();
+    CWLService cwlService =
+        new CWLService(
+            mockRdfService,
+            Mockito.mock(CWLTool.class),
+            Mockito.mock(GitConfig.class).licenseVocab(),
+            5242880);
+    Workflow nested = mockNestedWorkflow();
+
+    assertEquals("digraph workflow {}", cwlService.getClusteredGraph(nested, Set.of()));
+    assertEquals("digraph workflow {}", cwlService.getClusteredGraph(nested, Set.of("wrap/first")));
+
+    Workflow flat = mockNestedWorkflow();
+    CWLStep prepare = new CWLStep();
+    prepare.setRunType(CWLProcess.COMMANDLINETOOL);
+    when(flat.getSteps()).thenReturn(Map.of("prepare", prepare));
+    assertEquals(
+        "digraph workflow {}", cwlService.getClusteredGraph(flat, Set.of(RDFDotWriter.EXPAND_ALL)));
+    verifyNoInteractions(mockRdfService);
+  }
+
+  private static RDFService mockNestedRdfService() {
+    Model model = ModelFactory.createDefaultModel();
+    model.read(
+        new File("src/test/resources/cwl/nested/nested.ttl").toURI().toString(), null, "TURTLE");
+    RDFService localView =
+        new RDFService("http://localhost:3030/cwlviewer/").getLocalView(NESTED_URI, model);
+    RDFService mockRdfService = Mockito.mock(RDFService.class);
+    when(mockRdfService.graphExists(NESTED_URI)).thenReturn(true);
+    when(mockRdfService.getLocalView(NESTED_URI)).thenReturn(localView);
+    return mockRdfService;
+  }
+
+  private static Workflow mockNestedWorkflow() {
+    GitDetails gitDetails =
+        new GitDetails(
+            "https://github.com/common-workflow-language/workflows.git",
+            "5f2b9c4e7a1d3f6b8c0e2a4d6f8b1c3e5a7d9f0b",
+            "workflows/nested/nested.cwl");
+    gitDetails.setPackedId("main");
+    CWLStep prepare = new CWLStep();
+    prepare.setRunType(CWLProcess.COMMANDLINETOOL);
+    CWLStep wrap = new CWLStep();
+    wrap.setRunType(CWLProcess.WORKFLOW);
+    Workflow workflow = Mockito.mock(Workflow.class);
+    when(workflow.getIdentifier()).thenReturn(NESTED_URI);
+    when(workflow.getRetrievedFrom()).thenReturn(gitDetails);
+    when(workflow.getSteps()).thenReturn(Map.of("prepare", prepare, "wrap", wrap));
+    when(workflow.getVisualisationDot()).thenReturn("digraph workflow {}");
+    return workflow;
+  }
+
   /**
    * Validate a LobSTR workflow See:
    * https://github.com/common-workflow-language/workflows/tree/master/workflows/lobSTR
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.cwl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class CWLToolSchedulerTest {
+
+  /** Waiting runs are started by priority, and the queue is bounded */
+  @Test
+  public void prioritisesAndBoundsWaitingRuns() throws Exception {
+    CWLToolScheduler scheduler = new CWLToolScheduler(1, 2);
+    try {
+      CountDownLatch running = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch finished = new CountDownLatch(3);
+      List<String> started = new CopyOnWriteArrayList<>();
+
+      scheduler.submit(
+          "first",
+          CWLToolScheduler.Priority.INTERACTIVE,
+          () -> {
+            started.add("first");
+            running.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+          });
+      running.await();
+      scheduler.submit(
+          "refresh",
+          CWLToolScheduler.Priority.REFRESH,
+          () -> {
+            started.add("refresh");
+            finished.countDown();
+          });
+      scheduler.submit(
+          "interactive",
+          CWLToolScheduler.Priority.INTERACTIVE,
+          () -> {
+            started.add("interactive");
+            finished.countDown();
+          });
+
+      assertNull(scheduler.getQueuePosition("first"));
+      assertEquals(1, scheduler.getQueuePosition("interactive"));
+      assertEquals(2, scheduler.getQueuePosition("refresh"));
+      assertThrows(
+          RejectedExecutionException.class,
+          () -> scheduler.submit("rejected", CWLToolScheduler.Priority.INTERACTIVE, () -> {}));
+
+      release.countDown();
+      finished.await(5, TimeUnit.SECONDS);
+      assertEquals(List.of("first", "interactive", "refresh"), started);
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.cwl;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.jupiter.api.Test;
+
+public class CWLToolWorkerTest {
+
+  /** A worker which never answers is killed once its deadline passes */
+  @Test
+  public void workerKilledAfterDeadline() throws Exception {
+    ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor();
+    // Reads nothing and writes nothing, like a worker stuck on a workflow
+    CWLToolWorker worker =
+        new CWLToolWorker(List.of("sleep", "60"), new ObjectMapper(), 1024, watchdog, 200);
+    try {
+      long start = System.nanoTime();
+      CWLValidationException ex =
+          assertThrows(
+              CWLValidationException.class,
+              () ->
+                  worker.run(
+                      "file:///workflow.cwl", List.of(CWLTool.RDF), (output, content) -> {}));
+      assertTrue(ex.getMessage().startsWith("cwltool took longer than"));
+      assertTrue(System.nanoTime() - start < 30_000_000_000L);
+      assertFalse(worker.isUsable());
+    } finally {
+      worker.close();
+      watchdog.shutdownNow();
+    }
+  }
+}
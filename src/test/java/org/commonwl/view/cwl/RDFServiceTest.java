@@ -20,7 +20,22 @@
 package org.commonwl.view.cwl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.jena.query.ResultSet;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -74,4 +89,125 @@ public class RDFServiceTest {
         rdfService.labelFromName(
             "https://cdn.rawgit.com/common-workflow-language/workflows/549c973ccc01781595ce562dea4cedc6c9540fe0/workflows/make-to-cwl/dna.cwl#main/outfile"));
   }
+
+  /** Queries about a nested workflow are answered from the graph of the workflow containing it */
+  @Test
+  public void getNestedView() throws Exception {
+    String packedUri =
+        "https://w3id.org/cwl/view/git/5f2b9c4e7a1d3f6b8c0e2a4d6f8b1c3e5a7d9f0b/workflows/nested/nested.cwl";
+    Model model = ModelFactory.createDefaultModel();
+    model.read(
+        new File("src/test/resources/cwl/nested/nested.ttl").toURI().toString(), null, "TURTLE");
+    RDFService nestedView =
+        rdfService.getLocalView(packedUri + "#main", model).getNestedView(packedUri + "#inner");
+
+    // One row for each input of each step
+    List<String> steps = new ArrayList<>();
+    ResultSet stepResults = nestedView.getSteps(packedUri + "#inner");
+    while (stepResults.hasNext()) {
+      steps.add(stepResults.next().get("step").toString());
+    }
+    assertEquals(
+        List.of(
+            packedUri + "#inner/first", packedUri + "#inner/second", packedUri + "#inner/second"),
+        steps);
+
+    ResultSet inputs = nestedView.getInputs(packedUri + "#inner");
+    assertEquals(packedUri + "#inner/text", inputs.next().get("name").toString());
+
+    // Only local views hold a graph to nest in
+    assertThrows(IllegalStateException.class, () -> rdfService.getNestedView(packedUri + "#inner"));
+  }
+
+  /** Triples are sent to the graph store as they are read, and rejections are reported */
+  @Test
+  public void storeTurtle() throws Exception {
+    AtomicReference<String> received = new AtomicReference<>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/cwlviewer/",
+        exchange -> {
+          String body =
+              new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+          received.set(
+              exchange.getRequestMethod()
+                  + " "
+                  + exchange.getRequestURI().getRawQuery()
+                  + " "
+                  + exchange.getRequestHeaders().getFirst("Transfer-Encoding")
+                  + " "
+                  + body);
+          if (body.isEmpty()) {
+            byte[] message = "Parse error: empty".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(400, message.length);
+            exchange.getResponseBody().write(message);
+          } else {
+            exchange.sendResponseHeaders(body.startsWith("fail") ? 500 : 201, -1);
+          }
+          exchange.close();
+        });
+    server.start();
+    try {
+      RDFService service =
+          new RDFService("http://localhost:" + server.getAddress().getPort() + "/cwlviewer/");
+      String turtle = "<https://example.org/a> <https://example.org/b> \"c\" .";
+      service.storeTurtle(
+          "https://example.org/wf.cwl#main",
+          new ByteArrayInputStream(turtle.getBytes(StandardCharsets.UTF_8)));
+      assertEquals(
+          "PUT graph=https%3A%2F%2Fexample.org%2Fwf.cwl%23main chunked " + turtle, received.get());
+
+      CWLValidationException rejected =
+          assertThrows(
+              CWLValidationException.class,
+              () ->
+                  service.storeTurtle(
+                      "https://example.org/empty", new ByteArrayInputStream(new byte[0])));
+      assertEquals(
+          "The RDF of the workflow was rejected by the triple store: Parse error: empty",
+          rejected.getMessage());
+      assertThrows(
+          IOException.class,
+          () ->
+              service.storeTurtle(
+                  "https://example.org/fail",
+                  new ByteArrayInputStream("fail".getBytes(StandardCharsets.UTF_8))));
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /** The triples are no longer read once the triple store has answered, even if it did so early */
+  @Test
+  public void storeTurtleStopsReadingAfterResponse() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/cwlviewer/",
+        exchange -> {
+          exchange.sendResponseHeaders(400, -1);
+          exchange.close();
+        });
+    server.start();
+    AtomicLong read = new AtomicLong();
+    InputStream endless =
+        new InputStream() {
+          @Override
+          public int read() {
+            read.incrementAndGet();
+            return 'a';
+          }
+        };
+    try {
+      RDFService service =
+          new RDFService("http://localhost:" + server.getAddress().getPort() + "/cwlviewer/");
+      assertThrows(
+          CWLValidationException.class,
+          () -> service.storeTurtle("https://example.org/endless", endless));
+      long readBefore = read.get();
+      Thread.sleep(200);
+      assertEquals(readBefore, read.get());
+    } finally {
+      server.stop(0);
+    }
+  }
 }
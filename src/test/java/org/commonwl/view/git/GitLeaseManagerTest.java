@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.git;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class GitLeaseManagerTest {
+
+  private static final String REPO_URL = "https://github.com/common-workflow-language/cwlviewer";
+
+  /** Shared leases do not exclude each other but prevent exclusive ones */
+  @Test
+  public void exclusiveLeaseWaitsForSharedLeases() throws Exception {
+    GitLeaseManager leaseManager = new GitLeaseManager();
+    String key = GitLeaseManager.keyFor(REPO_URL);
+
+    GitLeaseManager.Lease first = leaseManager.acquire(REPO_URL);
+    GitLeaseManager.Lease second = leaseManager.acquire(REPO_URL.replace("https://", "http://"));
+    assertNull(tryExclusiveFromOtherThread(leaseManager, key));
+
+    first.close();
+    first.close();
+    assertNull(tryExclusiveFromOtherThread(leaseManager, key));
+
+    second.close();
+    GitLeaseManager.Lease exclusive = leaseManager.tryAcquireExclusive(key);
+    assertNotNull(exclusive);
+    exclusive.close();
+  }
+
+  /** Concurrent calls to the same operation only run it once */
+  @Test
+  public void coalescesConcurrentOperations() throws Exception {
+    GitLeaseManager leaseManager = new GitLeaseManager();
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first =
+          executor.submit(
+              () ->
+                  leaseManager.coalesce(
+                      REPO_URL,
+                      "update",
+                      () -> {
+                        runs.incrementAndGet();
+                        started.countDown();
+                        release.await();
+                        return "fetched";
+                      }));
+      started.await();
+      Future<String> second =
+          executor.submit(
+              () ->
+                  leaseManager.coalesce(
+                      REPO_URL,
+                      "update",
+                      () -> {
+                        runs.incrementAndGet();
+                        return "fetched again";
+                      }));
+      // Give the second caller time to join the running operation
+      Thread.sleep(200);
+      release.countDown();
+
+      assertEquals("fetched", first.get(5, TimeUnit.SECONDS));
+      assertEquals("fetched", second.get(5, TimeUnit.SECONDS));
+      assertEquals(1, runs.get());
+      assertEquals(
+          1, leaseManager.getWaitStatistics().get(GitDetails.normaliseUrl(REPO_URL)).getCount());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Waits are only kept for the most recently used repositories, and in total */
+  @Test
+  public void waitStatisticsAreBounded() {
+    GitLeaseManager leaseManager = new GitLeaseManager();
+    int repositories = GitLeaseManager.TRACKED_REPOSITORIES + 10;
+    for (int i = 0; i < repositories; i++) {
+      leaseManager.acquire(REPO_URL + i).close();
+    }
+
+    assertEquals(GitLeaseManager.TRACKED_REPOSITORIES, leaseManager.getWaitStatistics().size());
+    assertNull(leaseManager.getWaitStatistics().get(GitDetails.normaliseUrl(REPO_URL + 0)));
+    String latest = GitDetails.normaliseUrl(REPO_URL + (repositories - 1));
+    assertNotNull(leaseManager.getWaitStatistics().get(latest));
+    assertEquals(repositories, leaseManager.getTotalWaitStatistics().getCount());
+  }
+
+  private GitLeaseManager.Lease tryExclusiveFromOtherThread(
+      GitLeaseManager leaseManager, String key) throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      return executor.submit(() -> leaseManager.tryAcquireExclusive(key)).get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -20,56 +20,67 @@
 package org.commonwl.view.git;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import org.eclipse.jgit.api.CheckoutCommand;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.RefNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
 
 public class GitServiceTest {
 
-  private final RefNotFoundException branchNotFoundException =
-      new RefNotFoundException("Branch not found");
-  private final RefNotFoundException tagNotFoundException =
-      new RefNotFoundException("Tag not found");
+  @TempDir public Path remoteFolder;
+
+  @TempDir public Path gitStorage;
 
   private GitService spyGitService;
-  private Git mockGit;
-  private CheckoutCommand mockGoodCheckoutCommand;
-  private CheckoutCommand mockBranchNotFoundCommand;
-  private CheckoutCommand mockTagNotFoundCommand;
-  private CheckoutCommand mockCheckoutCommand;
+  private String remoteUrl;
+  private RevCommit firstCommit;
+  private RevCommit branchCommit;
 
+  /** Creates a small repository with a branch and a tag to act as the remote */
   @BeforeEach
-  public void setup() throws GitAPIException {
-    GitService gitService = new GitService(Path.of(System.getProperty("java.io.tmpdir")), false);
-    this.spyGitService = spy(gitService);
-    this.mockGit = mock(Git.class);
-    this.mockGoodCheckoutCommand = mock(CheckoutCommand.class);
-    this.mockBranchNotFoundCommand = mock(CheckoutCommand.class);
-    this.mockTagNotFoundCommand = mock(CheckoutCommand.class);
-    this.mockCheckoutCommand = mock(CheckoutCommand.class);
-    when(this.mockGit.checkout()).thenReturn(this.mockCheckoutCommand);
-    when(this.mockBranchNotFoundCommand.call()).thenThrow(branchNotFoundException);
-    when(this.mockTagNotFoundCommand.call()).thenThrow(tagNotFoundException);
-    doReturn(this.mockGit).when(this.spyGitService).cloneRepo(Mockito.any(), Mockito.any());
+  public void setup() throws Exception {
+    try (Git remote = Git.init().setDirectory(remoteFolder.toFile()).call()) {
+      Files.writeString(remoteFolder.resolve("workflow.cwl"), "cwlVersion: v1.0\n");
+      remote.add().addFilepattern("workflow.cwl").call();
+      firstCommit = remote.commit().setMessage("First").setSign(false).call();
+      remote.tag().setName("mytag").setObjectId(firstCommit).setAnnotated(true).call();
+
+      remote.checkout().setCreateBranch(true).setName("mybranch").call();
+      Files.writeString(remoteFolder.resolve("tool.cwl"), "cwlVersion: v1.0\n");
+      remote.add().addFilepattern("tool.cwl").call();
+      branchCommit = remote.commit().setMessage("Second").setSign(false).call();
+    }
+    remoteUrl = remoteFolder.toUri().toString();
+    spyGitService =
+        spy(new GitService(gitStorage, false, CloneStrategy.FULL, new GitLeaseManager()));
   }
 
   @Test
   public void transferPathToBranch() throws Exception {
-    GitService gitService = new GitService(null, false);
+    GitService gitService = new GitService(null, false, CloneStrategy.FULL, new GitLeaseManager());
     GitDetails slashesInBranch =
         new GitDetails(null, "branchpart1", "branchpart2/branchpart3/workflowInRoot.cwl");
 
@@ -84,41 +95,163 @@ public class GitServiceTest {
 
   @Test
   public void checksOutTag() throws Exception {
-    when(mockCheckoutCommand.setName("refs/remotes/origin/mytag"))
-        .thenReturn(this.mockBranchNotFoundCommand);
-    when(mockCheckoutCommand.setName("mytag")).thenReturn(this.mockGoodCheckoutCommand);
-    doReturn(this.mockGit)
-        .when(this.spyGitService)
-        .cloneRepo(Mockito.any(String.class), Mockito.any(File.class));
-    assertNotNull(this.spyGitService.getRepository(new GitDetails(null, "mytag", "foo"), false));
+    Git repo = spyGitService.getRepository(new GitDetails(remoteUrl, "mytag", "foo"));
+    assertEquals(firstCommit.getName(), spyGitService.getCurrentCommitID(repo));
+    File workTree = repo.getRepository().getWorkTree();
+    assertTrue(new File(workTree, "workflow.cwl").exists());
+    assertFalse(new File(workTree, "tool.cwl").exists());
+  }
+
+  @Test
+  public void checksOutBranch() throws Exception {
+    Git repo = spyGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+    assertEquals(branchCommit.getName(), spyGitService.getCurrentCommitID(repo));
+    assertTrue(new File(repo.getRepository().getWorkTree(), "tool.cwl").exists());
   }
 
   @Test
-  public void checksOutBranch() throws GitAPIException, IOException {
-    when(mockCheckoutCommand.setName("refs/remotes/origin/mybranch"))
-        .thenReturn(this.mockGoodCheckoutCommand);
-    when(mockCheckoutCommand.setName("mytag")).thenReturn(this.mockTagNotFoundCommand);
-    doReturn(this.mockGit)
-        .when(this.spyGitService)
-        .cloneRepo(Mockito.any(String.class), Mockito.any(File.class));
-    assertNotNull(this.spyGitService.getRepository(new GitDetails(null, "mybranch", "foo"), false));
+  public void checksOutCommitId() throws Exception {
+    Git repo = spyGitService.getRepository(new GitDetails(remoteUrl, firstCommit.getName(), "foo"));
+    assertEquals(firstCommit.getName(), spyGitService.getCurrentCommitID(repo));
   }
 
-  @Test()
-  public void throwsFirstExceptionIfTagAndBranchFail() throws GitAPIException {
-    when(mockCheckoutCommand.setName("refs/remotes/origin/mytag"))
-        .thenReturn(this.mockBranchNotFoundCommand);
-    when(mockCheckoutCommand.setName("mytag")).thenReturn(this.mockTagNotFoundCommand);
-    doReturn(this.mockGit)
-        .when(this.spyGitService)
-        .cloneRepo(Mockito.any(String.class), Mockito.any(File.class));
-    boolean thrown = false;
-    try {
-      this.spyGitService.getRepository(new GitDetails(null, "mytag", "foo"), false);
-    } catch (Exception e) {
-      // Make sure it's not this.tagNotFoundException
-      thrown = (e == this.branchNotFoundException);
+  @Test
+  public void throwsRefNotFoundIfTagAndBranchFail() {
+    assertThrows(
+        RefNotFoundException.class,
+        () -> spyGitService.getRepository(new GitDetails(remoteUrl, "missing", "foo")));
+  }
+
+  @Test
+  public void reusesMirrorAndWorktrees() throws Exception {
+    Git branch = spyGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+    Git sameCommit =
+        spyGitService.getRepository(new GitDetails(remoteUrl, branchCommit.getName(), "foo"));
+    Git tag = spyGitService.getRepository(new GitDetails(remoteUrl, "mytag", "foo"));
+
+    // Only a single clone, shared by one worktree per commit
+    verify(spyGitService, times(1)).cloneRepo(Mockito.eq(remoteUrl), Mockito.any(File.class));
+    assertEquals(branch.getRepository().getWorkTree(), sameCommit.getRepository().getWorkTree());
+    assertNotEquals(branch.getRepository().getWorkTree(), tag.getRepository().getWorkTree());
+    try (var mirrors = Files.list(gitStorage.resolve(GitService.MIRRORS_DIR))) {
+      assertEquals(1, mirrors.count());
+    }
+    try (var worktrees = Files.list(gitStorage.resolve(GitService.WORKTREES_DIR))) {
+      assertEquals(2, worktrees.count());
+    }
+  }
+
+  @Test
+  public void shallowMirrorOnlyFetchesRequestedRef() throws Exception {
+    GitService shallowGitService =
+        spy(new GitService(gitStorage, false, CloneStrategy.SHALLOW, new GitLeaseManager()));
+    Git repo = shallowGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+    assertEquals(branchCommit.getName(), shallowGitService.getCurrentCommitID(repo));
+    assertTrue(new File(repo.getRepository().getWorkTree(), "tool.cwl").exists());
+
+    verify(shallowGitService, never()).cloneRepo(Mockito.any(), Mockito.any(File.class));
+    Path mirrorDir;
+    try (var mirrors = Files.list(gitStorage.resolve(GitService.MIRRORS_DIR))) {
+      mirrorDir = mirrors.findFirst().orElseThrow();
+    }
+    try (Git mirror = Git.open(mirrorDir.toFile())) {
+      assertNull(mirror.getRepository().findRef(Constants.R_HEADS + "master"));
+      assertFalse(mirror.getRepository().getObjectDatabase().has(firstCommit));
+    }
+    assertTrue(Files.exists(mirrorDir.resolve(Constants.SHALLOW)));
+  }
+
+  @Test
+  public void shallowMirrorIsDeepenedForAuthors() throws Exception {
+    GitService shallowGitService =
+        new GitService(gitStorage, false, CloneStrategy.SHALLOW, new GitLeaseManager());
+    Git repo = shallowGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+
+    assertFalse(shallowGitService.getAuthors(repo, "workflow.cwl").isEmpty());
+    try (var mirrors = Files.list(gitStorage.resolve(GitService.MIRRORS_DIR))) {
+      Path mirrorDir = mirrors.findFirst().orElseThrow();
+      assertFalse(Files.exists(mirrorDir.resolve(Constants.SHALLOW)));
+      try (Git mirror = Git.open(mirrorDir.toFile())) {
+        assertTrue(mirror.getRepository().getObjectDatabase().has(firstCommit));
+      }
     }
-    assertTrue(thrown);
+  }
+
+  @Test
+  public void authorshipIndexIsSavedPerCommit() throws Exception {
+    Git repo = spyGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+    AuthorshipIndex authorship = spyGitService.getAuthorship(repo);
+
+    // Same authors as a log of each path
+    assertFalse(authorship.getAuthors("/workflow.cwl").isEmpty());
+    assertEquals(
+        spyGitService.getAuthors(repo, "workflow.cwl"), authorship.getAuthors("/workflow.cwl"));
+    assertEquals(spyGitService.getAuthors(repo, "tool.cwl"), authorship.getAuthors("tool.cwl"));
+    assertTrue(authorship.getAuthors("missing.cwl").isEmpty());
+
+    try (var mirrors = Files.list(gitStorage.resolve(GitService.MIRRORS_DIR))) {
+      Path mirrorDir = mirrors.findFirst().orElseThrow();
+      assertTrue(
+          Files.exists(
+              mirrorDir.resolve("cwlviewer-authorship").resolve(branchCommit.getName() + ".json")));
+    }
+    AuthorshipIndex saved = spyGitService.getAuthorship(repo);
+    assertEquals(authorship.getAuthors("tool.cwl"), saved.getAuthors("tool.cwl"));
+  }
+
+  /** Only the most recently used authorship indexes of a mirror are kept */
+  @Test
+  public void authorshipIndexesArePruned() throws Exception {
+    Git repo = spyGitService.getRepository(new GitDetails(remoteUrl, "mybranch", "foo"));
+    Path authorshipDir;
+    try (var mirrors = Files.list(gitStorage.resolve(GitService.MIRRORS_DIR))) {
+      authorshipDir = mirrors.findFirst().orElseThrow().resolve("cwlviewer-authorship");
+    }
+
+    // Indexes of older commits, each used a minute before the next
+    Files.createDirectories(authorshipDir);
+    long now = System.currentTimeMillis();
+    List<Path> older = new ArrayList<>();
+    for (int i = 0; i < GitService.AUTHORSHIP_INDEXES_KEPT; i++) {
+      Path index = authorshipDir.resolve("commit" + i + ".json");
+      Files.writeString(index, "{}");
+      Files.setLastModifiedTime(
+          index, FileTime.fromMillis(now - (GitService.AUTHORSHIP_INDEXES_KEPT - i) * 60_000L));
+      older.add(index);
+    }
+
+    spyGitService.getAuthorship(repo);
+
+    try (var indexes = Files.list(authorshipDir)) {
+      assertEquals(GitService.AUTHORSHIP_INDEXES_KEPT, indexes.count());
+    }
+    assertTrue(Files.exists(authorshipDir.resolve(branchCommit.getName() + ".json")));
+    assertFalse(Files.exists(older.get(0)));
+    assertTrue(Files.exists(older.get(1)));
+  }
+
+  @Test
+  public void readsSnapshotWithoutWorktree() throws Exception {
+    try (CommitSnapshot snapshot =
+        spyGitService.getSnapshot(new GitDetails(remoteUrl, "mybranch", "/"))) {
+      assertEquals(branchCommit.getName(), snapshot.getCommitId());
+      assertEquals(List.of("tool.cwl", "workflow.cwl"), snapshot.listFiles(""));
+      assertTrue(snapshot.isFile("tool.cwl"));
+      assertTrue(snapshot.isDirectory(""));
+      assertFalse(snapshot.isFile("missing.cwl"));
+      assertEquals(17, snapshot.getSize("workflow.cwl"));
+      try (InputStream in = snapshot.open("workflow.cwl")) {
+        assertEquals("cwlVersion: v1.0\n", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+      }
+      assertThrows(FileNotFoundException.class, () -> snapshot.open("missing.cwl"));
+    }
+    assertFalse(Files.exists(gitStorage.resolve(GitService.WORKTREES_DIR)));
+  }
+
+  @Test
+  public void normalisesSnapshotPaths() {
+    assertEquals("", CommitSnapshot.normalisePath("/"));
+    assertEquals("dir/workflow.cwl", CommitSnapshot.normalisePath("/dir/./sub/../workflow.cwl"));
+    assertNull(CommitSnapshot.normalisePath("../workflow.cwl"));
   }
 }
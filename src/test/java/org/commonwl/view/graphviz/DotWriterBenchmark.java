@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.graphviz;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Property;
+import org.apache.jena.rdf.model.Resource;
+import org.apache.jena.vocabulary.RDFS;
+import org.commonwl.view.cwl.CWLElement;
+import org.commonwl.view.cwl.CWLStep;
+import org.commonwl.view.cwl.RDFService;
+import org.commonwl.view.workflow.Workflow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Microbenchmark for DOT generation of large workflows, writing into a size-hinted buffer as
+ * CWLService does. Both the model and the RDF writers are given the same linear workflow. Not run
+ * as part of the test suite; run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=org.commonwl.view.graphviz.DotWriterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DotWriterBenchmark {
+
+  private static final String CWL = "https://w3id.org/cwl/cwl#";
+  private static final String GIT_PATH = "benchmark.cwl#main";
+  private static final String WORKFLOW_URI =
+      "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/" + GIT_PATH;
+
+  @Param({"100", "1000", "5000"})
+  private int stepCount;
+
+  private Workflow workflow;
+  private RDFService workflowRdf;
+
+  /** Build a linear workflow where every step also takes a default value, as a model and RDF */
+  @Setup
+  public void setUp() {
+    Map<String, CWLElement> inputs = new HashMap<>();
+    CWLElement input = new CWLElement();
+    input.setLabel("Workflow input");
+    inputs.put("input", input);
+
+    Map<String, CWLStep> steps = new LinkedHashMap<>();
+    String previous = "input";
+    for (int i = 0; i < stepCount; i++) {
+      Map<String, CWLElement> sources = new HashMap<>();
+      CWLElement source = new CWLElement();
+      source.addSourceID(previous);
+      sources.put("in", source);
+      CWLElement constant = new CWLElement();
+      constant.setDefaultVal("\\\"value" + i + "\\\"");
+      sources.put("constant", constant);
+      previous = "step" + i;
+      steps.put(previous, new CWLStep("Step " + i, null, null, sources));
+    }
+
+    Map<String, CWLElement> outputs = new HashMap<>();
+    CWLElement output = new CWLElement();
+    output.addSourceID(previous);
+    outputs.put("output", output);
+
+    workflow = new Workflow("Benchmark", null, inputs, outputs, steps);
+    workflowRdf =
+        new RDFService("http://localhost:3030/cwlviewer/").getLocalView(WORKFLOW_URI, rdfModel());
+  }
+
+  /**
+   * Build the triples cwltool would print for the same linear workflow
+   *
+   * @return The model of the workflow
+   */
+  private Model rdfModel() {
+    Model model = ModelFactory.createDefaultModel();
+    Property inputsProperty = model.createProperty(CWL, "inputs");
+    Property outputsProperty = model.createProperty(CWL, "outputs");
+    Property stepsProperty = model.createProperty(CWL + "Workflow/", "steps");
+    Property runProperty = model.createProperty(CWL, "run");
+    Property inProperty = model.createProperty(CWL, "in");
+    Property outProperty = model.createProperty(CWL, "out");
+    Property sourceProperty = model.createProperty(CWL, "source");
+    Property defaultProperty = model.createProperty(CWL, "default");
+    Property outputSourceProperty = model.createProperty(CWL, "outputSource");
+
+    Resource workflowResource =
+        model.createResource(WORKFLOW_URI, model.createResource(CWL + "Workflow"));
+    Resource tool =
+        model
+            .createResource(
+                WORKFLOW_URI.replace("#main", "#tool"),
+                model.createResource(CWL + "CommandLineTool"))
+            .addProperty(RDFS.label, "Tool");
+
+    Resource previous =
+        model.createResource(WORKFLOW_URI + "/input").addProperty(RDFS.label, "Workflow input");
+    workflowResource.addProperty(inputsProperty, previous);
+    for (int i = 0; i < stepCount; i++) {
+      String stepUri = WORKFLOW_URI + "/step" + i;
+      Resource step = model.createResource(stepUri).addProperty(runProperty, tool);
+      step.addProperty(
+          inProperty, model.createResource(stepUri + "/in").addProperty(sourceProperty, previous));
+      step.addProperty(
+          inProperty,
+          model.createResource(stepUri + "/constant").addProperty(defaultProperty, "value" + i));
+      previous = model.createResource(stepUri + "/out");
+      step.addProperty(outProperty, previous);
+      workflowResource.addProperty(stepsProperty, step);
+    }
+    workflowResource.addProperty(
+        outputsProperty,
+        model.createResource(WORKFLOW_URI + "/output").addProperty(outputSourceProperty, previous));
+    return model;
+  }
+
+  @Benchmark
+  public String modelGraph() throws IOException {
+    StringBuilderWriter writer =
+        new StringBuilderWriter(
+            DotWriter.sizeHint(
+                workflow.getInputs().size()
+                    + workflow.getOutputs().size()
+                    + workflow.getSteps().size()));
+    new ModelDotWriter(writer).writeGraph(workflow);
+    return writer.toString();
+  }
+
+  @Benchmark
+  public String rdfGraph() throws IOException {
+    StringBuilderWriter writer = new StringBuilderWriter(DotWriter.sizeHint(stepCount + 2));
+    new RDFDotWriter(writer, workflowRdf, GIT_PATH).writeGraph(WORKFLOW_URI);
+    return writer.toString();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(DotWriterBenchmark.class.getSimpleName()).build())
+        .run();
+  }
+}
@@ -19,7 +19,11 @@
 
 package org.commonwl.view.graphviz;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.awt.image.BufferedImage;
@@ -32,6 +36,10 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import javax.imageio.ImageIO;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -56,7 +64,7 @@ public class GraphVizServiceTest {
 
     Path dotSource = Paths.get("src/test/resources/graphviz/testWorkflow.dot");
 
-    Path png = graphVizService.getGraphPath("workflowid.png", readFileToString(dotSource), "png");
+    Path png = graphVizService.getGraphPath(readFileToString(dotSource), "png");
     BufferedImage actualImg = ImageIO.read(png.toFile());
 
     // Check a valid image has been created
@@ -100,7 +108,7 @@ public class GraphVizServiceTest {
 
     Path dotSource = Paths.get("src/test/resources/graphviz/testWorkflow.dot");
 
-    Path svg = graphVizService.getGraphPath("workflowid.svg", readFileToString(dotSource), "svg");
+    Path svg = graphVizService.getGraphPath(readFileToString(dotSource), "svg");
     String svgString = readFileToString(svg);
     assertTrue(svgString.contains("Generated by graphviz"));
   }
@@ -121,7 +129,7 @@ public class GraphVizServiceTest {
   public void getGraphAsXDot() throws Exception {
 
     Path dotSource = Paths.get("src/test/resources/graphviz/testWorkflow.dot");
-    Path xdot = graphVizService.getGraphPath("workflowid.dot", readFileToString(dotSource), "xdot");
+    Path xdot = graphVizService.getGraphPath(readFileToString(dotSource), "xdot");
     String xdotString = readFileToString(xdot);
     assertTrue(xdotString.length() > 0);
   }
@@ -149,4 +157,117 @@ public class GraphVizServiceTest {
     assertFalse(svg.exists());
     assertFalse(dot.exists());
   }
+
+  /** Check that identical DOT source is only rendered once, whatever its line endings */
+  @Test
+  public void cachesByContent() throws Exception {
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    Path first = graphVizService.getGraphPath(dot, "svg");
+    Path second = graphVizService.getGraphPath(dot.replace("\n", "\r\n"), "svg");
+    InputStream stream = graphVizService.getGraphStream(dot, "svg");
+    stream.close();
+
+    assertEquals(first, second);
+    assertEquals(1, graphVizService.getCacheStatistics().getMisses());
+    assertEquals(2, graphVizService.getCacheStatistics().getHits());
+  }
+
+  /** Check that the name of a graph follows its DOT source without rendering it */
+  @Test
+  public void namesByContent() throws Exception {
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    String name = graphVizService.getGraphFileName(dot, "svg", false);
+    assertEquals(name, graphVizService.getGraphFileName(dot.replace("\n", "\r\n"), "svg", false));
+    assertEquals(name + ".gz", graphVizService.getGraphFileName(dot, "svg", true));
+    assertNotEquals(name, graphVizService.getGraphFileName(dot, "png", false));
+    assertNotEquals(
+        name, graphVizService.getGraphFileName(dot.replace("digraph", "graph"), "svg", false));
+    assertEquals(0, graphVizService.getCacheStatistics().getMisses());
+  }
+
+  /** Check that the formats shown for a workflow are pre-rendered together */
+  @Test
+  public void rendersFormatsTogether() throws Exception {
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    graphVizService.preRender(dot);
+    Path svg = graphVizService.getGraphPath(dot, "svg");
+    Path png = graphVizService.getGraphPath(dot, "png");
+    Path xdot = graphVizService.getGraphPath(dot, "xdot");
+    Path json = graphVizService.getGraphPath(dot, "json");
+
+    assertEquals(0, graphVizService.getCacheStatistics().getMisses());
+    assertEquals(4, graphVizService.getCacheStatistics().getHits());
+    assertTrue(readFileToString(svg).contains("Generated by graphviz"));
+    assertFalse(readFileToString(svg).contains("#eeeeee"));
+    assertTrue(ImageIO.read(png.toFile()).getWidth() > 0);
+    assertTrue(readFileToString(xdot).contains("_draw_"));
+    assertTrue(readFileToString(json).contains("\"objects\""));
+    assertFalse(readFileToString(json).contains("_draw_"));
+  }
+
+  /** Check that a request for a graph only renders the format requested */
+  @Test
+  public void rendersRequestedFormatOnly() throws Exception {
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    Path svg = graphVizService.getGraphPath(dot, "svg");
+
+    try (Stream<Path> cached = Files.list(svg.getParent())) {
+      assertEquals(
+          Set.of(svg.getFileName().toString(), svg.getFileName() + ".gz"),
+          cached.map(path -> path.getFileName().toString()).collect(Collectors.toSet()));
+    }
+    graphVizService.getGraphPath(dot, "png");
+    assertEquals(2, graphVizService.getCacheStatistics().getMisses());
+  }
+
+  /** Check that the least recently used graphs are evicted once the cache is full */
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    GraphVizService smallCache = new GraphVizService(graphvizFolder.getAbsolutePath(), 0);
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    Path first = smallCache.getGraphPath(dot, "png");
+    assertTrue(Files.exists(first));
+    Path second = smallCache.getGraphPath(dot + "\n// Another graph", "png");
+
+    assertFalse(Files.exists(first));
+    assertTrue(Files.exists(second));
+    // Only the format requested is rendered
+    assertEquals(1, smallCache.getCacheStatistics().getEvictions());
+  }
+
+  /** Check that text formats are stored compressed when rendered */
+  @Test
+  public void storesTextFormatsCompressed() throws Exception {
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+
+    Path svg = graphVizService.getGraphPath(dot, "svg");
+    Path compressed = graphVizService.getCompressedGraphPath(dot, "svg");
+
+    assertEquals(1, graphVizService.getCacheStatistics().getMisses());
+    assertEquals(1, graphVizService.getCacheStatistics().getHits());
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(compressed))) {
+      assertArrayEquals(Files.readAllBytes(svg), in.readAllBytes());
+    }
+    assertThrows(
+        IllegalArgumentException.class, () -> graphVizService.getCompressedGraphPath(dot, "png"));
+  }
+
+  /** Check that renders producing more output than allowed fail */
+  @Test
+  public void limitsOutputSize() throws Exception {
+    GraphVizService limited =
+        new GraphVizService(graphvizFolder.getAbsolutePath(), 1024, 1, 1, 60, 0);
+    String dot = readFileToString(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+    try {
+      assertThrows(IOException.class, () -> limited.getGraphPath(dot, "png"));
+      assertEquals(0, limited.getCacheStatistics().getHits());
+    } finally {
+      limited.shutdown();
+    }
+  }
 }
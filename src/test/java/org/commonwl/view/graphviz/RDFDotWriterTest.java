@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.graphviz;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.apache.jena.rdf.model.Statement;
+import org.commonwl.view.cwl.RDFService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RDFDotWriterTest {
+
+  private static final String GIT_PATH = "workflows/nested/nested.cwl#main";
+  private static final String WORKFLOW_URI =
+      "https://w3id.org/cwl/view/git/5f2b9c4e7a1d3f6b8c0e2a4d6f8b1c3e5a7d9f0b/" + GIT_PATH;
+
+  private Model model;
+  private RDFService workflowRdf;
+
+  /** Read a packed workflow whose wrap step runs a nested workflow of two steps */
+  @BeforeEach
+  public void setUp() throws Exception {
+    model = ModelFactory.createDefaultModel();
+    model.read(
+        new File("src/test/resources/cwl/nested/nested.ttl").toURI().toString(), null, "TURTLE");
+    workflowRdf = getLocalView(model);
+  }
+
+  /** The nested workflow is drawn as a cluster with the links into it rewired */
+  @Test
+  public void writeGraphWithCluster() throws Exception {
+    String dot = writeGraph(Set.of("wrap"));
+
+    File expectedDot = new File("src/test/resources/graphviz/nestedWorkflow.dot");
+    assertEquals(FileUtils.readFileToString(expectedDot), dot);
+  }
+
+  /** Nested workflows which are not expanded stay a single node */
+  @Test
+  public void writeGraphWithoutCluster() throws Exception {
+    String dot = writeGraph(Set.of("prepare"));
+
+    assertFalse(dot.contains("subgraph \"cluster_"));
+    assertFalse(dot.contains("\"wrap/"));
+    assertTrue(dot.contains("  \"wrap\" [label=\"Inner workflow\", fillcolor=\"#F3CEA1\"];"));
+    assertTrue(dot.contains("  \"prepare\" -> \"wrap\" [label=\"text\"];"));
+    assertTrue(dot.contains("  \"wrap\" -> \"result\";"));
+  }
+
+  /** Every nested workflow is expanded when asked for all of them */
+  @Test
+  public void writeGraphExpandingAll() throws Exception {
+    assertEquals(writeGraph(Set.of("wrap")), writeGraph(Set.of(RDFDotWriter.EXPAND_ALL)));
+  }
+
+  /** The same workflow parsed again gives the same DOT, so its cached renders are reused */
+  @Test
+  public void writeGraphWhateverTripleOrder(@TempDir Path graphvizFolder) throws Exception {
+    List<Statement> statements = model.listStatements().toList();
+    Collections.shuffle(statements, new Random(42));
+    RDFService reparsedRdf = getLocalView(ModelFactory.createDefaultModel().add(statements));
+
+    GraphVizService graphVizService = new GraphVizService(graphvizFolder.toString());
+    for (Set<String> expanded : List.of(Set.<String>of(), Set.of("wrap"))) {
+      String dot = writeGraph(workflowRdf, expanded);
+      String reparsedDot = writeGraph(reparsedRdf, expanded);
+      assertEquals(dot, reparsedDot);
+      assertEquals(
+          graphVizService.getGraphFileName(dot, "svg", false),
+          graphVizService.getGraphFileName(reparsedDot, "svg", false));
+    }
+  }
+
+  private static RDFService getLocalView(Model model) {
+    return new RDFService("http://localhost:3030/cwlviewer/").getLocalView(WORKFLOW_URI, model);
+  }
+
+  private String writeGraph(Set<String> expanded) throws Exception {
+    return writeGraph(workflowRdf, expanded);
+  }
+
+  private static String writeGraph(RDFService workflowRdf, Set<String> expanded) throws Exception {
+    StringWriter dotSource = new StringWriter();
+    RDFDotWriter dotWriter =
+        new RDFDotWriter(
+            dotSource,
+            workflowRdf,
+            GIT_PATH,
+            expanded,
+            run -> SubworkflowCluster.fromRDF(workflowRdf.getNestedView(run), run));
+    dotWriter.writeGraph(WORKFLOW_URI);
+    return dotSource.toString();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.graphviz;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import org.apache.jena.rdf.model.Model;
+import org.apache.jena.rdf.model.ModelFactory;
+import org.commonwl.view.cwl.RDFService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SubworkflowClusterTest {
+
+  private static final String PACKED_URI =
+      "https://w3id.org/cwl/view/git/5f2b9c4e7a1d3f6b8c0e2a4d6f8b1c3e5a7d9f0b/workflows/nested/nested.cwl";
+  private static final String WORKFLOW_URI = PACKED_URI + "#main";
+  private static final String INNER_URI = PACKED_URI + "#inner";
+
+  private RDFService workflowRdf;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    Model model = ModelFactory.createDefaultModel();
+    model.read(
+        new File("src/test/resources/cwl/nested/nested.ttl").toURI().toString(), null, "TURTLE");
+    workflowRdf =
+        new RDFService("http://localhost:3030/cwlviewer/").getLocalView(WORKFLOW_URI, model);
+  }
+
+  /** Steps and links are named relative to the nested workflow, without its default values */
+  @Test
+  public void fromRDF() throws Exception {
+    SubworkflowCluster cluster =
+        SubworkflowCluster.fromRDF(workflowRdf.getNestedView(INNER_URI), INNER_URI);
+
+    List<SubworkflowCluster.Step> steps = cluster.getSteps();
+    assertEquals(2, steps.size());
+    assertEquals("first", steps.get(0).getName());
+    assertEquals("first", steps.get(0).getLabel());
+    assertEquals(PACKED_URI + "#echo", steps.get(0).getRun());
+    assertFalse(steps.get(0).isWorkflow());
+    assertEquals("second", steps.get(1).getName());
+
+    List<SubworkflowCluster.Link> links = cluster.getLinks();
+    assertEquals(2, links.size());
+    assertNull(links.get(0).getSource());
+    assertEquals("first", links.get(0).getDest());
+    assertEquals("text", links.get(0).getInput());
+    assertEquals("first", links.get(1).getSource());
+    assertEquals("second", links.get(1).getDest());
+    assertEquals("text", links.get(1).getInput());
+  }
+
+  /** Steps running nested workflows are marked so they can be expanded in turn */
+  @Test
+  public void fromRDFWithNestedWorkflow() throws Exception {
+    SubworkflowCluster cluster = SubworkflowCluster.fromRDF(workflowRdf, WORKFLOW_URI);
+
+    List<SubworkflowCluster.Step> steps = cluster.getSteps();
+    assertEquals(2, steps.size());
+    assertEquals("prepare", steps.get(0).getName());
+    assertFalse(steps.get(0).isWorkflow());
+    assertEquals("wrap", steps.get(1).getName());
+    assertEquals("Inner workflow", steps.get(1).getLabel());
+    assertEquals(INNER_URI, steps.get(1).getRun());
+    assertTrue(steps.get(1).isWorkflow());
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.researchobject;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.commons.io.FileUtils;
+import org.commonwl.view.git.GitDetails;
+import org.commonwl.view.workflow.Workflow;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+public class ROBundleCacheTest {
+
+  @TempDir public Path bundleStorage;
+
+  private ROBundleService mockRoBundleService;
+  private ROBundleCache roBundleCache;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    mockRoBundleService = Mockito.mock(ROBundleService.class);
+    doAnswer(
+            invocation -> {
+              ROBundleWriter writer = invocation.getArgument(2);
+              writer.addBytes(
+                  writer.getRoot().resolve("workflow/main.cwl"),
+                  "cwlVersion: v1.0".getBytes(StandardCharsets.UTF_8));
+              return null;
+            })
+        .when(mockRoBundleService)
+        .writeBundle(any(Workflow.class), any(GitDetails.class), any(ROBundleWriter.class));
+    roBundleCache = new ROBundleCache(bundleStorage, 1024, mockRoBundleService);
+  }
+
+  /** A bundle is streamed as it is created, then served from the cache */
+  @Test
+  public void createsOnceAndCaches() throws Exception {
+    Workflow workflow = mockWorkflow("https://w3id.org/cwl/view/git/abc/main.cwl");
+
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    roBundleCache.writeBundle(workflow, first);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    roBundleCache.writeBundle(workflow, second);
+
+    verify(mockRoBundleService, times(1))
+        .writeBundle(any(Workflow.class), any(GitDetails.class), any(ROBundleWriter.class));
+    assertArrayEquals(first.toByteArray(), second.toByteArray());
+    assertEquals(
+        List.of("mimetype", "workflow/", "workflow/main.cwl", ".ro/", ".ro/manifest.json"),
+        entryNames(first.toByteArray()));
+
+    List<Path> cached = cachedFiles();
+    assertEquals(1, cached.size());
+    assertArrayEquals(first.toByteArray(), Files.readAllBytes(cached.get(0)));
+  }
+
+  /** A failed bundle is not cached, so it is created again on the next request */
+  @Test
+  public void failedBundleNotCached() throws Exception {
+    Workflow workflow = mockWorkflow("https://w3id.org/cwl/view/git/def/main.cwl");
+    doAnswer(
+            invocation -> {
+              throw new IOException("Repository unavailable");
+            })
+        .doNothing()
+        .when(mockRoBundleService)
+        .writeBundle(any(Workflow.class), any(GitDetails.class), any(ROBundleWriter.class));
+
+    IOException failure =
+        assertThrows(
+            IOException.class,
+            () -> roBundleCache.writeBundle(workflow, new ByteArrayOutputStream()));
+    assertEquals("Repository unavailable", failure.getMessage());
+    assertTrue(cachedFiles().isEmpty());
+
+    roBundleCache.writeBundle(workflow, new ByteArrayOutputStream());
+    verify(mockRoBundleService, times(2))
+        .writeBundle(any(Workflow.class), any(GitDetails.class), any(ROBundleWriter.class));
+    assertEquals(1, cachedFiles().size());
+  }
+
+  /** A client going away while its bundle is streamed does not stop the bundle being cached */
+  @Test
+  public void clientFailureDoesNotAbortBundle() throws Exception {
+    Workflow workflow = mockWorkflow("https://w3id.org/cwl/view/git/ghi/main.cwl");
+    OutputStream disconnected =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException("Broken pipe");
+          }
+        };
+
+    IOException failure =
+        assertThrows(IOException.class, () -> roBundleCache.writeBundle(workflow, disconnected));
+    assertEquals("Broken pipe", failure.getMessage());
+    assertEquals(1, cachedFiles().size());
+
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    roBundleCache.writeBundle(workflow, second);
+    verify(mockRoBundleService, times(1))
+        .writeBundle(any(Workflow.class), any(GitDetails.class), any(ROBundleWriter.class));
+    assertEquals(
+        List.of("mimetype", "workflow/", "workflow/main.cwl", ".ro/", ".ro/manifest.json"),
+        entryNames(second.toByteArray()));
+  }
+
+  /** Bundles are still created if the cache directory was deleted from outside the application */
+  @Test
+  public void recreatesCacheDirectory() throws Exception {
+    roBundleCache.writeBundle(
+        mockWorkflow("https://w3id.org/cwl/view/git/jkl/main.cwl"), new ByteArrayOutputStream());
+    FileUtils.deleteDirectory(bundleStorage.resolve(ROBundleCache.CACHE_DIRECTORY).toFile());
+
+    roBundleCache.writeBundle(
+        mockWorkflow("https://w3id.org/cwl/view/git/mno/main.cwl"), new ByteArrayOutputStream());
+    assertEquals(1, cachedFiles().size());
+  }
+
+  private static Workflow mockWorkflow(String identifier) {
+    Workflow workflow = Mockito.mock(Workflow.class);
+    when(workflow.getIdentifier()).thenReturn(identifier);
+    when(workflow.getRetrievedFrom())
+        .thenReturn(
+            new GitDetails(
+                "https://github.com/common-workflow-language/workflows.git",
+                "master",
+                "workflows/main.cwl"));
+    return workflow;
+  }
+
+  private List<Path> cachedFiles() throws IOException {
+    try (Stream<Path> list = Files.list(bundleStorage.resolve("robundles"))) {
+      return list.collect(Collectors.toList());
+    }
+  }
+
+  private static List<String> entryNames(byte[] zip) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        names.add(entry.getName());
+      }
+    }
+    return names;
+  }
+}
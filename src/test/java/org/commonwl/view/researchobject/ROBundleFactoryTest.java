@@ -49,7 +49,8 @@ public class ROBundleFactoryTest {
 
     // Mocked path to a RO bundle
     ROBundleService mockROBundleService = Mockito.mock(ROBundleService.class);
-    when(mockROBundleService.saveToFile(any())).thenReturn(Paths.get("test/path/to/check/for.zip"));
+    when(mockROBundleService.createBundle(any(), any(), any()))
+        .thenReturn(Paths.get("test/path/to/check/for.zip"));
 
     // Test method retries multiple times to get workflow model before success
     WorkflowRepository mockRepository = Mockito.mock(WorkflowRepository.class);
@@ -19,20 +19,32 @@
 
 package org.commonwl.view.researchobject;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import org.apache.jena.query.ResultSet;
 import org.apache.taverna.robundle.Bundle;
 import org.apache.taverna.robundle.Bundles;
@@ -41,8 +53,9 @@ import org.apache.taverna.robundle.manifest.PathAnnotation;
 import org.apache.taverna.robundle.manifest.PathMetadata;
 import org.commonwl.view.cwl.CWLTool;
 import org.commonwl.view.cwl.RDFService;
+import org.commonwl.view.git.AuthorshipIndex;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.git.GitSemaphore;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitService;
 import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.workflow.Workflow;
@@ -59,7 +72,10 @@ public class ROBundleServiceTest {
 
   private static ROBundleService roBundleService;
   private static ROBundleService roBundleServiceZeroSizeLimit;
+  private static ROBundleService roBundleServiceSmallTotalLimit;
   private static Workflow lobSTRdraft3;
+  private static GitService mockGitService;
+  private static CWLTool mockCwlTool;
 
   @BeforeEach
   public void setUp() throws Exception {
@@ -70,17 +86,18 @@ public class ROBundleServiceTest {
     when(gitRepo.getRepository()).thenReturn(mockRepo);
 
     // Get mock Git service
-    GitService mockGitService = Mockito.mock(GitService.class);
-    when(mockGitService.getRepository(any(GitDetails.class), any(Boolean.class)))
-        .thenReturn(gitRepo);
+    mockGitService = Mockito.mock(GitService.class);
+    when(mockGitService.getRepository(any(GitDetails.class))).thenReturn(gitRepo);
 
     Set<HashableAgent> authors = new HashSet<>();
     authors.add(new HashableAgent("Mark Robinson", null, new URI("mailto:mark@example.com")));
-    when(mockGitService.getAuthors(any(Git.class), any(String.class))).thenReturn(authors);
+    AuthorshipIndex mockAuthorship = Mockito.mock(AuthorshipIndex.class);
+    when(mockAuthorship.getAuthors(any(String.class))).thenAnswer(path -> new HashSet<>(authors));
+    when(mockGitService.getAuthorship(any(Git.class))).thenReturn(mockAuthorship);
 
     // Mock Graphviz service
     GraphVizService mockGraphvizService = Mockito.mock(GraphVizService.class);
-    when(mockGraphvizService.getGraphPath(any(String.class), any(String.class), any(String.class)))
+    when(mockGraphvizService.getGraphPath(any(), any(String.class)))
         .thenReturn(Paths.get("src/test/resources/graphviz/testVis.png"))
         .thenReturn(Paths.get("src/test/resources/graphviz/testVis.svg"));
     when(mockGraphvizService.getGraphStream(any(), any(String.class)))
@@ -88,7 +105,7 @@ public class ROBundleServiceTest {
         .thenReturn(getClass().getResourceAsStream("/graphviz/testVis.svg"));
 
     // Mock CWLTool
-    CWLTool mockCwlTool = Mockito.mock(CWLTool.class);
+    mockCwlTool = Mockito.mock(CWLTool.class);
     when(mockCwlTool.getPackedVersion(any(String.class))).thenReturn("cwlVersion: v1.0");
 
     // Mock RDF Service
@@ -110,7 +127,7 @@ public class ROBundleServiceTest {
             mockGraphvizService,
             mockGitService,
             mockRdfService,
-            Mockito.mock(GitSemaphore.class),
+            new GitLeaseManager(),
             mockCwlTool);
     roBundleServiceZeroSizeLimit =
         new ROBundleService(
@@ -121,7 +138,21 @@ public class ROBundleServiceTest {
             mockGraphvizService,
             mockGitService,
             mockRdfService,
-            Mockito.mock(GitSemaphore.class),
+            new GitLeaseManager(),
+            mockCwlTool);
+    // Fits README and allelotype.cwl, the first two files by name
+    roBundleServiceSmallTotalLimit =
+        new ROBundleService(
+            roBundleFolder.toPath(),
+            "CWL Viewer",
+            "https://view.commonwl.org",
+            5242880,
+            1404 + 1905,
+            2,
+            mockGraphvizService,
+            mockGitService,
+            mockRdfService,
+            new GitLeaseManager(),
             mockCwlTool);
 
     GitDetails lobSTRdraft3Details =
@@ -163,63 +194,64 @@ public class ROBundleServiceTest {
             "933bf2a1a1cce32d88f88f136275535da9df0954",
             "lobstr-draft3/");
 
-    // Create new RO bundle
-    Bundle bundle = roBundleService.createBundle(lobSTRdraft3, lobSTRdraft3RODetails);
-    Path bundleRoot = bundle.getRoot().resolve("workflow");
-
-    // Check bundle exists
-    assertNotNull(bundle);
-
-    // Check basic manifest metadata
-    Manifest manifest = bundle.getManifest();
-    assertEquals("CWL Viewer", manifest.getCreatedBy().getName());
-    assertEquals("https://view.commonwl.org", manifest.getCreatedBy().getUri().toString());
-    assertEquals("Mark Robinson", manifest.getAuthoredBy().get(0).getName());
-    assertEquals(
-        new URI(
-            "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/workflows/lobSTR/lobSTR-workflow.cwl"),
-        manifest.getId());
-    assertEquals(
-        new URI(
-            "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/workflows/lobSTR/lobSTR-workflow.cwl?format=ro"),
-        manifest.getRetrievedFrom());
-
-    // Check cwl aggregation information
-    assertEquals(14, manifest.getAggregates().size());
-    PathMetadata cwlAggregate = manifest.getAggregation(bundleRoot.resolve("lobSTR-workflow.cwl"));
-    // NOTE: This permalink is based on local folder structure, here in tests
-    // it is slightly different but normally would not be
-    assertEquals(
-        "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/lobstr-draft3/lobSTR-workflow.cwl?format=raw",
-        cwlAggregate.getRetrievedFrom().toString());
-    assertEquals("Mark Robinson", cwlAggregate.getAuthoredBy().get(0).getName());
-    assertEquals(
-        "mailto:mark@example.com", cwlAggregate.getAuthoredBy().get(0).getUri().toString());
-    assertNull(cwlAggregate.getAuthoredBy().get(0).getOrcid());
-    assertEquals("text/x-yaml", cwlAggregate.getMediatype());
-    assertEquals("https://w3id.org/cwl/draft-3", cwlAggregate.getConformsTo().toString());
-
-    // Check visualisations exist as aggregates
-    PathMetadata pngAggregate = manifest.getAggregation(bundleRoot.resolve("visualisation.png"));
-    assertEquals("image/png", pngAggregate.getMediatype());
-    PathMetadata svgAggregate = manifest.getAggregation(bundleRoot.resolve("visualisation.svg"));
-    assertEquals("image/svg+xml", svgAggregate.getMediatype());
-
-    // Check RDF and packed workflows exist as annotations
-    List<PathAnnotation> annotations = manifest.getAnnotations();
-    assertEquals(2, annotations.size());
-    assertEquals(new URI("annotations/merged.cwl"), annotations.get(0).getContent());
-    assertEquals(new URI("annotations/workflow.ttl"), annotations.get(1).getContent());
-
-    // Check git2prov link is in the history
-    List<Path> history = manifest.getHistory();
-    assertEquals(1, history.size());
-    assertEquals(
-        "http:/git2prov.org/git2prov?giturl=https:/github.com/common-workflow-language/workflows.git&serialization=PROV-JSON",
-        history.get(0).toString());
-
-    // Save and check it exists in the temporary folder
-    roBundleService.saveToFile(bundle);
+    // Write new RO bundle
+    Path bundleLocation = roBundleFolder.toPath().resolve("bundle.zip");
+    try (ROBundleWriter writer = new ROBundleWriter(bundleLocation)) {
+      roBundleService.writeBundle(lobSTRdraft3, lobSTRdraft3RODetails, writer);
+      Path bundleRoot = writer.getRoot().resolve("workflow");
+
+      // Check basic manifest metadata
+      Manifest manifest = writer.getManifest();
+      assertEquals("CWL Viewer", manifest.getCreatedBy().getName());
+      assertEquals("https://view.commonwl.org", manifest.getCreatedBy().getUri().toString());
+      assertEquals("Mark Robinson", manifest.getAuthoredBy().get(0).getName());
+      assertEquals(
+          new URI(
+              "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/workflows/lobSTR/lobSTR-workflow.cwl"),
+          manifest.getId());
+      assertEquals(
+          new URI(
+              "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/workflows/lobSTR/lobSTR-workflow.cwl?format=ro"),
+          manifest.getRetrievedFrom());
+
+      // Check cwl aggregation information
+      assertEquals(14, manifest.getAggregates().size());
+      PathMetadata cwlAggregate =
+          manifest.getAggregation(bundleRoot.resolve("lobSTR-workflow.cwl"));
+      // NOTE: This permalink is based on local folder structure, here in tests
+      // it is slightly different but normally would not be
+      assertEquals(
+          "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/lobstr-draft3/lobSTR-workflow.cwl?format=raw",
+          cwlAggregate.getRetrievedFrom().toString());
+      assertEquals("Mark Robinson", cwlAggregate.getAuthoredBy().get(0).getName());
+      assertEquals(
+          "mailto:mark@example.com", cwlAggregate.getAuthoredBy().get(0).getUri().toString());
+      assertNull(cwlAggregate.getAuthoredBy().get(0).getOrcid());
+      assertEquals("text/x-yaml", cwlAggregate.getMediatype());
+      assertEquals("https://w3id.org/cwl/draft-3", cwlAggregate.getConformsTo().toString());
+
+      // Check visualisations exist as aggregates
+      PathMetadata pngAggregate = manifest.getAggregation(bundleRoot.resolve("visualisation.png"));
+      assertEquals("image/png", pngAggregate.getMediatype());
+      PathMetadata svgAggregate = manifest.getAggregation(bundleRoot.resolve("visualisation.svg"));
+      assertEquals("image/svg+xml", svgAggregate.getMediatype());
+
+      // Check RDF and packed workflows exist as annotations
+      List<PathAnnotation> annotations = manifest.getAnnotations();
+      assertEquals(2, annotations.size());
+      assertEquals(new URI("annotations/merged.cwl"), annotations.get(0).getContent());
+      assertEquals(new URI("annotations/workflow.ttl"), annotations.get(1).getContent());
+
+      // Check git2prov link is in the history
+      List<Path> history = manifest.getHistory();
+      assertEquals(1, history.size());
+      assertEquals(
+          "http:/git2prov.org/git2prov?giturl=https:/github.com/common-workflow-language/workflows.git&serialization=PROV-JSON",
+          history.get(0).toString());
+
+      // Save and check it exists in the temporary folder
+      assertEquals(bundleLocation, writer.finish());
+    }
     File[] fileList = roBundleFolder.listFiles();
     assertTrue(fileList.length == 1);
     for (File ro : fileList) {
@@ -227,6 +259,66 @@ public class ROBundleServiceTest {
       Bundle savedBundle = Bundles.openBundle(ro.toPath());
       assertNotNull(savedBundle);
     }
+
+    // Files are copied unchanged, after the media type and before the manifest
+    try (ZipFile zip = new ZipFile(bundleLocation.toFile())) {
+      List<? extends ZipEntry> entries = Collections.list(zip.entries());
+      assertEquals("mimetype", entries.get(0).getName());
+      assertEquals(ZipEntry.STORED, entries.get(0).getMethod());
+      assertEquals(".ro/manifest.json", entries.get(entries.size() - 1).getName());
+      try (InputStream cwl = zip.getInputStream(zip.getEntry("workflow/lobSTR-workflow.cwl"))) {
+        Path source = Paths.get("src/test/resources/cwl/lobstr-draft3/lobSTR-workflow.cwl");
+        assertArrayEquals(Files.readAllBytes(source), cwl.readAllBytes());
+      }
+    }
+  }
+
+  /** Bundles are saved to the bundle storage, and nothing is left behind if creation fails */
+  @Test
+  public void createBundleInStorage() throws Exception {
+    GitDetails lobSTRdraft3RODetails =
+        new GitDetails(
+            "https://github.com/common-workflow-language/workflows.git",
+            "933bf2a1a1cce32d88f88f136275535da9df0954",
+            "lobstr-draft3/");
+
+    Path bundleLocation = roBundleService.createBundle(lobSTRdraft3, lobSTRdraft3RODetails);
+    assertEquals(roBundleFolder.toPath(), bundleLocation.getParent());
+    assertTrue(Files.exists(bundleLocation));
+
+    when(lobSTRdraft3.getPermalink()).thenReturn("not a URI");
+    assertThrows(
+        IOException.class, () -> roBundleService.createBundle(lobSTRdraft3, lobSTRdraft3RODetails));
+    assertEquals(1, roBundleFolder.listFiles().length);
+  }
+
+  /** The packed workflow from parsing is used, and the parsed commit is checked out again */
+  @Test
+  public void packedWorkflowReused() throws Exception {
+    GitDetails lobSTRdraft3RoDetails =
+        new GitDetails(
+            "https://github.com/common-workflow-language/workflows.git",
+            "master",
+            "lobstr-draft3/");
+
+    Path bundleLocation = roBundleFolder.toPath().resolve("bundle.zip");
+    try (ROBundleWriter writer = new ROBundleWriter(bundleLocation)) {
+      roBundleService.writeBundle(lobSTRdraft3, lobSTRdraft3RoDetails, "cwlVersion: v1.2", writer);
+      writer.finish();
+    }
+
+    verify(mockCwlTool, never()).getPackedVersion(any());
+    verify(mockGitService)
+        .getRepository(
+            new GitDetails(
+                "https://github.com/common-workflow-language/workflows.git",
+                "933bf2a1a1cce32d88f88f136275535da9df0954",
+                "workflows/lobSTR/lobSTR-workflow.cwl"));
+    try (ZipFile zip = new ZipFile(bundleLocation.toFile())) {
+      try (InputStream packed = zip.getInputStream(zip.getEntry(".ro/annotations/merged.cwl"))) {
+        assertEquals("cwlVersion: v1.2", new String(packed.readAllBytes(), StandardCharsets.UTF_8));
+      }
+    }
   }
 
   /** Test file size limit */
@@ -240,18 +332,58 @@ public class ROBundleServiceTest {
             "933bf2a1a1cce32d88f88f136275535da9df0954",
             "lobstr-draft3/");
 
-    // Create new RO bundle
-    Bundle bundle = roBundleServiceZeroSizeLimit.createBundle(lobSTRdraft3, lobSTRdraft3RoDetails);
+    // Write new RO bundle
+    Path bundleLocation = roBundleFolder.toPath().resolve("bundle.zip");
+    try (ROBundleWriter writer = new ROBundleWriter(bundleLocation)) {
+      roBundleServiceZeroSizeLimit.writeBundle(lobSTRdraft3, lobSTRdraft3RoDetails, writer);
+
+      Manifest manifest = writer.getManifest();
 
-    Manifest manifest = bundle.getManifest();
+      // Check files are externally linked in the aggregate
+      assertEquals(14, manifest.getAggregates().size());
 
-    // Check files are externally linked in the aggregate
-    assertEquals(14, manifest.getAggregates().size());
+      PathMetadata urlAggregate =
+          manifest.getAggregation(
+              new URI(
+                  "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/lobstr-draft3/models/illumina_v3.pcrfree.stepmodel?format=raw"));
+      assertEquals("Mark Robinson", urlAggregate.getAuthoredBy().get(0).getName());
+    }
+  }
+
+  /** Files after the total size limit is reached are linked externally */
+  @Test
+  public void filesOverTotalLimit() throws Exception {
+    GitDetails lobSTRdraft3RoDetails =
+        new GitDetails(
+            "https://github.com/common-workflow-language/workflows.git",
+            "933bf2a1a1cce32d88f88f136275535da9df0954",
+            "lobstr-draft3/");
+
+    Path bundleLocation = roBundleFolder.toPath().resolve("bundle.zip");
+    try (ROBundleWriter writer = new ROBundleWriter(bundleLocation)) {
+      roBundleServiceSmallTotalLimit.writeBundle(lobSTRdraft3, lobSTRdraft3RoDetails, writer);
+
+      Manifest manifest = writer.getManifest();
+      assertEquals(14, manifest.getAggregates().size());
 
-    PathMetadata urlAggregate =
-        manifest.getAggregation(
-            new URI(
-                "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/lobstr-draft3/models/illumina_v3.pcrfree.stepmodel?format=raw"));
-    assertEquals("Mark Robinson", urlAggregate.getAuthoredBy().get(0).getName());
+      // Would fit, but comes after a file which did not
+      Set<URI> aggregated =
+          manifest.getAggregates().stream().map(PathMetadata::getUri).collect(Collectors.toSet());
+      assertTrue(
+          aggregated.contains(
+              new URI(
+                  "https://w3id.org/cwl/view/git/933bf2a1a1cce32d88f88f136275535da9df0954/lobstr-draft3/models/illumina_v3.pcrfree.stuttermodel?format=raw")));
+      writer.finish();
+    }
+
+    try (ZipFile zip = new ZipFile(bundleLocation.toFile())) {
+      assertNotNull(zip.getEntry("workflow/allelotype.cwl"));
+      assertNull(zip.getEntry("workflow/lobSTR-arvados-demo.json"));
+      assertNull(zip.getEntry("workflow/models/illumina_v3.pcrfree.stuttermodel"));
+      try (InputStream readme = zip.getInputStream(zip.getEntry("workflow/README"))) {
+        Path source = Paths.get("src/test/resources/cwl/lobstr-draft3/README");
+        assertArrayEquals(Files.readAllBytes(source), readme.readAllBytes());
+      }
+    }
   }
 }
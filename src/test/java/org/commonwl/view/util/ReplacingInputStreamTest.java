@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class ReplacingInputStreamTest {
+
+  /** Strings are replaced wherever they occur */
+  @Test
+  public void replacesStrings() throws Exception {
+    assertEquals(
+        "<https://w3id.org/cwl/view/git/abc/x.cwl> <http://www.w3.org/2000/01/rdf-schema#> .",
+        replace(
+            "<file:///tmp/123/x.cwl> <rdfs:> .",
+            Map.of(
+                "file:///tmp/123/", "https://w3id.org/cwl/view/git/abc/",
+                "<rdfs:>", "<http://www.w3.org/2000/01/rdf-schema#>"),
+            Integer.MAX_VALUE));
+  }
+
+  /** The longest string matching at a position is replaced */
+  @Test
+  public void replacesLongestMatch() throws Exception {
+    assertEquals(
+        "[long] [short]",
+        replace("abcd ab", Map.of("ab", "[short]", "abcd", "[long]"), Integer.MAX_VALUE));
+  }
+
+  /** Strings split across reads of the underlying stream are still replaced */
+  @Test
+  public void replacesAcrossReads() throws Exception {
+    StringBuilder input = new StringBuilder();
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 5000; i++) {
+      input.append("file:///tmp/123/").append(i).append('\n');
+      expected.append("https://example.org/").append(i).append('\n');
+    }
+    Map<String, String> replacements = Map.of("file:///tmp/123/", "https://example.org/");
+    assertEquals(expected.toString(), replace(input.toString(), replacements, 7));
+    assertEquals(expected.toString(), replace(input.toString(), replacements, Integer.MAX_VALUE));
+  }
+
+  /** Partial matches at the end of the stream are left unchanged */
+  @Test
+  public void keepsPartialMatchAtEnd() throws Exception {
+    assertEquals("x file:///tm", replace("x file:///tm", Map.of("file:///tmp/", "y"), 3));
+  }
+
+  /**
+   * Reads a string through a replacing stream
+   *
+   * @param input The input string
+   * @param replacements The strings to replace
+   * @param chunkSize The most bytes the underlying stream returns from each read
+   * @return The result of the replacements
+   */
+  private static String replace(String input, Map<String, String> replacements, int chunkSize)
+      throws IOException {
+    InputStream chunked =
+        new FilterInputStream(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))) {
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, chunkSize));
+          }
+        };
+    try (InputStream in = new ReplacingInputStream(chunked, replacements)) {
+      return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.commonwl.view.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTest {
+
+  /** A failure is propagated to the callers waiting for it, and the key is then released */
+  @Test
+  public void propagatesExceptionToWaitingCallers() throws Exception {
+    SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first =
+          executor.submit(
+              () ->
+                  singleFlight.execute(
+                      "key",
+                      () -> {
+                        started.countDown();
+                        release.await();
+                        throw new IOException("fetch failed");
+                      }));
+      started.await();
+      assertTrue(singleFlight.isInFlight("key"));
+      Future<String> second = executor.submit(() -> singleFlight.execute("key", () -> "result"));
+      Thread.sleep(200);
+      release.countDown();
+
+      Exception firstError = assertThrows(Exception.class, () -> first.get(5, TimeUnit.SECONDS));
+      Exception secondError = assertThrows(Exception.class, () -> second.get(5, TimeUnit.SECONDS));
+      assertEquals("fetch failed", firstError.getCause().getMessage());
+      assertEquals("fetch failed", secondError.getCause().getMessage());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertFalse(singleFlight.isInFlight("key"));
+    assertEquals("next", singleFlight.execute("key", () -> "next"));
+  }
+}
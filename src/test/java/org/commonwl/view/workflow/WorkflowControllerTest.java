@@ -20,16 +20,17 @@
 package org.commonwl.view.workflow;
 
 import static org.hamcrest.core.Is.is;
-import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
-import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.model;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -44,17 +45,19 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import org.commonwl.view.GlobalControllerErrorHandling;
 import org.commonwl.view.cwl.CWLService;
+import org.commonwl.view.git.CommitSnapshot;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.git.GitSemaphore;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitService;
+import org.commonwl.view.graphviz.GraphVizBusyException;
 import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.researchobject.ROBundleNotFoundException;
-import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.api.errors.TransportException;
 import org.eclipse.jgit.api.errors.WrongRepositoryStateException;
-import org.eclipse.jgit.lib.Repository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
@@ -205,30 +208,23 @@ public class WorkflowControllerTest {
   }
 
   @Test
-  public void errorCreatingQueuedWorkflowDeletesTemporaryFiles()
-      throws GitAPIException, IOException {
+  public void errorCreatingQueuedWorkflowClosesSnapshot() throws GitAPIException, IOException {
     GitService gitService = Mockito.mock(GitService.class);
     WorkflowService service =
-        new WorkflowService(gitService, null, null, null, null, null, null, new GitSemaphore(), 1);
+        new WorkflowService(
+            gitService, null, null, null, null, null, null, new GitLeaseManager(), 1);
 
     final GitDetails gitDetails =
         new GitDetails("https://github.com/common-workflow-language/", "main", "/");
-    Git git = mock(Git.class);
-    when(gitService.getRepository(Mockito.any(GitDetails.class), Mockito.anyBoolean()))
-        .thenReturn(git);
-
-    Repository repository = Mockito.mock(Repository.class);
-    File temporaryFile = roBundleFolder.resolve("repository/.git").toFile();
-    assertTrue(temporaryFile.mkdirs());
-    when(repository.getDirectory()).thenReturn(temporaryFile);
-    when(git.getRepository()).thenThrow(RuntimeException.class).thenReturn(repository);
-    assertTrue(temporaryFile.exists());
+    CommitSnapshot snapshot = mock(CommitSnapshot.class);
+    when(gitService.getSnapshot(Mockito.any(GitDetails.class))).thenReturn(snapshot);
+    when(snapshot.getCommitId()).thenThrow(RuntimeException.class);
     assertThrows(
         RuntimeException.class,
         () -> {
           service.createQueuedWorkflow(gitDetails);
         });
-    assertFalse(temporaryFile.exists());
+    verify(snapshot).close();
   }
 
   /** Displaying workflows */
@@ -372,7 +368,8 @@ public class WorkflowControllerTest {
 
     // Mock service to return mock workflow
     WorkflowService mockWorkflowService = Mockito.mock(WorkflowService.class);
-    when(mockWorkflowService.getWorkflowGraph(any(String.class), Mockito.any(GitDetails.class)))
+    when(mockWorkflowService.getWorkflowGraph(
+            any(String.class), Mockito.any(GitDetails.class), Mockito.anySet()))
         .thenReturn(new PathResource(Paths.get("src/test/resources/graphviz/testVis.svg")))
         .thenReturn(new PathResource(Paths.get("src/test/resources/graphviz/testVis.png")))
         .thenReturn(new PathResource(Paths.get("src/test/resources/graphviz/testWorkflow.dot")))
@@ -430,6 +427,65 @@ public class WorkflowControllerTest {
         .andExpect(status().isNotFound());
   }
 
+  /** Nested workflows to expand are passed on from the request */
+  @Test
+  public void downloadGraphWithExpandedSubworkflows() throws Exception {
+    WorkflowService mockWorkflowService = Mockito.mock(WorkflowService.class);
+    when(mockWorkflowService.getWorkflowGraph(
+            eq("svg"), Mockito.any(GitDetails.class), Mockito.anySet()))
+        .thenReturn(new PathResource(Paths.get("src/test/resources/graphviz/testVis.svg")));
+
+    WorkflowController workflowController =
+        new WorkflowController(
+            Mockito.mock(WorkflowFormValidator.class),
+            mockWorkflowService,
+            Mockito.mock(GraphVizService.class),
+            Mockito.mock(CWLService.class));
+    MockMvc mockMvc = MockMvcBuilders.standaloneSetup(workflowController).build();
+
+    mockMvc
+        .perform(
+            get("/graph/svg/github.com/owner/repo/blob/branch/path/to/workflow.cwl")
+                .param("expand", "step1,step1/inner"))
+        .andExpect(status().isOk());
+    verify(mockWorkflowService)
+        .getWorkflowGraph(
+            eq("svg"), Mockito.any(GitDetails.class), eq(Set.of("step1", "step1/inner")));
+
+    mockMvc
+        .perform(get("/graph/svg/github.com/owner/repo/blob/branch/path/to/workflow.cwl"))
+        .andExpect(status().isOk());
+    verify(mockWorkflowService)
+        .getWorkflowGraph(eq("svg"), Mockito.any(GitDetails.class), eq(Set.of()));
+  }
+
+  /** Graphs the client already has are identified by their ETag without being rendered */
+  @Test
+  public void downloadGraphNotModified() throws Exception {
+    WorkflowService mockWorkflowService = Mockito.mock(WorkflowService.class);
+    when(mockWorkflowService.getWorkflowGraphName(
+            eq("svg"), Mockito.any(GitDetails.class), eq(Set.of("step1")), eq(false)))
+        .thenReturn("graphhash.svg");
+
+    WorkflowController workflowController =
+        new WorkflowController(
+            Mockito.mock(WorkflowFormValidator.class),
+            mockWorkflowService,
+            Mockito.mock(GraphVizService.class),
+            Mockito.mock(CWLService.class));
+    MockMvc mockMvc = MockMvcBuilders.standaloneSetup(workflowController).build();
+
+    mockMvc
+        .perform(
+            get("/graph/svg/github.com/owner/repo/blob/branch/path/to/workflow.cwl")
+                .param("expand", "step1")
+                .header("If-None-Match", "\"graphhash.svg\""))
+        .andExpect(status().isNotModified())
+        .andExpect(header().string("ETag", "\"graphhash.svg\""));
+    verify(mockWorkflowService, never())
+        .getWorkflowGraph(any(String.class), Mockito.any(GitDetails.class), Mockito.anySet());
+  }
+
   @Test
   public void downloadGraphSvgFromFile() throws Exception {
 
@@ -492,6 +548,34 @@ public class WorkflowControllerTest {
         .andExpect(content().contentType("image/png"));
   }
 
+  /** Renders rejected because Graphviz is busy are answered with 503 and Retry-After */
+  @Test
+  public void downloadGraphWhenRendererBusy() throws Exception {
+    CWLService mockCWLService = Mockito.mock(CWLService.class);
+    GraphVizService graphVizService = Mockito.mock(GraphVizService.class);
+    when(graphVizService.getGraphStream(any(), eq("png"))).thenThrow(new GraphVizBusyException(10));
+    Workflow mockWorkflow = Mockito.mock(Workflow.class);
+    when(mockWorkflow.getVisualisationDot()).thenReturn(""); // Not actually dot
+    when(mockCWLService.parseWorkflowNative(any(InputStream.class), eq(null), any(String.class)))
+        .thenReturn(mockWorkflow);
+
+    WorkflowController workflowController =
+        new WorkflowController(
+            Mockito.mock(WorkflowFormValidator.class),
+            Mockito.mock(WorkflowService.class),
+            graphVizService,
+            mockCWLService);
+    MockMvc mockMvc =
+        MockMvcBuilders.standaloneSetup(workflowController)
+            .setControllerAdvice(new GlobalControllerErrorHandling())
+            .build();
+
+    mockMvc
+        .perform(post("/graph/png"))
+        .andExpect(status().isServiceUnavailable())
+        .andExpect(header().string("Retry-After", "10"));
+  }
+
   @Test
   public void testGetPhenoflowURL() throws Exception {
 
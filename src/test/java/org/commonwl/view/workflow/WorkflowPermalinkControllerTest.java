@@ -19,23 +19,33 @@
 
 package org.commonwl.view.workflow;
 
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Optional;
+import java.util.Set;
 import org.apache.commons.io.IOUtils;
+import org.commonwl.view.GlobalControllerErrorHandling;
 import org.commonwl.view.cwl.RDFService;
 import org.commonwl.view.git.GitDetails;
+import org.commonwl.view.graphviz.GraphVizBusyException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -56,6 +66,8 @@ public class WorkflowPermalinkControllerTest {
       new PathResource(Paths.get("src/test/resources/graphviz/testVis.svg"));
   private final PathResource dot =
       new PathResource(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
+  private final PathResource layout = // Not actually JSON
+      new PathResource(Paths.get("src/test/resources/graphviz/testWorkflow.dot"));
 
   @BeforeEach
   public void setUp() throws Exception {
@@ -76,8 +88,19 @@ public class WorkflowPermalinkControllerTest {
             Optional.of("https://raw.githubusercontent.com/MarkRobbo/workflows/commitidhere/"));
 
     when(mockWorkflowService.getWorkflowGraph(eq("svg"), any(GitDetails.class))).thenReturn(svg);
+    when(mockWorkflowService.getCompressedWorkflowGraph(
+            eq("svg"), any(GitDetails.class), any(Set.class)))
+        .thenReturn(svg); // Not actually compressed
     when(mockWorkflowService.getWorkflowGraph(eq("png"), any(GitDetails.class))).thenReturn(png);
     when(mockWorkflowService.getWorkflowGraph(eq("xdot"), any(GitDetails.class))).thenReturn(dot);
+    when(mockWorkflowService.getWorkflowGraph(eq("json"), any(GitDetails.class)))
+        .thenReturn(layout);
+    when(mockWorkflowService.getWorkflowGraphName(any(), any(String.class), anyBoolean()))
+        .thenAnswer(
+            invocation ->
+                "graphhash."
+                    + invocation.getArgument(1)
+                    + ((boolean) invocation.getArgument(2) ? ".gz" : ""));
     Path path = Files.createFile(tempDir.resolve("nonsense.zip"));
     when(mockWorkflowService.getROBundle(any()))
         .thenReturn(new File(path.toAbsolutePath().toString()));
@@ -166,6 +189,91 @@ public class WorkflowPermalinkControllerTest {
         .andExpect(content().bytes(IOUtils.toByteArray(svg.getInputStream())));
   }
 
+  /** Graphs at a commit are cacheable and revalidated with their ETag */
+  @Test
+  public void getSvgNotModified() throws Exception {
+    String etag =
+        mockMvc
+            .perform(
+                get("/git/commitidhere/path/to/workflow.cwl").header("accept", "image/svg+xml"))
+            .andExpect(status().isOk())
+            .andExpect(header().string("Cache-Control", "max-age=31536000, public"))
+            .andReturn()
+            .getResponse()
+            .getHeader("ETag");
+
+    mockMvc
+        .perform(
+            get("/git/commitidhere/path/to/workflow.cwl")
+                .header("accept", "image/svg+xml")
+                .header("If-None-Match", etag))
+        .andExpect(status().isNotModified())
+        .andExpect(header().string("ETag", etag))
+        .andExpect(header().string("Cache-Control", "max-age=31536000, public"));
+  }
+
+  /** Graphs which fail to render are neither cacheable nor labelled as compressed */
+  @Test
+  public void getSvgRenderFailed() throws Exception {
+    Workflow mockWorkflow = Mockito.mock(Workflow.class);
+    when(mockWorkflow.getRetrievedFrom())
+        .thenReturn(
+            new GitDetails(
+                "https://github.com/MarkRobbo/workflows.git", "master", "path/to/workflow.cwl"));
+    WorkflowService mockWorkflowService = Mockito.mock(WorkflowService.class);
+    when(mockWorkflowService.findByCommitAndPath(
+            any(String.class), any(String.class), any(Optional.class)))
+        .thenReturn(mockWorkflow);
+    when(mockWorkflowService.getWorkflowGraphName(any(), any(String.class), anyBoolean()))
+        .thenReturn("graphhash.svg.gz");
+    when(mockWorkflowService.getCompressedWorkflowGraph(
+            eq("svg"), any(GitDetails.class), any(Set.class)))
+        .thenThrow(new GraphVizBusyException(5));
+    MockMvc busyMvc =
+        MockMvcBuilders.standaloneSetup(
+                new WorkflowPermalinkController(
+                    mockWorkflowService, Mockito.mock(RDFService.class)))
+            .setControllerAdvice(new GlobalControllerErrorHandling())
+            .build();
+
+    busyMvc
+        .perform(
+            get("/git/commitidhere/path/to/workflow.cwl")
+                .header("accept", "image/svg+xml")
+                .header("accept-encoding", "gzip"))
+        .andExpect(status().isServiceUnavailable())
+        .andExpect(header().doesNotExist("Cache-Control"))
+        .andExpect(header().doesNotExist("Content-Encoding"));
+  }
+
+  /** The ETag of a graph is the name it is cached under, so it changes whenever the graph does */
+  @Test
+  public void getSvgETagFromGraph() throws Exception {
+    mockMvc
+        .perform(get("/git/commitidhere/path/to/workflow.cwl").header("accept", "image/svg+xml"))
+        .andExpect(status().isOk())
+        .andExpect(header().string("ETag", "\"graphhash.svg\""));
+    mockMvc
+        .perform(
+            get("/git/commitidhere/path/to/workflow.cwl")
+                .header("accept", "image/svg+xml")
+                .header("accept-encoding", "gzip"))
+        .andExpect(status().isOk())
+        .andExpect(header().string("ETag", "\"graphhash.svg.gz\""));
+  }
+
+  /** Text formats are sent as compressed when rendered to clients accepting gzip */
+  @Test
+  public void getSvgCompressed() throws Exception {
+    mockMvc
+        .perform(
+            get("/git/commitidhere/path/to/workflow.cwl")
+                .header("accept", "image/svg+xml")
+                .header("accept-encoding", "gzip, deflate"))
+        .andExpect(status().isOk())
+        .andExpect(header().string("Content-Encoding", "gzip"));
+  }
+
   @Test
   public void getDot() throws Exception {
     mockMvc
@@ -176,6 +284,17 @@ public class WorkflowPermalinkControllerTest {
         .andExpect(content().bytes(IOUtils.toByteArray(dot.getInputStream())));
   }
 
+  @Test
+  public void getLayout() throws Exception {
+    mockMvc
+        .perform(
+            get("/git/commitidhere/path/to/workflow.cwl")
+                .header("accept", "application/vnd.graphviz+json"))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType("application/vnd.graphviz+json"))
+        .andExpect(content().bytes(IOUtils.toByteArray(layout.getInputStream())));
+  }
+
   @Test
   public void getRoBundle() throws Exception {
     mockMvc
@@ -185,4 +304,40 @@ public class WorkflowPermalinkControllerTest {
         .andExpect(status().isOk())
         .andExpect(content().contentType("application/vnd.wf4ever.robundle+zip"));
   }
+
+  @Test
+  public void getRoBundleOnDemand() throws Exception {
+    GitDetails gitDetails =
+        new GitDetails(
+            "https://github.com/MarkRobbo/workflows.git", "master", "path/to/workflow.cwl");
+    Workflow mockWorkflow = Mockito.mock(Workflow.class);
+    when(mockWorkflow.getRetrievedFrom()).thenReturn(gitDetails);
+    WorkflowService mockWorkflowService = Mockito.mock(WorkflowService.class);
+    when(mockWorkflowService.findByCommitAndPath(
+            any(String.class), any(String.class), any(Optional.class)))
+        .thenReturn(mockWorkflow);
+    when(mockWorkflowService.isROBundleOnDemand()).thenReturn(true);
+    byte[] bundle = "bundle".getBytes(StandardCharsets.UTF_8);
+    doAnswer(
+            invocation -> {
+              invocation.getArgument(1, OutputStream.class).write(bundle);
+              return null;
+            })
+        .when(mockWorkflowService)
+        .writeROBundle(eq(gitDetails), any(OutputStream.class));
+    MockMvc onDemandMvc =
+        MockMvcBuilders.standaloneSetup(
+                new WorkflowPermalinkController(
+                    mockWorkflowService, Mockito.mock(RDFService.class)))
+            .build();
+
+    // Streamed as it is created, as a plain ZIP to clients only accepting that
+    onDemandMvc
+        .perform(get("/git/commitidhere/path/to/workflow.cwl").header("accept", "application/zip"))
+        .andExpect(status().isOk())
+        .andExpect(content().contentType("application/zip"))
+        .andExpect(header().string("Content-Disposition", "attachment; filename=bundle.zip;"))
+        .andExpect(content().bytes(bundle));
+    verify(mockWorkflowService, never()).getROBundle(any());
+  }
 }
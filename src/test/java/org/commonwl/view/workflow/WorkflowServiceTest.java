@@ -21,7 +21,11 @@ package org.commonwl.view.workflow;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -30,15 +34,19 @@ import java.nio.file.Path;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.commonwl.view.cwl.CWLService;
 import org.commonwl.view.cwl.CWLToolRunner;
 import org.commonwl.view.git.GitDetails;
-import org.commonwl.view.git.GitSemaphore;
+import org.commonwl.view.git.GitLeaseManager;
 import org.commonwl.view.git.GitService;
+import org.commonwl.view.git.WorktreeSnapshot;
 import org.commonwl.view.graphviz.GraphVizService;
 import org.commonwl.view.researchobject.ROBundleFactory;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.lib.Repository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mockito;
@@ -58,20 +66,14 @@ public class WorkflowServiceTest {
 
     // Mock CWL service which returns simple overview once simulating 1 workflow found
     CWLService mockCWLService = Mockito.mock(CWLService.class);
-    when(mockCWLService.getWorkflowOverview(any()))
+    when(mockCWLService.getWorkflowOverview(any(), anyLong(), any()))
         .thenReturn(new WorkflowOverview("workflow.cwl", "label", "doc"))
         .thenReturn(new WorkflowOverview("workflow2.cwl", "label2", "doc2"))
         .thenReturn(null);
 
-    Repository mockRepo = Mockito.mock(Repository.class);
-    when(mockRepo.getWorkTree()).thenReturn(new File("src/test/resources/cwl/hello"));
-
-    Git mockGitRepo = Mockito.mock(Git.class);
-    when(mockGitRepo.getRepository()).thenReturn(mockRepo);
-
     GitService mockGitService = Mockito.mock(GitService.class);
-    when(mockGitService.getRepository(any(GitDetails.class), any(Boolean.class)))
-        .thenReturn(mockGitRepo);
+    when(mockGitService.getSnapshot(any(GitDetails.class)))
+        .thenReturn(new WorktreeSnapshot(Path.of("src/test/resources/cwl/hello"), "commitId"));
 
     // Create service under test
     WorkflowService testWorkflowService =
@@ -83,7 +85,7 @@ public class WorkflowServiceTest {
             Mockito.mock(ROBundleFactory.class),
             Mockito.mock(GraphVizService.class),
             Mockito.mock(CWLToolRunner.class),
-            Mockito.mock(GitSemaphore.class),
+            new GitLeaseManager(),
             1);
 
     // Get a list of workflows from the directory
@@ -101,6 +103,64 @@ public class WorkflowServiceTest {
     assertEquals("doc2", list.get(1).getDoc());
   }
 
+  /** Concurrent submissions of the same workflow only create it once */
+  @Test
+  public void coalescesConcurrentQueuedWorkflowCreation() throws Exception {
+    CWLService mockCWLService = Mockito.mock(CWLService.class);
+    when(mockCWLService.parseWorkflowNative(any(), anyLong(), any(), any()))
+        .thenReturn(
+            new Workflow("label", "doc", new HashMap<>(), new HashMap<>(), new HashMap<>()));
+
+    // The first checkout blocks until the second submission has arrived
+    CountDownLatch checkingOut = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    GitService mockGitService = Mockito.mock(GitService.class);
+    when(mockGitService.getSnapshot(any(GitDetails.class)))
+        .thenAnswer(
+            invocation -> {
+              checkingOut.countDown();
+              release.await();
+              return new WorktreeSnapshot(Path.of("src/test/resources/cwl/hello"), "commitId");
+            });
+
+    CWLToolRunner mockCWLToolRunner = Mockito.mock(CWLToolRunner.class);
+    WorkflowService testWorkflowService =
+        new WorkflowService(
+            mockGitService,
+            mockCWLService,
+            Mockito.mock(WorkflowRepository.class),
+            Mockito.mock(QueuedWorkflowRepository.class),
+            Mockito.mock(ROBundleFactory.class),
+            Mockito.mock(GraphVizService.class),
+            mockCWLToolRunner,
+            new GitLeaseManager(),
+            1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<QueuedWorkflow> first =
+          executor.submit(
+              () ->
+                  testWorkflowService.createQueuedWorkflow(
+                      new GitDetails("https://github.com/owner/repo", "main", "hello.cwl")));
+      checkingOut.await();
+      Future<QueuedWorkflow> second =
+          executor.submit(
+              () ->
+                  testWorkflowService.createQueuedWorkflow(
+                      new GitDetails("http://github.com/owner/repo", "main", "/./hello.cwl")));
+      // Give the second submission time to join the first
+      Thread.sleep(200);
+      release.countDown();
+
+      assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+    verify(mockGitService, times(1)).getSnapshot(any(GitDetails.class));
+    verify(mockCWLToolRunner, times(1)).createWorkflowFromQueued(any(), any());
+  }
+
   /** Getting a workflow when cache has expired And a new workflow needs to be created */
   @Test
   public void getWorkflowCacheHasExpired() throws Exception {
@@ -136,18 +196,14 @@ public class WorkflowServiceTest {
     when(mockWorkflowRepo.findByRetrievedFrom(any())).thenReturn(oldWorkflow);
 
     CWLService mockCWLService = Mockito.mock(CWLService.class);
-    when(mockCWLService.parseWorkflowNative(any(), any())).thenReturn(updatedWorkflow);
-
-    Repository mockRepo = Mockito.mock(Repository.class);
-    when(mockRepo.getWorkTree()).thenReturn(new File("src/test/resources/cwl/make_to_cwl"));
-
-    Git mockGitRepo = Mockito.mock(Git.class);
-    when(mockGitRepo.getRepository()).thenReturn(mockRepo);
+    when(mockCWLService.parseWorkflowNative(any(), anyLong(), any(), any()))
+        .thenReturn(updatedWorkflow);
 
     GitService mockGitService = Mockito.mock(GitService.class);
-    when(mockGitService.getRepository(any(GitDetails.class), any(Boolean.class)))
-        .thenReturn(mockGitRepo);
-    when(mockGitService.getCurrentCommitID(any())).thenReturn("newCommitId");
+    when(mockGitService.getSnapshot(any(GitDetails.class)))
+        .thenAnswer(
+            invocation ->
+                new WorktreeSnapshot(Path.of("src/test/resources/cwl/make_to_cwl"), "newCommitId"));
 
     // Create service under test with negative cache time (always create new workflow)
     WorkflowService testWorkflowService =
@@ -159,7 +215,7 @@ public class WorkflowServiceTest {
             Mockito.mock(ROBundleFactory.class),
             Mockito.mock(GraphVizService.class),
             Mockito.mock(CWLToolRunner.class),
-            Mockito.mock(GitSemaphore.class),
+            new GitLeaseManager(),
             -1);
 
     // Will use check cache algorithm, find expired,
@@ -202,7 +258,7 @@ public class WorkflowServiceTest {
             Mockito.mock(ROBundleFactory.class),
             Mockito.mock(GraphVizService.class),
             Mockito.mock(CWLToolRunner.class),
-            Mockito.mock(GitSemaphore.class),
+            new GitLeaseManager(),
             -1);
 
     File fetchedBundle = testWorkflowService.getROBundle(null);